@@ -0,0 +1,369 @@
+package se.stromnet.jtelldus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.stromnet.jtelldus.Protocol.ErrorCode;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes commands against telldusd's client socket without blocking the
+ * caller.
+ *
+ * All connections are non-blocking and served by one thread running a
+ * Selector, so any number of outstanding commands needs no more threads.
+ * As with CommandEngine every command has a connection of its own, and at
+ * most maxConcurrent connections are open at once; the rest wait in a
+ * queue.
+ *
+ * Futures are completed on the selector thread. Dependent actions which may
+ * take a while should use the *Async variants of CompletableFuture.
+ *
+ * Commands not completed by their deadline, whether still waiting or
+ * already talking to telldusd, fail with a CommandException carrying
+ * ERROR_COMMUNICATING_SERVICE, and their connection is closed.
+ */
+public class AsyncCommandEngine {
+	private static final Logger log = LoggerFactory.getLogger(AsyncCommandEngine.class);
+
+	private final Transport transport;
+	private final int maxConcurrent;
+	private final Selector selector;
+	private final Thread thread;
+	private volatile boolean run = true;
+	private volatile long timeout;
+
+	private final ConcurrentLinkedQueue<Request> pending = new ConcurrentLinkedQueue<Request>();
+	private final AtomicInteger waiting = new AtomicInteger();
+	// Selector thread only
+	private int active;
+
+	private static class Request {
+		final ByteBuffer out;
+		final CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+		ByteBuffer in;
+		MessageDecoder decoder;
+		int decoded;
+		boolean retried;
+		SocketChannel channel;
+		// System.nanoTime() to give up at, or 0
+		final long deadline;
+
+		Request(ByteBuffer out, long deadline) {
+			this.out = out;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * @param maxConcurrent Max number of connections open at once, or 0 for no limit.
+	 */
+	public AsyncCommandEngine(SocketAddress address, int maxConcurrent) throws IOException {
+		this(address, maxConcurrent, null);
+	}
+
+	/**
+	 * @param threadFactory Factory for the selector thread, or null for a
+	 *	regular daemon thread.
+	 */
+	public AsyncCommandEngine(SocketAddress address, int maxConcurrent, ThreadFactory threadFactory) throws IOException {
+		this.transport = Transport.forAddress(address);
+		this.maxConcurrent = maxConcurrent;
+		this.selector = Selector.open();
+
+		thread = Threads.newThread(threadFactory, new Runnable() {
+			public void run() {
+				selectLoop();
+			}
+		}, getClass().getSimpleName(), true);
+		thread.start();
+	}
+
+	/**
+	 * Set the default timeout for submit(Message).
+	 *
+	 * @param timeoutMillis Timeout in ms, or 0 to wait forever.
+	 */
+	public void setTimeout(long timeoutMillis) {
+		this.timeout = timeoutMillis;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Send a message, within the default timeout.
+	 *
+	 * @see #submit(Message, long)
+	 */
+	public CompletableFuture<ByteBuffer> submit(Message m) {
+		return submit(m, timeout);
+	}
+
+	/**
+	 * Send a message. The message is encoded right away and may be
+	 * released when this returns.
+	 *
+	 * @param timeoutMillis Max time until the reply, or 0 to wait forever.
+	 * @return Future completed with the reply, in a buffer in write mode
+	 *	holding the reply from position 0.
+	 */
+	public CompletableFuture<ByteBuffer> submit(Message m, long timeoutMillis) {
+		ByteBuffer encoded = m.serialize();
+		ByteBuffer out = ByteBuffer.allocate(encoded.remaining());
+		out.put(encoded);
+		out.flip();
+
+		long deadline = 0;
+		if(timeoutMillis > 0)
+			deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+		Request r = new Request(out, deadline);
+		if(!run) {
+			r.future.completeExceptionally(new IOException("Engine is closed"));
+			return r.future;
+		}
+
+		waiting.incrementAndGet();
+		pending.add(r);
+		// Closed meanwhile; the selector thread may already have drained pending
+		if(!run && pending.remove(r)) {
+			waiting.decrementAndGet();
+			r.future.completeExceptionally(new IOException("Engine is closed"));
+			return r.future;
+		}
+		selector.wakeup();
+		return r.future;
+	}
+
+	private void selectLoop() {
+		try {
+			while(run) {
+				startPending();
+				selector.select(expire());
+
+				Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+				while(i.hasNext()) {
+					SelectionKey key = i.next();
+					i.remove();
+					handle(key);
+				}
+			}
+		} catch(IOException ex) {
+			log.error("Selector failed", ex);
+		} catch(ClosedSelectorException ex) {
+			// Closed
+		}
+
+		// Fail everything still outstanding
+		for(SelectionKey key: selector.keys())
+			fail(key, new IOException("Engine is closed"));
+
+		Request r;
+		while((r = pending.poll()) != null)
+			r.future.completeExceptionally(new IOException("Engine is closed"));
+
+		try {
+			selector.close();
+		} catch(IOException ex) {}
+	}
+
+	/**
+	 * Fail every request past its deadline.
+	 *
+	 * @return ms until the next deadline, or 0 if there is none.
+	 */
+	private long expire() {
+		long now = System.nanoTime();
+		long next = Long.MAX_VALUE;
+
+		for(SelectionKey key: selector.keys()) {
+			Request r = (Request) key.attachment();
+			if(!key.isValid() || r.deadline == 0)
+				continue;
+
+			long left = r.deadline - now;
+			if(left <= 0)
+				fail(key, timedOut());
+			else
+				next = Math.min(next, left);
+		}
+
+		for(Iterator<Request> i = pending.iterator(); i.hasNext(); ) {
+			Request r = i.next();
+			if(r.deadline == 0)
+				continue;
+
+			long left = r.deadline - now;
+			if(left > 0) {
+				next = Math.min(next, left);
+			} else if(pending.remove(r)) {
+				waiting.decrementAndGet();
+				r.future.completeExceptionally(timedOut());
+			}
+		}
+
+		if(next == Long.MAX_VALUE)
+			return 0;
+
+		// Round up; select(0) would wait forever
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next + 999999));
+	}
+
+	private static CommandException timedOut() {
+		return new CommandException(ErrorCode.ERROR_COMMUNICATING_SERVICE, "Command timed out");
+	}
+
+	private void startPending() {
+		while(maxConcurrent <= 0 || active < maxConcurrent) {
+			Request r = pending.poll();
+			if(r == null)
+				return;
+
+			waiting.decrementAndGet();
+			active++;
+			connect(r);
+		}
+	}
+
+	private void connect(Request r) {
+		r.in = ByteBuffer.allocate(256);
+		r.decoder = new MessageDecoder();
+		r.decoded = 0;
+		r.out.rewind();
+
+		try {
+			r.channel = transport.open();
+			r.channel.configureBlocking(false);
+			if(r.channel.connect(transport.getAddress()))
+				r.channel.register(selector, SelectionKey.OP_WRITE, r);
+			else
+				r.channel.register(selector, SelectionKey.OP_CONNECT, r);
+		} catch(IOException ex) {
+			done(r);
+			r.future.completeExceptionally(ex);
+		}
+	}
+
+	private void handle(SelectionKey key) {
+		Request r = (Request) key.attachment();
+		try {
+			if(key.isConnectable()) {
+				if(r.channel.finishConnect())
+					key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+
+			if(key.isWritable()) {
+				r.channel.write(r.out);
+				if(!r.out.hasRemaining())
+					key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+
+			if(key.isReadable())
+				read(key, r);
+		} catch(IOException ex) {
+			// Retry once, unless telldusd already started to reply
+			if(!r.retried && r.decoded == 0 && r.in.position() == 0) {
+				r.retried = true;
+				close(r);
+				connect(r);
+				return;
+			}
+			fail(key, ex);
+		}
+	}
+
+	private void read(SelectionKey key, Request r) throws IOException {
+		if(!r.in.hasRemaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(r.in.capacity() * 2);
+			r.in.flip();
+			larger.put(r.in);
+			r.in = larger;
+		}
+
+		if(r.channel.read(r.in) < 0)
+			throw new IOException("Connection closed by telldusd");
+
+		r.in.flip();
+		r.in.position(r.decoded);
+		int token = r.decoder.next(r.in);
+		r.decoded = r.in.position();
+
+		// Back to write mode, keeping everything we've read.
+		r.in.position(r.in.limit());
+		r.in.limit(r.in.capacity());
+
+		if(token == MessageDecoder.ERROR) {
+			fail(key, new IOException("Malformed reply from telldusd"));
+			return;
+		}
+
+		if(token != MessageDecoder.NEED_MORE) {
+			key.cancel();
+			done(r);
+			r.future.complete(r.in);
+		}
+	}
+
+	private void fail(SelectionKey key, IOException ex) {
+		key.cancel();
+		Request r = (Request) key.attachment();
+		done(r);
+		r.future.completeExceptionally(ex);
+	}
+
+	private void done(Request r) {
+		close(r);
+		active--;
+	}
+
+	private static void close(Request r) {
+		if(r.channel == null)
+			return;
+
+		try {
+			r.channel.close();
+		} catch(IOException ex) {}
+		r.channel = null;
+	}
+
+	/**
+	 * Stop the selector thread. Outstanding commands fail.
+	 */
+	public void close() {
+		run = false;
+		selector.wakeup();
+		try {
+			thread.join();
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return number of commands waiting for a connection.
+	 */
+	public int getWaiting() {
+		return waiting.get();
+	}
+
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+}
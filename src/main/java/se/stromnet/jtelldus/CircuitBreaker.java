@@ -0,0 +1,151 @@
+package se.stromnet.jtelldus;
+
+/**
+ * Stops sending commands to a telldusd which cannot be reached.
+ *
+ * After failureThreshold commands in a row have failed to connect, the
+ * circuit opens and commands fail right away, without trying to connect.
+ * When the delay given by the ReconnectPolicy has passed, the circuit is
+ * half open: one command is let through as a trial. If it gets a reply
+ * the circuit closes again, if it cannot connect it opens for a longer
+ * time. A trial which ends neither way, such as by timing out, only lets
+ * another trial through.
+ */
+public class CircuitBreaker {
+	public enum State {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+
+	/**
+	 * Told about state changes. Called outside of any lock, by the thread
+	 * whose command caused the change.
+	 */
+	public interface Listener {
+		void onStateChange(State state, long retryIn);
+	}
+
+	private final int failureThreshold;
+	private final ReconnectPolicy policy;
+	private volatile Listener listener;
+
+	// Guarded by this
+	private State state = State.CLOSED;
+	private int failures;
+	private int opened;
+	private long retryAt;
+	// A HALF_OPEN trial has been let through and not yet ended
+	private boolean trialing;
+
+	/**
+	 * @param failureThreshold Number of failed connects in a row which
+	 *	open the circuit.
+	 */
+	public CircuitBreaker(int failureThreshold, ReconnectPolicy policy) {
+		if(failureThreshold < 1)
+			throw new IllegalArgumentException("Threshold must be at least 1");
+
+		this.failureThreshold = failureThreshold;
+		this.policy = policy;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return true if a command may be sent. If so, success(), failure()
+	 *	or release() must be called once it is done.
+	 */
+	public boolean allow() {
+		synchronized(this) {
+			if(state == State.CLOSED)
+				return true;
+
+			if(state == State.HALF_OPEN) {
+				if(trialing)
+					return false;
+				trialing = true;
+				return true;
+			}
+
+			if(System.currentTimeMillis() < retryAt)
+				return false;
+
+			state = State.HALF_OPEN;
+			trialing = true;
+		}
+		fire(State.HALF_OPEN, 0);
+		return true;
+	}
+
+	/**
+	 * The command got a reply from telldusd.
+	 */
+	public void success() {
+		synchronized(this) {
+			trialing = false;
+			failures = 0;
+			opened = 0;
+			if(state == State.CLOSED)
+				return;
+			state = State.CLOSED;
+		}
+		fire(State.CLOSED, 0);
+	}
+
+	/**
+	 * The command could not connect to telldusd.
+	 */
+	public void failure() {
+		long retryIn;
+		synchronized(this) {
+			trialing = false;
+			failures++;
+			if(state == State.OPEN)
+				return;
+			if(state == State.CLOSED && failures < failureThreshold)
+				return;
+
+			// delay(1) is always 0, so the first open uses delay(2)
+			opened++;
+			retryIn = policy.delay(opened + 1);
+			retryAt = System.currentTimeMillis() + retryIn;
+			state = State.OPEN;
+		}
+		fire(State.OPEN, retryIn);
+	}
+
+	/**
+	 * The command ended without telling whether telldusd can be reached,
+	 * such as by timing out or being interrupted. Leaves the state as is,
+	 * but lets a new trial through if HALF_OPEN.
+	 */
+	public synchronized void release() {
+		trialing = false;
+	}
+
+	private void fire(State state, long retryIn) {
+		Listener l = listener;
+		if(l != null)
+			l.onStateChange(state, retryIn);
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return ms until the next trial is let through, 0 unless OPEN.
+	 */
+	public synchronized long getRetryIn() {
+		if(state != State.OPEN)
+			return 0;
+		return Math.max(0, retryAt - System.currentTimeMillis());
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+}
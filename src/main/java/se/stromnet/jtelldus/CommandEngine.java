@@ -0,0 +1,408 @@
+package se.stromnet.jtelldus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.stromnet.jtelldus.Protocol.ErrorCode;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes commands against telldusd's client socket.
+ *
+ * telldusd takes one message per connection, so every command runs on a
+ * connection of its own, taken from a SocketPool. Any number of threads may
+ * execute commands at the same time; at most maxConcurrent of them talk to
+ * telldusd at once, the rest wait for their turn.
+ *
+ * If telldusd supports it, a PipelinedConnection may be set, which is then
+ * used for all commands instead. Should it fail, or should telldusd stop
+ * replying on it for MAX_PIPELINE_TIMEOUTS commands in a row, the engine
+ * closes it and falls back to one connection per command.
+ *
+ * Every command has a deadline, covering the wait for its turn, connect,
+ * write and read. The connect is bounded by a Selector; a write or read
+ * still in progress at the deadline is failed by a timer closing the
+ * connection. Expired commands fail with ERROR_COMMUNICATING_SERVICE.
+ *
+ * With a CircuitBreaker set, commands fail with ERROR_CONNECTING_SERVICE
+ * without trying to connect while telldusd is known to be unreachable.
+ */
+public class CommandEngine {
+	private static final Logger log = LoggerFactory.getLogger(CommandEngine.class);
+
+	/** Timeouts in a row on the pipelined connection before it is given up */
+	public static final int MAX_PIPELINE_TIMEOUTS = 3;
+
+	private final SocketPool pool;
+	private final int maxConcurrent;
+	private final Semaphore permits;
+	private volatile PipelinedConnection pipeline;
+	private volatile long timeout;
+	private volatile CircuitBreaker breaker;
+	private final ScheduledThreadPoolExecutor timer;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger pipelineTimeouts = new AtomicInteger();
+	private final AtomicLong executed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param maxConcurrent Max number of commands sent at once, or 0 for no limit.
+	 */
+	public CommandEngine(SocketPool pool, int maxConcurrent) {
+		this(pool, maxConcurrent, null);
+	}
+
+	/**
+	 * @param threadFactory Factory for the timeout timer thread, or null
+	 *	for a regular daemon thread.
+	 */
+	public CommandEngine(SocketPool pool, int maxConcurrent, final ThreadFactory threadFactory) {
+		this.pool = pool;
+		this.maxConcurrent = maxConcurrent;
+		this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+
+		timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return Threads.newThread(threadFactory, r, "CommandEngine-timer", true);
+			}
+		});
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Fail commands right away while telldusd cannot be reached.
+	 *
+	 * @param breaker Breaker, or null to always try to connect.
+	 */
+	public void setCircuitBreaker(CircuitBreaker breaker) {
+		this.breaker = breaker;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * Set the default timeout for execute(Message).
+	 *
+	 * @param timeoutMillis Timeout in ms, or 0 to wait forever.
+	 */
+	public void setTimeout(long timeoutMillis) {
+		this.timeout = timeoutMillis;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Send a message and wait for the reply, within the default timeout.
+	 *
+	 * @return Buffer in write mode, holding the reply from position 0.
+	 */
+	public ByteBuffer execute(Message m) throws IOException {
+		return execute(m, timeout);
+	}
+
+	/**
+	 * Send a message and wait for the reply. If sending fails, it is
+	 * retried once on a new connection, within the same timeout.
+	 *
+	 * @param timeoutMillis Max time for the whole command, or 0 to wait forever.
+	 * @return Buffer in write mode, holding the reply from position 0.
+	 * @throws CommandException with the ErrorCode for the failure.
+	 */
+	public ByteBuffer execute(Message m, long timeoutMillis) throws IOException {
+		CircuitBreaker breaker = this.breaker;
+		if(breaker == null)
+			return executeWithin(m, timeoutMillis);
+
+		if(!breaker.allow()) {
+			failed.incrementAndGet();
+			rejected.incrementAndGet();
+			throw new CommandException(ErrorCode.ERROR_CONNECTING_SERVICE,
+					"telldusd is unreachable, next try in "+ breaker.getRetryIn() +"ms");
+		}
+
+		boolean replied = false;
+		boolean unreachable = false;
+		try {
+			ByteBuffer reply = executeWithin(m, timeoutMillis);
+			replied = true;
+			return reply;
+		} catch(CommandException ex) {
+			unreachable = ex.getErrorCode() == ErrorCode.ERROR_CONNECTING_SERVICE;
+			// Malformed, but still a reply
+			replied = ex.getErrorCode() == ErrorCode.ERROR_UNKNOWN_RESPONSE;
+			throw ex;
+		} finally {
+			if(replied)
+				breaker.success();
+			else if(unreachable)
+				breaker.failure();
+			else
+				breaker.release();
+		}
+	}
+
+	private ByteBuffer executeWithin(Message m, long timeoutMillis) throws IOException {
+		long deadline = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+
+		if(permits != null) {
+			try {
+				if(deadline == 0)
+					permits.acquire();
+				else if(!permits.tryAcquire(remaining(deadline), TimeUnit.NANOSECONDS))
+					throw timedOut("Timed out waiting to send command");
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting to send command");
+			} catch(CommandException ex) {
+				failed.incrementAndGet();
+				throw ex;
+			}
+		}
+
+		inFlight.incrementAndGet();
+		try {
+			ByteBuffer reply;
+			try {
+				reply = send(m, deadline);
+			} catch(IOException ex) {
+				if(isTimeout(ex) || ex instanceof InterruptedIOException)
+					throw ex;
+
+				// Retry once
+				reply = send(m, deadline);
+			}
+			executed.incrementAndGet();
+			return reply;
+		} catch(IOException ex) {
+			failed.incrementAndGet();
+			if(ex instanceof CommandException || ex instanceof InterruptedIOException)
+				throw ex;
+			throw new CommandException(CommandException.errorCodeOf(ex), ex.getMessage(), ex);
+		} finally {
+			inFlight.decrementAndGet();
+			if(permits != null)
+				permits.release();
+		}
+	}
+
+	/**
+	 * @return ns left until deadline, at least 1.
+	 * @throws CommandException if the deadline has passed.
+	 */
+	private long remaining(long deadline) throws CommandException {
+		long left = deadline - System.nanoTime();
+		if(left <= 0)
+			throw timedOut("Command timed out");
+		return left;
+	}
+
+	private static long toMillis(long nanos) {
+		// Round up, 0 would mean no timeout
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + 999999));
+	}
+
+	private CommandException timedOut(String message) {
+		timedOut.incrementAndGet();
+		return new CommandException(ErrorCode.ERROR_COMMUNICATING_SERVICE, message);
+	}
+
+	private static boolean isTimeout(IOException ex) {
+		return ex instanceof CommandException
+				&& ((CommandException) ex).getErrorCode() == ErrorCode.ERROR_COMMUNICATING_SERVICE;
+	}
+
+	private ByteBuffer send(Message m, long deadline) throws IOException {
+		PipelinedConnection p = pipeline;
+		if(p != null) {
+			long timeoutMillis = deadline == 0 ? 0 : toMillis(remaining(deadline));
+			try {
+				ByteBuffer reply = p.execute(m, timeoutMillis);
+				pipelineTimeouts.set(0);
+				return reply;
+			} catch(IOException ex) {
+				if(p.isOpen()) {
+					if(!isTimeout(ex))
+						throw ex;
+
+					timedOut.incrementAndGet();
+					// The connection is up, but telldusd may have stopped reading it
+					if(pipelineTimeouts.incrementAndGet() >= MAX_PIPELINE_TIMEOUTS) {
+						log.warn("No reply on pipelined connection for "+ MAX_PIPELINE_TIMEOUTS
+								+" commands in a row, falling back to one connection per command");
+						dropPipeline(p);
+					}
+					throw ex;
+				}
+
+				log.warn("Pipelined connection lost, falling back to one connection per command");
+				dropPipeline(p);
+			}
+		}
+
+		final TelldusSocket socket = pool.acquire(deadline == 0 ? 0 : toMillis(remaining(deadline)));
+		final AtomicBoolean expired = new AtomicBoolean();
+		ScheduledFuture<?> abort = null;
+		try {
+			if(deadline != 0) {
+				abort = timer.schedule(new Runnable() {
+					public void run() {
+						expired.set(true);
+						socket.abort();
+					}
+				}, remaining(deadline), TimeUnit.NANOSECONDS);
+			}
+
+			socket.write(m);
+			return readReply(socket);
+		} catch(IOException ex) {
+			if(expired.get())
+				throw timedOut("Command timed out");
+			throw ex;
+		} finally {
+			if(abort != null)
+				abort.cancel(false);
+
+			// Always disconnect.
+			try {
+				socket.disconnect();
+			} catch(IOException ex) {
+			}
+		}
+	}
+
+	/**
+	 * Read one complete reply token from the socket. The reply may arrive in
+	 * several reads; the decoder picks up where the last one ended.
+	 *
+	 * @return Buffer in write mode, holding the reply from position 0.
+	 */
+	static ByteBuffer readReply(TelldusSocket socket) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(2000);
+		MessageDecoder decoder = new MessageDecoder();
+		int decoded = 0;
+		while(true) {
+			if(!bb.hasRemaining()) {
+				// Reply larger than buffer (long sensor lists etc); grow it
+				ByteBuffer larger = ByteBuffer.allocate(bb.capacity() * 2);
+				bb.flip();
+				larger.put(bb);
+				bb = larger;
+			}
+
+			if(socket.read(bb) < 0)
+				throw new IOException("Connection closed by telldusd");
+
+			bb.flip();
+			bb.position(decoded);
+			int token = decoder.next(bb);
+			decoded = bb.position();
+
+			// Back to write mode, keeping everything we've read.
+			bb.position(bb.limit());
+			bb.limit(bb.capacity());
+
+			if(token == MessageDecoder.ERROR)
+				throw new CommandException(ErrorCode.ERROR_UNKNOWN_RESPONSE, "Malformed reply from telldusd");
+
+			if(token != MessageDecoder.NEED_MORE)
+				return bb;
+		}
+	}
+
+	private synchronized void dropPipeline(PipelinedConnection p) {
+		if(pipeline == p)
+			pipeline = null;
+		p.close();
+	}
+
+	/**
+	 * Send all commands on the given connection, see PipelinedConnection.open().
+	 *
+	 * @param pipeline Connection, or null for one connection per command.
+	 */
+	public synchronized void setPipeline(PipelinedConnection pipeline) {
+		PipelinedConnection old = this.pipeline;
+		this.pipeline = pipeline;
+		pipelineTimeouts.set(0);
+		if(old != null && old != pipeline)
+			old.close();
+	}
+
+	/**
+	 * @return true if commands are sent on a pipelined connection.
+	 */
+	public boolean isPipelined() {
+		return pipeline != null;
+	}
+
+	public void close() {
+		setPipeline(null);
+		timer.shutdownNow();
+		pool.close();
+	}
+
+	public SocketPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * @return max number of commands sent at once, 0 if unlimited.
+	 */
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	/**
+	 * @return number of commands currently talking to telldusd.
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return approximate number of threads waiting for their turn.
+	 */
+	public int getWaiting() {
+		return permits != null ? permits.getQueueLength() : 0;
+	}
+
+	public long getExecutedCount() {
+		return executed.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * @return number of commands which failed because their deadline passed.
+	 */
+	public long getTimedOutCount() {
+		return timedOut.get();
+	}
+
+	/**
+	 * @return number of commands failed right away by the circuit breaker.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+}
@@ -0,0 +1,38 @@
+package se.stromnet.jtelldus;
+
+import se.stromnet.jtelldus.Protocol.ErrorCode;
+
+import java.io.IOException;
+
+/**
+ * A command could not be executed. Carries the ErrorCode the telldus
+ * client library would have returned for the same failure.
+ */
+public class CommandException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private final ErrorCode errorCode;
+
+	public CommandException(ErrorCode errorCode, String message) {
+		super(message);
+		this.errorCode = errorCode;
+	}
+
+	public CommandException(ErrorCode errorCode, String message, Throwable cause) {
+		super(message, cause);
+		this.errorCode = errorCode;
+	}
+
+	public ErrorCode getErrorCode() {
+		return errorCode;
+	}
+
+	/**
+	 * @return the error code for any failure of a command.
+	 */
+	public static ErrorCode errorCodeOf(IOException ex) {
+		if(ex instanceof CommandException)
+			return ((CommandException) ex).getErrorCode();
+		return ErrorCode.ERROR_COMMUNICATING_SERVICE;
+	}
+}
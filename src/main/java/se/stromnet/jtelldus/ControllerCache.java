@@ -0,0 +1,289 @@
+package se.stromnet.jtelldus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.stromnet.jtelldus.Protocol.ChangeEvent;
+import se.stromnet.jtelldus.Protocol.ChangeType;
+import se.stromnet.jtelldus.TelldusInterface.Controller;
+import se.stromnet.jtelldus.event.TDConnectionEvent;
+import se.stromnet.jtelldus.event.TDControllerEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory copy of telldusd's controller list and of controller values
+ * such as serial and firmware.
+ *
+ * The list is loaded on first use, and each value the first time it is
+ * asked for. TDControllerEvents keep both current: a changed name,
+ * availability or firmware is applied from the event's new value without
+ * asking telldusd, a removed controller is dropped, and an added one
+ * makes the list load again. Everything is dropped when the event socket
+ * reconnects, since changes may have been missed.
+ *
+ * Events are applied synchronously by the event reader, so the list is
+ * never loaded while holding the lock events take. A list loaded while
+ * an event changed things is not stored, and is loaded again.
+ *
+ * Created by TelldusInterface when TelldusConfig.setControllerCache() is
+ * set.
+ */
+public class ControllerCache implements TDControllerEvent.Listener, TDConnectionEvent.Listener {
+	private static final Logger log = LoggerFactory.getLogger(ControllerCache.class);
+
+	static final int MAX_LOAD_ATTEMPTS = 3;
+
+	private final Requester requester;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// Unmodifiable; null until loaded, or when it must be loaded again
+	private volatile List<Controller> controllers;
+	// Bumped by every change to the list; guarded by lock
+	private int version;
+
+	// controller id -> value name -> value
+	private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, String>> values =
+			new ConcurrentHashMap<Integer, ConcurrentHashMap<String, String>>();
+
+	private final AtomicLong loads = new AtomicLong();
+
+	ControllerCache(Requester requester) {
+		this.requester = requester;
+	}
+
+	/**
+	 * @return all controllers, as tdController() would.
+	 */
+	public List<Controller> getControllers() throws IOException {
+		List<Controller> l = controllers;
+		if(l != null)
+			return l;
+
+		for(int attempt = 1; ; attempt++) {
+			int before;
+			lock.lock();
+			try {
+				if(controllers != null)
+					return controllers;
+				before = version;
+			} finally {
+				lock.unlock();
+			}
+
+			List<Controller> loaded = TelldusInterface.parseControllers(
+					requester.requestString(Message.direct("tdController")));
+			if(loaded == null)
+				throw new IOException("No controller list from telldusd");
+			l = Collections.unmodifiableList(new ArrayList<Controller>(loaded));
+			loads.incrementAndGet();
+
+			lock.lock();
+			try {
+				// Loaded by someone else meanwhile
+				if(controllers != null)
+					return controllers;
+				if(version == before) {
+					controllers = l;
+					return l;
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			// Changed while we asked; fresh enough for the caller, but not stored
+			if(attempt == MAX_LOAD_ATTEMPTS)
+				return l;
+			log.debug("Controllers changed while loading, loading again");
+		}
+	}
+
+	/**
+	 * @return the controller, or null if there is none with that id.
+	 */
+	public Controller getController(int controllerId) throws IOException {
+		for(Controller c: getControllers()) {
+			if(c.getId() == controllerId)
+				return c;
+		}
+		return null;
+	}
+
+	/**
+	 * @return whether the controller is connected; false if unknown.
+	 */
+	public boolean isAvailable(int controllerId) throws IOException {
+		Controller c = getController(controllerId);
+		return c != null && c.isAvailable();
+	}
+
+	/**
+	 * Same as tdControllerValue(controllerId, name).
+	 */
+	public String getValue(int controllerId, String name) throws IOException {
+		ConcurrentHashMap<String, String> v = values(controllerId);
+		String value = v.get(name);
+		if(value != null)
+			return value;
+
+		Message m = Message.direct("tdControllerValue");
+		m.addArgument(controllerId);
+		m.addArgument(name);
+		value = requester.requestString(m);
+
+		// Don't store a value changed or removed while we asked
+		if(values.get(controllerId) == v)
+			v.putIfAbsent(name, value);
+		return value;
+	}
+
+	/**
+	 * Drop everything; it is loaded again when next asked for.
+	 */
+	public void invalidate() {
+		lock.lock();
+		try {
+			controllers = null;
+			values.clear();
+			version++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of times the controller list has been loaded.
+	 */
+	public long getLoadCount() {
+		return loads.get();
+	}
+
+	public void onTDControllerEvent(TDControllerEvent event) {
+		ChangeEvent change = event.getChangeEvent();
+		if(change == ChangeEvent.DEVICE_REMOVED)
+			removed(event.getControllerId());
+		else if(change == ChangeEvent.DEVICE_ADDED)
+			invalidateList();
+		else
+			changed(event.getControllerId(), event.getChangeType(), event.getNewValue());
+	}
+
+	public void onTDConnectionEvent(TDConnectionEvent event) {
+		if(event.getChannel() == TDConnectionEvent.Channel.EVENTS
+				&& event.getState() == TDConnectionEvent.State.UP)
+			invalidate();
+	}
+
+	/**
+	 * Apply a value set on a controller.
+	 */
+	void valueSet(int controllerId, String name, String value) {
+		if("name".equals(name))
+			changed(controllerId, ChangeType.CHANGE_NAME, value);
+		else
+			values(controllerId).put(name, value);
+	}
+
+	void removed(int controllerId) {
+		lock.lock();
+		try {
+			version++;
+			values.remove(controllerId);
+			List<Controller> l = controllers;
+			if(l == null)
+				return;
+
+			List<Controller> changed = new ArrayList<Controller>(l.size());
+			for(Controller c: l) {
+				if(c.getId() != controllerId)
+					changed.add(c);
+			}
+			controllers = Collections.unmodifiableList(changed);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void changed(int controllerId, ChangeType type, String newValue) {
+		lock.lock();
+		try {
+			version++;
+			if(type == ChangeType.CHANGE_FIRMWARE) {
+				values(controllerId).put("firmware", newValue);
+				return;
+			}
+
+			if(type != ChangeType.CHANGE_NAME && type != ChangeType.CHANGE_AVAILABLE) {
+				// Don't know what changed; ask again
+				values.remove(controllerId);
+				controllers = null;
+				return;
+			}
+
+			if(type == ChangeType.CHANGE_NAME)
+				values(controllerId).put("name", newValue);
+
+			List<Controller> l = controllers;
+			if(l == null)
+				return;
+
+			List<Controller> changed = new ArrayList<Controller>(l.size());
+			boolean found = false;
+			for(Controller c: l) {
+				if(c.getId() == controllerId) {
+					found = true;
+					if(type == ChangeType.CHANGE_NAME)
+						c = new Controller(c.getId(), c.getType(), newValue, c.isAvailable());
+					else
+						c = new Controller(c.getId(), c.getType(), c.getName(), "1".equals(newValue));
+				}
+				changed.add(c);
+			}
+
+			if(found) {
+				controllers = Collections.unmodifiableList(changed);
+			} else {
+				log.debug("Change for unknown controller "+ controllerId +", reloading list");
+				controllers = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void invalidateList() {
+		lock.lock();
+		try {
+			controllers = null;
+			version++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private ConcurrentHashMap<String, String> values(int controllerId) {
+		ConcurrentHashMap<String, String> v = values.get(controllerId);
+		if(v == null) {
+			v = new ConcurrentHashMap<String, String>();
+			ConcurrentHashMap<String, String> raced = values.putIfAbsent(controllerId, v);
+			if(raced != null)
+				v = raced;
+		}
+		return v;
+	}
+
+	@Override
+	public String toString() {
+		List<Controller> l = controllers;
+		return "ControllerCache{" +
+				"controllers=" + (l == null ? "not loaded" : String.valueOf(l.size())) +
+				", loads=" + getLoadCount() +
+				'}';
+	}
+}
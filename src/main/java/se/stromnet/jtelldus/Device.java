@@ -0,0 +1,83 @@
+package se.stromnet.jtelldus;
+
+import se.stromnet.jtelldus.Protocol.DeviceType;
+
+/**
+ * The attributes of one device, as loaded by DeviceRegistry. Immutable;
+ * a change gives a new instance.
+ */
+public class Device {
+	private final int id;
+	private final String name;
+	private final DeviceType type;
+	private final String protocol;
+	private final String model;
+	private final int methods;
+
+	/**
+	 * @param methods Supported methods, as returned by tdMethods() with all
+	 *	methods supported by the caller.
+	 */
+	public Device(int id, String name, DeviceType type, String protocol, String model, int methods) {
+		this.id = id;
+		this.name = name;
+		this.type = type;
+		this.protocol = protocol;
+		this.model = model;
+		this.methods = methods;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the type, or null if telldusd reported an unknown type.
+	 */
+	public DeviceType getType() {
+		return type;
+	}
+
+	public String getProtocol() {
+		return protocol;
+	}
+
+	public String getModel() {
+		return model;
+	}
+
+	/**
+	 * @return Protocol.DeviceMethod codes OR'ed together.
+	 */
+	public int getMethods() {
+		return methods;
+	}
+
+	Device withName(String name) {
+		return new Device(id, name, type, protocol, model, methods);
+	}
+
+	Device withProtocol(String protocol, int methods) {
+		return new Device(id, name, type, protocol, model, methods);
+	}
+
+	Device withModel(String model, int methods) {
+		return new Device(id, name, type, protocol, model, methods);
+	}
+
+	@Override
+	public String toString() {
+		return "Device{" +
+				"id=" + id +
+				", name='" + name + '\'' +
+				", type=" + type +
+				", protocol='" + protocol + '\'' +
+				", model='" + model + '\'' +
+				", methods=" + methods +
+				'}';
+	}
+}
@@ -0,0 +1,276 @@
+package se.stromnet.jtelldus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.stromnet.jtelldus.Protocol.ChangeEvent;
+import se.stromnet.jtelldus.event.TDConnectionEvent;
+import se.stromnet.jtelldus.event.TDDeviceChangeEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory copy of protocol parameters of devices, such as house and
+ * unit, as returned by tdGetDeviceParameter().
+ *
+ * telldusd cannot list the parameters a device has, so prefetch() asks
+ * for a given set of names on every device, over several connections in
+ * parallel. Other parameters are loaded the first time they are asked for.
+ *
+ * A parameter telldusd does not have is stored as absent, so asking for it
+ * again with a default value needs no round trip. To tell absent from set,
+ * telldusd is asked with a default value no parameter would have.
+ *
+ * A device's parameters are dropped when a TDDeviceChangeEvent says it
+ * changed or was removed. Everything is dropped when the event socket
+ * comes back up after having been down, and the prefetch set with
+ * setPrefetch() is run again.
+ *
+ * Created by TelldusInterface when TelldusConfig.setDeviceParameterStore()
+ * is set.
+ */
+public class DeviceParameterStore implements TDDeviceChangeEvent.Listener, TDConnectionEvent.Listener {
+	private static final Logger log = LoggerFactory.getLogger(DeviceParameterStore.class);
+
+	/** Parameters used by the common protocols. */
+	public static final String[] COMMON_PARAMETERS = {
+		"house", "unit", "code", "system", "units", "fade", "devices"
+	};
+
+	// Default sent to telldusd, returned only if the parameter is absent
+	static final String ABSENT_DEFAULT = "jtelldus:absent";
+	// Stored for absent parameters; compared by identity
+	private static final String ABSENT = new String("absent");
+
+	private final Requester requester;
+
+	// device id -> parameter name -> value or ABSENT
+	private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, String>> parameters =
+			new ConcurrentHashMap<Integer, ConcurrentHashMap<String, String>>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private String[] prefetchNames;
+	private int prefetchParallelism;
+	private ThreadFactory threadFactory;
+	// Set when the event socket goes down; changes may be missed until up
+	private volatile boolean disconnected;
+
+	DeviceParameterStore(Requester requester) {
+		this.requester = requester;
+	}
+
+	/**
+	 * Same as tdGetDeviceParameter(id, name, defaultValue).
+	 */
+	public String get(int deviceId, String name, String defaultValue) throws IOException {
+		ConcurrentHashMap<String, String> p = parameters(deviceId);
+		String value = p.get(name);
+		if(value != null) {
+			hits.incrementAndGet();
+			return value == ABSENT ? defaultValue : value;
+		}
+
+		misses.incrementAndGet();
+		value = load(deviceId, name);
+		// Don't store a value the device may have changed under
+		if(parameters.get(deviceId) == p)
+			p.putIfAbsent(name, value);
+		return value == ABSENT ? defaultValue : value;
+	}
+
+	/**
+	 * @return whether the parameter is stored, as set or absent.
+	 */
+	public boolean contains(int deviceId, String name) {
+		ConcurrentHashMap<String, String> p = parameters.get(deviceId);
+		return p != null && p.containsKey(name);
+	}
+
+	/**
+	 * Load the given parameters of every device, using up to parallelism
+	 * connections at once.
+	 *
+	 * @param threadFactory Factory for the worker threads, or null for
+	 *	regular daemon threads.
+	 * @return number of parameters loaded.
+	 */
+	public int prefetch(String[] names, int parallelism, ThreadFactory threadFactory) throws IOException {
+		int count = requester.requestInt(Message.direct("tdGetNumberOfDevices"));
+		List<Integer> ids = new ArrayList<Integer>(count);
+		for(int i = 0; i < count; i++) {
+			Message m = Message.direct("tdGetDeviceId");
+			m.addArgument(i);
+			int id = requester.requestInt(m);
+			if(id >= 0)
+				ids.add(id);
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(ids.size() * names.length);
+		for(final Integer id: ids) {
+			for(final String name: names) {
+				tasks.add(new Callable<Void>() {
+					public Void call() throws IOException {
+						ConcurrentHashMap<String, String> p = parameters(id);
+						String value = load(id, name);
+						// Never overwrite a value set meanwhile
+						if(parameters.get(id) == p)
+							p.putIfAbsent(name, value);
+						return null;
+					}
+				});
+			}
+		}
+
+		ExecutorService pool = Threads.newPool(threadFactory, Math.max(1, parallelism), getClass().getSimpleName());
+		try {
+			IOException failed = null;
+			for(Future<Void> f: pool.invokeAll(tasks)) {
+				try {
+					f.get();
+				} catch(ExecutionException ex) {
+					if(failed == null)
+						failed = ex.getCause() instanceof IOException
+								? (IOException) ex.getCause()
+								: new IOException(ex.getCause());
+				}
+			}
+			if(failed != null)
+				throw failed;
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while prefetching", ex);
+		} finally {
+			pool.shutdownNow();
+		}
+
+		log.debug("Prefetched "+ tasks.size() +" parameters of "+ ids.size() +" devices");
+		return tasks.size();
+	}
+
+	/**
+	 * Set what startPrefetch() loads, also after every reconnect.
+	 */
+	void setPrefetch(String[] names, int parallelism, ThreadFactory threadFactory) {
+		this.prefetchNames = names;
+		this.prefetchParallelism = parallelism;
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * Run prefetch() in the background, if setPrefetch() was given any
+	 * names. Lookups made meanwhile simply go to telldusd.
+	 */
+	void startPrefetch() {
+		final String[] names = prefetchNames;
+		if(names == null || names.length == 0)
+			return;
+
+		Threads.newThread(threadFactory, new Runnable() {
+			public void run() {
+				try {
+					prefetch(names, prefetchParallelism, threadFactory);
+				} catch(IOException ex) {
+					log.warn("Failed to prefetch device parameters: "+ ex.getMessage());
+				}
+			}
+		}, "DeviceParameterPrefetch", true).start();
+	}
+
+	/**
+	 * Store a parameter set by this client.
+	 */
+	void parameterSet(int deviceId, String name, String value) {
+		parameters(deviceId).put(name, value == null || value.length() == 0 ? ABSENT : value);
+	}
+
+	/**
+	 * Drop the parameters of a device.
+	 */
+	public void invalidate(int deviceId) {
+		parameters.remove(deviceId);
+	}
+
+	public void invalidate() {
+		parameters.clear();
+	}
+
+	/**
+	 * @return number of lookups answered from memory.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of lookups which had to ask telldusd.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public void onTDDeviceChangeEvent(TDDeviceChangeEvent event) {
+		ChangeEvent change = event.getChangeEvent();
+		if(change == ChangeEvent.DEVICE_CHANGED || change == ChangeEvent.DEVICE_REMOVED)
+			invalidate(event.getDeviceId());
+	}
+
+	public void onTDConnectionEvent(TDConnectionEvent event) {
+		if(event.getChannel() != TDConnectionEvent.Channel.EVENTS)
+			return;
+
+		if(event.getState() == TDConnectionEvent.State.DOWN) {
+			disconnected = true;
+		} else if(event.getState() == TDConnectionEvent.State.UP && disconnected) {
+			// The first UP changes nothing; only one after a DOWN may have missed events
+			disconnected = false;
+			invalidate();
+			startPrefetch();
+		}
+	}
+
+	/**
+	 * @return the value, or ABSENT.
+	 */
+	private String load(int deviceId, String name) throws IOException {
+		Message m = Message.direct("tdGetDeviceParameter");
+		m.addArgument(deviceId);
+		m.addArgument(name);
+		m.addArgument(ABSENT_DEFAULT);
+		String value = requester.requestString(m);
+		// telldusd also returns the default for parameters set to ""
+		if(value.equals(ABSENT_DEFAULT) || value.length() == 0)
+			return ABSENT;
+		return value;
+	}
+
+	private ConcurrentHashMap<String, String> parameters(int deviceId) {
+		ConcurrentHashMap<String, String> p = parameters.get(deviceId);
+		if(p == null) {
+			p = new ConcurrentHashMap<String, String>();
+			ConcurrentHashMap<String, String> raced = parameters.putIfAbsent(deviceId, p);
+			if(raced != null)
+				p = raced;
+		}
+		return p;
+	}
+
+	@Override
+	public String toString() {
+		return "DeviceParameterStore{" +
+				"devices=" + parameters.size() +
+				", hits=" + getHitCount() +
+				", misses=" + getMissCount() +
+				'}';
+	}
+}
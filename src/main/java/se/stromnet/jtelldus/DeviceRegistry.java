@@ -0,0 +1,508 @@
+package se.stromnet.jtelldus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.stromnet.jtelldus.Protocol.ChangeEvent;
+import se.stromnet.jtelldus.Protocol.ChangeType;
+import se.stromnet.jtelldus.Protocol.DeviceMethod;
+import se.stromnet.jtelldus.Protocol.DeviceType;
+import se.stromnet.jtelldus.event.TDConnectionEvent;
+import se.stromnet.jtelldus.event.TDDeviceChangeEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory copy of telldusd's device list and the attributes of every
+ * device.
+ *
+ * Everything is loaded from telldusd on first use, after which reads are
+ * served from memory. The copy is kept current by TDDeviceChangeEvents:
+ * an added device is loaded, a removed one dropped, and a changed one has
+ * only the changed attribute reloaded. Since changes may have been missed
+ * while the event socket was down, everything is loaded again on the next
+ * read after it reconnects, as well as after a failed update.
+ *
+ * The loaded state is immutable and replaced as a whole on each change, so
+ * reads never block on a load or update in progress once loaded. Updates
+ * are serialized by a lock. A full load asks for the devices in parallel,
+ * and does not hold that lock, so events are not held up while it runs;
+ * a load during which an event changed something is started over.
+ *
+ * Created by TelldusInterface when TelldusConfig.setDeviceCache() is set.
+ */
+public class DeviceRegistry implements TDDeviceChangeEvent.Listener, TDConnectionEvent.Listener {
+	private static final Logger log = LoggerFactory.getLogger(DeviceRegistry.class);
+
+	/** Every DeviceMethod; the mask Device.getMethods() is loaded with. */
+	static final int ALL_METHODS;
+	static {
+		int m = 0;
+		for(DeviceMethod dm: DeviceMethod.values())
+			m |= dm.code();
+		ALL_METHODS = m;
+	}
+
+	static final int MAX_LOAD_ATTEMPTS = 3;
+
+	private final Requester requester;
+	private final int parallelism;
+	private final ThreadFactory threadFactory;
+	// Guards updates of state
+	private final ReentrantLock lock = new ReentrantLock();
+	// Lets one thread at a time do a full load
+	private final ReentrantLock loadLock = new ReentrantLock();
+	// Bumped by every update; guarded by lock
+	private int version;
+
+	// null until loaded, or when a full load is needed
+	private volatile Snapshot state;
+
+	// tdMethods() results for other masks than ALL_METHODS, by id << 32 | mask
+	private final ConcurrentHashMap<Long, Integer> methods = new ConcurrentHashMap<Long, Integer>();
+
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong updates = new AtomicLong();
+
+	private static class Snapshot {
+		// Device ids in telldusd's index order, which is id order
+		final int[] ids;
+		final Map<Integer, Device> devices;
+
+		Snapshot(int[] ids, Map<Integer, Device> devices) {
+			this.ids = ids;
+			this.devices = devices;
+		}
+	}
+
+	DeviceRegistry(Requester requester) {
+		this(requester, 1, null);
+	}
+
+	/**
+	 * @param parallelism Max number of commands running at once during a
+	 *	full load.
+	 * @param threadFactory Factory for the load threads, or null for
+	 *	regular daemon threads.
+	 */
+	DeviceRegistry(Requester requester, int parallelism, ThreadFactory threadFactory) {
+		this.requester = requester;
+		this.parallelism = Math.max(1, parallelism);
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * Load all devices in the background, so that the first read need not
+	 * wait for it.
+	 */
+	void startLoad() {
+		Threads.newThread(threadFactory, new Runnable() {
+			public void run() {
+				try {
+					state();
+				} catch(IOException ex) {
+					log.warn("Failed to load devices: "+ ex.getMessage());
+				}
+			}
+		}, getClass().getSimpleName(), true).start();
+	}
+
+	/**
+	 * @return all devices, in telldusd's index order.
+	 */
+	public List<Device> getDevices() throws IOException {
+		Snapshot s = state();
+		List<Device> list = new ArrayList<Device>(s.ids.length);
+		for(int id: s.ids)
+			list.add(s.devices.get(id));
+		return Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * @return the device, or null if there is no device with that id.
+	 */
+	public Device getDevice(int id) throws IOException {
+		return state().devices.get(id);
+	}
+
+	public int getNumberOfDevices() throws IOException {
+		return state().ids.length;
+	}
+
+	/**
+	 * @return the id of the device at index, or -1 if out of range.
+	 */
+	public int getDeviceId(int index) throws IOException {
+		int[] ids = state().ids;
+		if(index < 0 || index >= ids.length)
+			return -1;
+		return ids[index];
+	}
+
+	/**
+	 * Same as tdMethods(id, methodsSupported). The result for each mask is
+	 * loaded once and kept until the device's protocol or model changes.
+	 *
+	 * @return the supported methods, or -1 if there is no device with that id.
+	 */
+	public int getMethods(int id, int methodsSupported) throws IOException {
+		Device d = getDevice(id);
+		if(d == null)
+			return -1;
+		if(methodsSupported == ALL_METHODS)
+			return d.getMethods();
+
+		Long key = Long.valueOf(((long) id << 32) | (methodsSupported & 0xffffffffL));
+		Integer m = methods.get(key);
+		if(m != null)
+			return m.intValue();
+
+		Snapshot s = state;
+		int loaded = loadMethods(id, methodsSupported);
+		// Don't store a result the device may have changed under
+		if(state == s)
+			methods.put(key, Integer.valueOf(loaded));
+		return loaded;
+	}
+
+	/**
+	 * Drop everything; the next read loads all devices again.
+	 */
+	public void invalidate() {
+		lock.lock();
+		try {
+			state = null;
+			methods.clear();
+			version++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isLoaded() {
+		return state != null;
+	}
+
+	/**
+	 * @return number of times all devices have been loaded.
+	 */
+	public long getLoadCount() {
+		return loads.get();
+	}
+
+	/**
+	 * @return number of changes applied without a full load.
+	 */
+	public long getUpdateCount() {
+		return updates.get();
+	}
+
+	public void onTDDeviceChangeEvent(TDDeviceChangeEvent event) {
+		ChangeEvent change = event.getChangeEvent();
+		if(change == null || change == ChangeEvent.DEVICE_STATE_CHANGED)
+			return;
+
+		switch(change) {
+			case DEVICE_ADDED:
+				added(event.getDeviceId());
+				break;
+			case DEVICE_REMOVED:
+				removed(event.getDeviceId());
+				break;
+			default:
+				changed(event.getDeviceId(), event.getChangeType());
+				break;
+		}
+	}
+
+	public void onTDConnectionEvent(TDConnectionEvent event) {
+		// Changes made while we were disconnected were never seen
+		if(event.getChannel() == TDConnectionEvent.Channel.EVENTS
+				&& event.getState() == TDConnectionEvent.State.UP)
+			invalidate();
+	}
+
+	/**
+	 * Load a device which has been added.
+	 */
+	void added(int id) {
+		lock.lock();
+		try {
+			version++;
+			Snapshot s = state;
+			if(s == null)
+				return;
+			state = put(s, loadDevice(id));
+			updates.incrementAndGet();
+		} catch(IOException ex) {
+			failedUpdate(id, ex);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drop a device which has been removed.
+	 */
+	void removed(int id) {
+		lock.lock();
+		try {
+			version++;
+			Snapshot s = state;
+			if(s == null || !s.devices.containsKey(id))
+				return;
+
+			int[] ids = new int[s.ids.length - 1];
+			int n = 0;
+			for(int i: s.ids) {
+				if(i != id)
+					ids[n++] = i;
+			}
+
+			Map<Integer, Device> devices = new HashMap<Integer, Device>(s.devices);
+			devices.remove(id);
+			state = new Snapshot(ids, devices);
+			forgetMethods(id);
+			updates.incrementAndGet();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reload what changed on a device.
+	 *
+	 * @param type What changed, or null to reload everything.
+	 */
+	void changed(int id, ChangeType type) {
+		lock.lock();
+		try {
+			version++;
+			Snapshot s = state;
+			if(s == null)
+				return;
+
+			Device d = s.devices.get(id);
+			if(d == null || type == null) {
+				d = loadDevice(id);
+			} else {
+				switch(type) {
+					case CHANGE_NAME:
+						d = d.withName(requestString("tdGetName", id));
+						break;
+					case CHANGE_PROTOCOL:
+						d = d.withProtocol(requestString("tdGetProtocol", id), loadMethods(id, ALL_METHODS));
+						break;
+					case CHANGE_MODEL:
+						d = d.withModel(requestString("tdGetModel", id), loadMethods(id, ALL_METHODS));
+						break;
+					default:
+						d = loadDevice(id);
+						break;
+				}
+			}
+
+			state = put(s, d);
+			forgetMethods(id);
+			updates.incrementAndGet();
+		} catch(IOException ex) {
+			failedUpdate(id, ex);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Store a name set by this client, saving the reload the change event
+	 * would otherwise cause.
+	 */
+	void nameSet(int id, String name) {
+		lock.lock();
+		try {
+			version++;
+			Snapshot s = state;
+			if(s == null)
+				return;
+			Device d = s.devices.get(id);
+			if(d != null)
+				state = put(s, d.withName(name));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void failedUpdate(int id, IOException ex) {
+		log.warn("Failed to update device "+ id +", reloading all devices on next use: "+ ex.getMessage());
+		state = null;
+		methods.clear();
+	}
+
+	private void forgetMethods(int id) {
+		for(Iterator<Long> i = methods.keySet().iterator(); i.hasNext(); ) {
+			if((int) (i.next().longValue() >>> 32) == id)
+				i.remove();
+		}
+	}
+
+	/**
+	 * @return s with d added or replaced.
+	 */
+	private static Snapshot put(Snapshot s, Device d) {
+		int[] ids = s.ids;
+		if(!s.devices.containsKey(d.getId())) {
+			int at = Arrays.binarySearch(ids, d.getId());
+			ids = new int[s.ids.length + 1];
+			int pos = -at - 1;
+			System.arraycopy(s.ids, 0, ids, 0, pos);
+			ids[pos] = d.getId();
+			System.arraycopy(s.ids, pos, ids, pos + 1, s.ids.length - pos);
+		}
+
+		Map<Integer, Device> devices = new HashMap<Integer, Device>(s.devices);
+		devices.put(d.getId(), d);
+		return new Snapshot(ids, devices);
+	}
+
+	private Snapshot state() throws IOException {
+		Snapshot s = state;
+		if(s != null)
+			return s;
+
+		loadLock.lock();
+		try {
+			for(int attempt = 1; ; attempt++) {
+				int before;
+				lock.lock();
+				try {
+					if(state != null)
+						return state;
+					before = version;
+				} finally {
+					lock.unlock();
+				}
+
+				s = load();
+
+				lock.lock();
+				try {
+					if(version == before) {
+						state = s;
+						methods.clear();
+						return s;
+					}
+				} finally {
+					lock.unlock();
+				}
+
+				// Changed while loading; fresh enough for the caller, but not stored
+				if(attempt == MAX_LOAD_ATTEMPTS)
+					return s;
+				log.debug("Devices changed while loading, loading again");
+			}
+		} finally {
+			loadLock.unlock();
+		}
+	}
+
+	private Snapshot load() throws IOException {
+		int count = requester.requestInt(Message.direct("tdGetNumberOfDevices"));
+		ExecutorService pool = Threads.newPool(threadFactory, parallelism, getClass().getSimpleName());
+		try {
+			List<Future<Integer>> ids = new ArrayList<Future<Integer>>(count);
+			for(int i = 0; i < count; i++) {
+				final int index = i;
+				ids.add(pool.submit(new Callable<Integer>() {
+					public Integer call() throws IOException {
+						return requestInt("tdGetDeviceId", index);
+					}
+				}));
+			}
+
+			List<Future<Device>> loading = new ArrayList<Future<Device>>(count);
+			Set<Integer> seen = new HashSet<Integer>();
+			for(Future<Integer> f: ids) {
+				final int id = Discovery.get(f);
+				// Removed while we were loading
+				if(id < 0 || !seen.add(id))
+					continue;
+				loading.add(pool.submit(new Callable<Device>() {
+					public Device call() throws IOException {
+						return loadDevice(id);
+					}
+				}));
+			}
+
+			int[] sorted = new int[loading.size()];
+			Map<Integer, Device> devices = new HashMap<Integer, Device>();
+			for(int i = 0; i < sorted.length; i++) {
+				Device d = Discovery.get(loading.get(i));
+				sorted[i] = d.getId();
+				devices.put(d.getId(), d);
+			}
+			Arrays.sort(sorted);
+
+			loads.incrementAndGet();
+			log.debug("Loaded "+ sorted.length +" devices");
+			return new Snapshot(sorted, devices);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading devices", ex);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private Device loadDevice(int id) throws IOException {
+		return new Device(id,
+				requestString("tdGetName", id),
+				DeviceType.fromCode(requestInt("tdGetDeviceType", id)),
+				requestString("tdGetProtocol", id),
+				requestString("tdGetModel", id),
+				loadMethods(id, ALL_METHODS));
+	}
+
+	private int loadMethods(int id, int methodsSupported) throws IOException {
+		Message m = Message.direct("tdMethods");
+		m.addArgument(id);
+		m.addArgument(methodsSupported);
+		return requester.requestInt(m);
+	}
+
+	private int requestInt(String function, int arg) throws IOException {
+		Message m = Message.direct(function);
+		m.addArgument(arg);
+		return requester.requestInt(m);
+	}
+
+	private String requestString(String function, int arg) throws IOException {
+		Message m = Message.direct(function);
+		m.addArgument(arg);
+		return requester.requestString(m);
+	}
+
+	@Override
+	public String toString() {
+		Snapshot s = state;
+		return "DeviceRegistry{" +
+				"devices=" + (s == null ? "not loaded" : String.valueOf(s.ids.length)) +
+				", loads=" + getLoadCount() +
+				", updates=" + getUpdateCount() +
+				'}';
+	}
+}
@@ -0,0 +1,175 @@
+package se.stromnet.jtelldus;
+
+import se.stromnet.jtelldus.Protocol.ChangeEvent;
+import se.stromnet.jtelldus.Protocol.DeviceMethod;
+import se.stromnet.jtelldus.event.TDConnectionEvent;
+import se.stromnet.jtelldus.event.TDDeviceChangeEvent;
+import se.stromnet.jtelldus.event.TDDeviceEvent;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Last known method and state value of every device, taken from
+ * TDDeviceEvents and from commands sent by this client.
+ *
+ * Only states actually seen are known; nothing is loaded from telldusd.
+ * Since events may have been missed while the event socket was down,
+ * everything is forgotten when it reconnects.
+ *
+ * With a suppression TTL, isCurrent() tells TelldusInterface to skip
+ * sending tdTurnOn, tdTurnOff or tdDim when the device was put in that
+ * state less than TTL ms ago. A device switched by other means, such as
+ * a remote telldusd does not hear, will then not be corrected until the
+ * TTL has passed.
+ *
+ * Created by TelldusInterface when TelldusConfig.setDeviceStateCache() is
+ * set.
+ */
+public class DeviceStateCache implements TDDeviceEvent.Listener, TDDeviceChangeEvent.Listener, TDConnectionEvent.Listener {
+	private final long suppressionTtl;
+	private final ConcurrentHashMap<Integer, State> states = new ConcurrentHashMap<Integer, State>();
+	private final AtomicLong suppressed = new AtomicLong();
+
+	/**
+	 * A device's last known state. Immutable.
+	 */
+	public static class State {
+		private final int deviceId;
+		private final DeviceMethod method;
+		private final String value;
+		private final long updated;
+		// System.nanoTime(), for ages unaffected by wall clock changes
+		private final long seen;
+
+		State(int deviceId, DeviceMethod method, String value) {
+			this.deviceId = deviceId;
+			this.method = method;
+			this.value = value;
+			this.updated = System.currentTimeMillis();
+			this.seen = System.nanoTime();
+		}
+
+		public int getDeviceId() {
+			return deviceId;
+		}
+
+		public DeviceMethod getMethod() {
+			return method;
+		}
+
+		/**
+		 * @return the value, such as the dim level, or "" if the method
+		 *	has none.
+		 */
+		public String getValue() {
+			return value;
+		}
+
+		/**
+		 * @return System.currentTimeMillis() when the state was seen.
+		 */
+		public long getUpdated() {
+			return updated;
+		}
+
+		@Override
+		public String toString() {
+			return "State{" +
+					"deviceId=" + deviceId +
+					", method=" + method +
+					", value='" + value + '\'' +
+					", updated=" + updated +
+					'}';
+		}
+	}
+
+	/**
+	 * @param suppressionTtl Max age in ms of a state for isCurrent() to
+	 *	report it current, or 0 to never do so.
+	 */
+	public DeviceStateCache(long suppressionTtl) {
+		this.suppressionTtl = suppressionTtl;
+	}
+
+	/**
+	 * @return the last known state, or null if not known.
+	 */
+	public State get(int deviceId) {
+		return states.get(deviceId);
+	}
+
+	public int size() {
+		return states.size();
+	}
+
+	public void clear() {
+		states.clear();
+	}
+
+	/**
+	 * Record a state, such as after a command was sent successfully.
+	 */
+	public void update(int deviceId, DeviceMethod method, String value) {
+		states.put(deviceId, new State(deviceId, method, value == null ? "" : value));
+	}
+
+	/**
+	 * Check whether sending method with value would not change anything,
+	 * because the device was put in that state within the suppression TTL.
+	 * Counts the command as suppressed if so.
+	 *
+	 * @param value The dim level for DIM, otherwise null.
+	 */
+	public boolean isCurrent(int deviceId, DeviceMethod method, String value) {
+		if(suppressionTtl <= 0)
+			return false;
+
+		State s = states.get(deviceId);
+		if(s == null || s.method != method)
+			return false;
+		if(value != null && !value.equals(s.value))
+			return false;
+		if(System.nanoTime() - s.seen >= TimeUnit.MILLISECONDS.toNanos(suppressionTtl))
+			return false;
+
+		suppressed.incrementAndGet();
+		return true;
+	}
+
+	public long getSuppressionTtl() {
+		return suppressionTtl;
+	}
+
+	/**
+	 * @return number of commands isCurrent() found unnecessary.
+	 */
+	public long getSuppressedCount() {
+		return suppressed.get();
+	}
+
+	public void onTDDeviceEvent(TDDeviceEvent event) {
+		update(event.getDeviceId(), event.getMethod(), event.getStateValue());
+	}
+
+	public void onTDDeviceChangeEvent(TDDeviceChangeEvent event) {
+		if(event.getChangeEvent() == ChangeEvent.DEVICE_REMOVED)
+			states.remove(event.getDeviceId());
+	}
+
+	public void onTDConnectionEvent(TDConnectionEvent event) {
+		if(event.getChannel() == TDConnectionEvent.Channel.EVENTS
+				&& event.getState() == TDConnectionEvent.State.UP)
+			clear();
+	}
+
+	@Override
+	public String toString() {
+		return "DeviceStateCache{" +
+				"devices=" + size() +
+				", suppressionTtl=" + suppressionTtl +
+				", suppressed=" + getSuppressedCount() +
+				'}';
+	}
+}
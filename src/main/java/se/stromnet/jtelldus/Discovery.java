@@ -0,0 +1,228 @@
+package se.stromnet.jtelldus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.stromnet.jtelldus.Inventory.Phase;
+import se.stromnet.jtelldus.Protocol.ChangeEvent;
+import se.stromnet.jtelldus.Protocol.DeviceType;
+import se.stromnet.jtelldus.Protocol.SensorValueType;
+import se.stromnet.jtelldus.TelldusInterface.Controller;
+import se.stromnet.jtelldus.event.TDControllerEvent;
+import se.stromnet.jtelldus.event.TDDeviceChangeEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Builds an Inventory, running all the commands needed concurrently on a
+ * bounded pool of threads.
+ *
+ * The calling thread only hands out work: as soon as a reply tells what
+ * to ask next, such as the device count or the sensor list, those
+ * commands are queued on the pool. Devices, sensors and controllers are
+ * thus discovered side by side.
+ *
+ * telldusd has no way to read everything at once, so to give a consistent
+ * inventory, discovery is started over if a device or controller changes
+ * meanwhile, as told by events. Must be registered as an event listener
+ * while running.
+ */
+class Discovery implements TDDeviceChangeEvent.Listener, TDControllerEvent.Listener {
+	private static final Logger log = LoggerFactory.getLogger(Discovery.class);
+
+	static final int MAX_ATTEMPTS = 3;
+
+	private final Requester requester;
+	private final AtomicInteger changes = new AtomicInteger();
+
+	private ExecutorService pool;
+	private long start;
+	// System.nanoTime() the last command of each phase was done
+	private final AtomicLongArray done = new AtomicLongArray(Phase.values().length);
+
+	Discovery(Requester requester) {
+		this.requester = requester;
+	}
+
+	/**
+	 * @param parallelism Max number of commands running at once.
+	 * @param threadFactory Factory for the worker threads, or null for
+	 *	regular daemon threads.
+	 */
+	Inventory run(int parallelism, ThreadFactory threadFactory) throws IOException {
+		long begin = System.nanoTime();
+		pool = Threads.newPool(threadFactory, Math.max(1, parallelism), getClass().getSimpleName());
+		try {
+			for(int attempt = 1; ; attempt++) {
+				int before = changes.get();
+				Inventory inventory = discover(begin, attempt, before);
+				if(inventory.isConsistent() || attempt == MAX_ATTEMPTS)
+					return inventory;
+				log.debug("Devices or controllers changed during discovery, starting over");
+			}
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted during discovery", ex);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private Inventory discover(long begin, int attempt, int changesBefore) throws IOException, InterruptedException {
+		start = System.nanoTime();
+		for(int i = 0; i < done.length(); i++)
+			done.set(i, start);
+
+		Future<Integer> count = submitInt(Phase.DEVICES, Message.direct("tdGetNumberOfDevices"));
+		Future<String> sensorList = submitString(Phase.SENSORS, Message.direct("tdSensor"));
+		Future<String> controllerList = submitString(Phase.CONTROLLERS, Message.direct("tdController"));
+
+		int n = get(count);
+		List<Future<Integer>> ids = new ArrayList<Future<Integer>>(n);
+		for(int i = 0; i < n; i++)
+			ids.add(submitInt(Phase.DEVICES, message("tdGetDeviceId", i)));
+
+		// Ask for sensor values while device ids are coming in
+		List<Sensor> sensors = new ArrayList<Sensor>();
+		List<Sensor> valueSensors = new ArrayList<Sensor>();
+		List<Future<String>> values = new ArrayList<Future<String>>();
+		String retval = get(sensorList);
+		if(retval.length() > 0) {
+			Message ret = Message.fromString(retval);
+			int sensorCount = ret.takeInt();
+			for(int i = 0; i < sensorCount; i++) {
+				Sensor s = new Sensor(ret);
+				int dataTypes = ret.takeInt();
+				sensors.add(s);
+
+				for(SensorValueType type: SensorValueType.values()) {
+					if((dataTypes & type.code()) == 0)
+						continue;
+					Message m = Message.direct("tdSensorValue");
+					m.addArgument(s.getProtocol());
+					m.addArgument(s.getModel());
+					m.addArgument(s.getId());
+					m.addArgument(type.code());
+					valueSensors.add(s);
+					values.add(submitString(Phase.SENSOR_VALUES, m));
+				}
+			}
+		}
+
+		// Five attributes per device, in loadDevice() order
+		List<Integer> deviceIds = new ArrayList<Integer>(n);
+		List<Future<?>> attributes = new ArrayList<Future<?>>(n * 5);
+		for(Future<Integer> f: ids) {
+			int id = get(f);
+			if(id < 0 || deviceIds.contains(id))
+				continue;
+			deviceIds.add(id);
+			attributes.add(submitString(Phase.DEVICES, message("tdGetName", id)));
+			attributes.add(submitInt(Phase.DEVICES, message("tdGetDeviceType", id)));
+			attributes.add(submitString(Phase.DEVICES, message("tdGetProtocol", id)));
+			attributes.add(submitString(Phase.DEVICES, message("tdGetModel", id)));
+			Message m = message("tdMethods", id);
+			m.addArgument(DeviceRegistry.ALL_METHODS);
+			attributes.add(submitInt(Phase.DEVICES, m));
+		}
+
+		List<Device> devices = new ArrayList<Device>(deviceIds.size());
+		for(int i = 0; i < deviceIds.size(); i++) {
+			devices.add(new Device(deviceIds.get(i),
+					(String) get(attributes.get(i * 5)),
+					DeviceType.fromCode((Integer) get(attributes.get(i * 5 + 1))),
+					(String) get(attributes.get(i * 5 + 2)),
+					(String) get(attributes.get(i * 5 + 3)),
+					(Integer) get(attributes.get(i * 5 + 4))));
+		}
+
+		List<SensorReading> readings = new ArrayList<SensorReading>(values.size());
+		for(int i = 0; i < values.size(); i++) {
+			String value = get(values.get(i));
+			// Not supported after all
+			if(value.length() == 0)
+				continue;
+			SensorValue v = new SensorValue(Message.fromString(value));
+			readings.add(new SensorReading(valueSensors.get(i), v.getDataType(), v.getRawValue(), v.getTimestamp(), 0));
+		}
+
+		List<Controller> controllers = TelldusInterface.parseControllers(get(controllerList));
+		if(controllers == null)
+			controllers = Collections.emptyList();
+
+		long[] phaseNanos = new long[done.length()];
+		for(int i = 0; i < phaseNanos.length; i++)
+			phaseNanos[i] = done.get(i) - start;
+
+		return new Inventory(devices, sensors, readings, controllers, phaseNanos,
+				System.nanoTime() - begin, attempt, changes.get() == changesBefore);
+	}
+
+	public void onTDDeviceChangeEvent(TDDeviceChangeEvent event) {
+		if(event.getChangeEvent() != ChangeEvent.DEVICE_STATE_CHANGED)
+			changes.incrementAndGet();
+	}
+
+	public void onTDControllerEvent(TDControllerEvent event) {
+		changes.incrementAndGet();
+	}
+
+	private static Message message(String function, int arg) {
+		Message m = Message.direct(function);
+		m.addArgument(arg);
+		return m;
+	}
+
+	private Future<Integer> submitInt(final Phase phase, final Message m) {
+		return pool.submit(new Callable<Integer>() {
+			public Integer call() throws IOException {
+				int result = requester.requestInt(m);
+				finished(phase);
+				return result;
+			}
+		});
+	}
+
+	private Future<String> submitString(final Phase phase, final Message m) {
+		return pool.submit(new Callable<String>() {
+			public String call() throws IOException {
+				String result = requester.requestString(m);
+				finished(phase);
+				return result;
+			}
+		});
+	}
+
+	private void finished(Phase phase) {
+		long now = System.nanoTime();
+		int i = phase.ordinal();
+		long prev;
+		while((prev = done.get(i)) < now && !done.compareAndSet(i, prev, now))
+			;
+	}
+
+	/**
+	 * @return the result of a command run on a pool.
+	 * @throws IOException if the command failed.
+	 */
+	static <T> T get(Future<T> f) throws IOException, InterruptedException {
+		try {
+			return f.get();
+		} catch(ExecutionException ex) {
+			if(ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+			throw new IOException("Discovery failed", ex.getCause());
+		}
+	}
+
+}
@@ -0,0 +1,182 @@
+package se.stromnet.jtelldus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects an event socket which has silently stopped delivering data.
+ *
+ * A dead TCP path or socat bridge may leave the event socket blocked in
+ * read() forever, without any error. When no data has been received for
+ * quietPeriod ms, the watchdog sends a cheap command (tdGetNumberOfDevices)
+ * to see if telldusd itself is alive. If it is, the event socket is forced
+ * to reconnect. If not, there is nothing to gain from reconnecting; the
+ * event socket will find out on its own.
+ *
+ * Since telldusd only sends events when something happens, the quiet
+ * period should be well above the normal interval between events, such
+ * as a few times the interval of the most frequent sensor.
+ *
+ * While the event reader is dispatching, as when a listener or a full
+ * listener queue blocks it, the socket is not read at all. That is no
+ * sign of a stall, so no probe is made until the reader is done, and the
+ * quiet period starts over from there.
+ */
+public class EventWatchdog {
+	private static final Logger log = LoggerFactory.getLogger(EventWatchdog.class);
+
+	/** Max ms to wait for the probe */
+	public static final long PROBE_TIMEOUT = 5000;
+
+	public enum Health {
+		/** Events have been received within the quiet period */
+		HEALTHY,
+		/** Quiet for too long; checking whether telldusd is alive */
+		PROBING,
+		/** telldusd is alive but the event socket was silent, and has been reconnected */
+		STALLED,
+		/** Quiet for too long and telldusd does not answer commands */
+		UNREACHABLE
+	}
+
+	private final long quietPeriod;
+	private final CommandEngine engine;
+	private final Runnable reconnect;
+	private final Thread thread;
+	private volatile boolean run = true;
+
+	private volatile long lastActivity = System.currentTimeMillis();
+	private volatile boolean dispatching;
+	private long lastCheck;
+	private volatile Health health = Health.HEALTHY;
+	private final AtomicLong stalls = new AtomicLong();
+
+	/**
+	 * @param quietPeriod ms without event data before probing.
+	 * @param engine Engine to send the probe with.
+	 * @param reconnect Forces the event socket to reconnect.
+	 * @param threadFactory Factory for the watchdog thread, or null for a
+	 *	regular daemon thread.
+	 */
+	public EventWatchdog(long quietPeriod, CommandEngine engine, Runnable reconnect, ThreadFactory threadFactory) {
+		if(quietPeriod <= 0)
+			throw new IllegalArgumentException("Quiet period must be positive");
+
+		this.quietPeriod = quietPeriod;
+		this.engine = engine;
+		this.reconnect = reconnect;
+
+		thread = Threads.newThread(threadFactory, new Runnable() {
+			public void run() {
+				watchLoop();
+			}
+		}, getClass().getSimpleName(), true);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	public void close() {
+		run = false;
+		thread.interrupt();
+	}
+
+	/**
+	 * Called by the event reader whenever data is received.
+	 */
+	public void activity() {
+		lastActivity = System.currentTimeMillis();
+		if(health != Health.HEALTHY)
+			health = Health.HEALTHY;
+	}
+
+	/**
+	 * Called by the event reader before and after it dispatches the events
+	 * it has received. No probe is made in between.
+	 */
+	public void dispatching(boolean dispatching) {
+		if(!dispatching)
+			activity();
+		this.dispatching = dispatching;
+	}
+
+	/**
+	 * @return true if the event reader is dispatching events.
+	 */
+	public boolean isDispatching() {
+		return dispatching;
+	}
+
+	private void watchLoop() {
+		while(run) {
+			long wait = Math.max(lastActivity, lastCheck) + quietPeriod - System.currentTimeMillis();
+			if(dispatching)
+				wait = quietPeriod;
+			if(wait > 0) {
+				try {
+					Thread.sleep(wait);
+				} catch(InterruptedException ex) {
+					// Most likely close() was called; run will be false.
+				}
+				continue;
+			}
+
+			check();
+			// Give the event socket a new quiet period in any case
+			lastCheck = System.currentTimeMillis();
+		}
+	}
+
+	private void check() {
+		long before = lastActivity;
+		health = Health.PROBING;
+		Message m = Message.direct("tdGetNumberOfDevices");
+		try {
+			engine.execute(m, PROBE_TIMEOUT);
+		} catch(IOException ex) {
+			log.warn("No events for "+ quietPeriod +"ms and telldusd does not answer: "+ ex.getMessage());
+			health = Health.UNREACHABLE;
+			return;
+		} finally {
+			m.release();
+		}
+
+		// The reader got data, or started dispatching, during the probe
+		if(dispatching || lastActivity != before) {
+			health = Health.HEALTHY;
+			return;
+		}
+
+		log.warn("No events for "+ quietPeriod +"ms but telldusd answers, reconnecting event socket");
+		health = Health.STALLED;
+		stalls.incrementAndGet();
+		reconnect.run();
+	}
+
+	public Health getHealth() {
+		return health;
+	}
+
+	/**
+	 * @return ms since event data was last received.
+	 */
+	public long getQuietTime() {
+		return System.currentTimeMillis() - lastActivity;
+	}
+
+	/**
+	 * @return number of times the event socket was found stalled and reconnected.
+	 */
+	public long getStallCount() {
+		return stalls.get();
+	}
+
+	public long getQuietPeriod() {
+		return quietPeriod;
+	}
+}
@@ -0,0 +1,137 @@
+package se.stromnet.jtelldus;
+
+import se.stromnet.jtelldus.Protocol.SensorValueType;
+import se.stromnet.jtelldus.TelldusInterface.Controller;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything telldusd knows about: devices, sensors with their current
+ * values, and controllers. Immutable.
+ *
+ * Returned by TelldusInterface.snapshot().
+ */
+public class Inventory {
+	/**
+	 * The parts of discovery, which run concurrently.
+	 */
+	public enum Phase {
+		DEVICES,
+		SENSORS,
+		SENSOR_VALUES,
+		CONTROLLERS
+	}
+
+	private final List<Device> devices;
+	private final List<Sensor> sensors;
+	private final List<SensorReading> sensorValues;
+	private final List<Controller> controllers;
+	private final long[] phaseNanos;
+	private final long totalNanos;
+	private final int attempts;
+	private final boolean consistent;
+
+	Inventory(List<Device> devices, List<Sensor> sensors, List<SensorReading> sensorValues,
+			List<Controller> controllers, long[] phaseNanos, long totalNanos, int attempts, boolean consistent) {
+		this.devices = Collections.unmodifiableList(devices);
+		this.sensors = Collections.unmodifiableList(sensors);
+		this.sensorValues = Collections.unmodifiableList(sensorValues);
+		this.controllers = Collections.unmodifiableList(controllers);
+		this.phaseNanos = phaseNanos.clone();
+		this.totalNanos = totalNanos;
+		this.attempts = attempts;
+		this.consistent = consistent;
+	}
+
+	/**
+	 * @return all devices, in telldusd's index order.
+	 */
+	public List<Device> getDevices() {
+		return devices;
+	}
+
+	/**
+	 * @return the device, or null if there is none with that id.
+	 */
+	public Device getDevice(int id) {
+		for(Device d: devices) {
+			if(d.getId() == id)
+				return d;
+		}
+		return null;
+	}
+
+	public List<Sensor> getSensors() {
+		return sensors;
+	}
+
+	/**
+	 * @return every value of every sensor. getSequence() is 0.
+	 */
+	public List<SensorReading> getSensorValues() {
+		return sensorValues;
+	}
+
+	/**
+	 * @return the value, or null if the sensor has none of that type.
+	 */
+	public SensorReading getSensorValue(Sensor sensor, SensorValueType dataType) {
+		for(SensorReading r: sensorValues) {
+			if(r.getDataType() == dataType && r.getSensor().equals(sensor))
+				return r;
+		}
+		return null;
+	}
+
+	public List<Controller> getControllers() {
+		return controllers;
+	}
+
+	/**
+	 * @return ms from the start of discovery until the phase was done.
+	 */
+	public long getPhaseTime(Phase phase) {
+		return TimeUnit.NANOSECONDS.toMillis(phaseNanos[phase.ordinal()]);
+	}
+
+	/**
+	 * @return ms for the whole discovery, including any attempts started
+	 *	over.
+	 */
+	public long getTotalTime() {
+		return TimeUnit.NANOSECONDS.toMillis(totalNanos);
+	}
+
+	/**
+	 * @return number of times discovery was run. It is started over if
+	 *	devices or controllers change meanwhile.
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * @return false if devices or controllers changed during the last
+	 *	attempt, so the inventory may mix old and new.
+	 */
+	public boolean isConsistent() {
+		return consistent;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Inventory{");
+		sb.append("devices=").append(devices.size())
+		  .append(", sensors=").append(sensors.size())
+		  .append(", sensorValues=").append(sensorValues.size())
+		  .append(", controllers=").append(controllers.size());
+		for(Phase p: Phase.values())
+			sb.append(", ").append(p).append('=').append(getPhaseTime(p)).append("ms");
+		sb.append(", total=").append(getTotalTime()).append("ms")
+		  .append(", attempts=").append(attempts)
+		  .append('}');
+		return sb.toString();
+	}
+}
@@ -1,8 +1,11 @@
 package se.stromnet.jtelldus;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 
 /**
  * Builds a Message used for communicating with Telldusd.
@@ -15,12 +18,21 @@ import java.nio.ByteBuffer;
  * extends std::wstring. Here we use a StringBuilder, and on serialization
  * we make sure to encode it in UTF-8 as per common/Strings.cpp wideToString
  * which is used when talking on the socket (Socket::write).
+ *
+ * Messages created with direct() are instead encoded straight into a pooled
+ * direct buffer by a MessageEncoder, without any intermediate String or
+ * byte[]. Such messages should be release()'d when they have been sent.
+ *
+ * For incremental decoding of data arriving on a socket, see MessageDecoder.
  * 
  * @author johan
  */
 public class Message {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
 	private StringBuilder sb;
 	private ByteBuffer bytes;
+	private MessageEncoder encoder;
 	
 	public Message() {
 		reset();
@@ -36,24 +48,81 @@ public class Message {
 		addArgument(functionName);
 	}
 
+	/**
+	 * Create a message in encoder mode; arguments are written directly to
+	 * a pooled direct buffer.
+	 */
+	public static Message direct(String functionName) {
+		Message m = new Message();
+		m.sb = null;
+		m.encoder = MessageEncoder.acquire();
+		m.addArgument(functionName);
+		return m;
+	}
+
 	public void reset() {
-		sb = new StringBuilder();
+		if(encoder != null) {
+			encoder.clear();
+		} else {
+			sb = new StringBuilder();
+		}
 		bytes = null;
 	}
 
+	/**
+	 * Give the encoder buffer back to the pool. Does nothing unless the
+	 * message was created with direct(). The message must not be
+	 * used afterwards.
+	 */
+	public void release() {
+		if(encoder == null)
+			return;
+
+		encoder.release();
+		encoder = null;
+	}
+
 	public void addArgument(String argument) {
+		if(encoder != null) {
+			encoder.putString(argument);
+			return;
+		}
+
 		sb.append(argument.length())
 		  .append(":")
 		  .append(argument);
 	}
 
 	public void addArgument(int argument) {
+		if(encoder != null) {
+			encoder.putInt(argument);
+			return;
+		}
+
 		sb.append("i")
 		  .append(argument)
 		  .append("s");
 	}
 
+	/**
+	 * Write the serialized message to a channel. Messages in encoder mode are
+	 * written straight from their direct buffer.
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		if(encoder != null) {
+			encoder.writeTo(channel);
+			return;
+		}
+
+		ByteBuffer bb = serialize();
+		while(bb.hasRemaining())
+			channel.write(bb);
+	}
+
 	public ByteBuffer serialize() {
+		if(encoder != null)
+			return encoder.encoded();
+
 		String str = sb.toString();
 
 		try {
@@ -125,21 +194,25 @@ public class Message {
 
 		msg.get(); // Skip 'i'
 
-		// Read until 's'. There are probably more elegant solutinos to this
-		// but since we're dealing with stringified numbers, and my NIO Buffer
-		// skills are limited....well :)
-		StringBuilder sb = new StringBuilder();
+		// Read until 's', accumulating the digits as we go.
+		int value = 0;
+		boolean negative = false;
 		while(msg.hasRemaining()) {
 			byte b = msg.get();
 
 			if(b == 's')
 				break;
 
+			if(b == '-') {
+				negative = true;
+				continue;
+			}
+
 			assert Character.isDigit(b);
-			sb.append(Character.toString((char) b));
+			value = value * 10 + (b - '0');
 		}
 
-		return Integer.parseInt(sb.toString());
+		return negative ? -value : value;
 	}
 
 	public static String takeString(ByteBuffer msg) {
@@ -149,18 +222,16 @@ public class Message {
 		msg.mark();
 		
 		// First read stringified length.
-		StringBuilder sb = new StringBuilder();
+		int len = 0;
 		while(msg.hasRemaining()) {
 			byte b = msg.get();
 			if(b == ':')
 				break;
 
 			assert Character.isDigit(b);
-			sb.append(Character.toString((char) b));
+			len = len * 10 + (b - '0');
 		}
 
-		int len = Integer.parseInt(sb.toString());
-
 		if(msg.remaining() < len) {
 			// Buffer incomplete; go back to where we where.
 			msg.position(msg.limit());
@@ -169,14 +240,15 @@ public class Message {
 			throw new BufferUnderflowException();
 		}
 
-		// Read this many bytes
-		byte[] buf = new byte[len];
-		msg.get(buf);
+		// Decode this many bytes straight from the buffer
+		int start = msg.position();
+		msg.position(start + len);
+		if(msg.hasArray())
+			return new String(msg.array(), msg.arrayOffset() + start, len, UTF8);
 
-		try {
-			return new String(buf, "UTF-8");
-		}catch(UnsupportedEncodingException ex) {
-			throw new RuntimeException("UTF-8 not supported", ex);
-		}
+		ByteBuffer body = msg.duplicate();
+		body.position(start);
+		body.limit(start + len);
+		return UTF8.decode(body).toString();
 	}
 }
@@ -0,0 +1,276 @@
+package se.stromnet.jtelldus;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Incremental decoder for the telldusd wire format.
+ *
+ * A message is a sequence of tokens, either integers encoded as i<digits>s
+ * or strings encoded as <len>:<bytes>. This decoder parses one token at a
+ * time straight from a ByteBuffer. If the buffer ends in the middle of a
+ * token, next() returns NEED_MORE and remembers how far it got; calling
+ * next() again when more data has been appended continues where it left off.
+ *
+ * Nothing is allocated per token. Integers are handed back as primitives,
+ * strings as offset/length into the source buffer, optionally through the
+ * reusable byteView() or charView() views. The views are only valid until
+ * the source buffer is modified (compacted, cleared or refilled).
+ *
+ * Since a string body is referenced in place, it must be fully contained
+ * in the buffer before it is returned; the buffer position is left at the
+ * start of the body until then. Digits of integers and string lengths are
+ * consumed as they are seen.
+ *
+ * Instances are not thread safe.
+ */
+public class MessageDecoder {
+	/** Token is incomplete, append more data and call next() again */
+	public static final int NEED_MORE = 0;
+	/** An integer token was decoded, see intValue() */
+	public static final int INT = 1;
+	/** A string token was decoded, see stringOffset()/stringLength() */
+	public static final int STRING = 2;
+	/** The data does not follow the wire format */
+	public static final int ERROR = -1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int ST_START = 0;
+	private static final int ST_INT = 1;
+	private static final int ST_LENGTH = 2;
+	private static final int ST_BODY = 3;
+
+	private int state = ST_START;
+
+	// Parsing state of the current token
+	private long acc;
+	private int digits;
+	private boolean negative;
+
+	// Result of the last token
+	private int intValue;
+	private ByteBuffer src;
+	private int strOffset;
+	private int strLength;
+
+	// Lazily created, reusable views
+	private ByteBuffer byteView;
+	private ByteBuffer byteViewSource;
+	private CharBuffer charView;
+	private CharsetDecoder utf8;
+
+	/**
+	 * Decode the next token from bb, starting at its current position.
+	 *
+	 * @return INT, STRING, NEED_MORE or ERROR.
+	 */
+	public int next(ByteBuffer bb) {
+		while(true) {
+			switch(state) {
+				case ST_START:
+					if(!bb.hasRemaining())
+						return NEED_MORE;
+
+					byte b = bb.get(bb.position());
+					acc = 0;
+					digits = 0;
+					negative = false;
+					if(b == 'i') {
+						bb.get(); // Skip 'i'
+						state = ST_INT;
+					} else if(b >= '0' && b <= '9') {
+						state = ST_LENGTH;
+					} else {
+						return ERROR;
+					}
+					break;
+
+				case ST_INT:
+					while(bb.hasRemaining()) {
+						byte c = bb.get();
+						if(c == 's') {
+							if(digits == 0)
+								return fail();
+
+							intValue = (int) (negative ? -acc : acc);
+							state = ST_START;
+							return INT;
+						}
+
+						if(c == '-' && digits == 0 && !negative) {
+							// Error codes are sent as negative ints
+							negative = true;
+							continue;
+						}
+
+						if(!accumulate(c, negative ? 2147483648L : Integer.MAX_VALUE))
+							return fail();
+					}
+					return NEED_MORE;
+
+				case ST_LENGTH:
+					while(bb.hasRemaining()) {
+						byte c = bb.get();
+						if(c == ':') {
+							state = ST_BODY;
+							break;
+						}
+
+						if(!accumulate(c, Integer.MAX_VALUE))
+							return fail();
+					}
+
+					if(state != ST_BODY)
+						return NEED_MORE;
+					break;
+
+				case ST_BODY:
+					if(bb.remaining() < acc)
+						return NEED_MORE;
+
+					src = bb;
+					strOffset = bb.position();
+					strLength = (int) acc;
+					bb.position(strOffset + strLength);
+					state = ST_START;
+					return STRING;
+			}
+		}
+	}
+
+	private boolean accumulate(byte c, long max) {
+		if(c < '0' || c > '9')
+			return false;
+
+		acc = acc * 10 + (c - '0');
+		digits++;
+		return acc <= max;
+	}
+
+	private int fail() {
+		state = ST_START;
+		return ERROR;
+	}
+
+	/**
+	 * Forget any partially decoded token.
+	 */
+	public void reset() {
+		state = ST_START;
+	}
+
+	/**
+	 * @return true if the last call to next() stopped in the middle of a token.
+	 */
+	public boolean isPartial() {
+		return state != ST_START;
+	}
+
+	/**
+	 * @return value of the last INT token.
+	 */
+	public int intValue() {
+		return intValue;
+	}
+
+	/**
+	 * @return absolute offset, in the source buffer, of the last STRING token's body.
+	 */
+	public int stringOffset() {
+		return strOffset;
+	}
+
+	/**
+	 * @return length in bytes of the last STRING token's body.
+	 */
+	public int stringLength() {
+		return strLength;
+	}
+
+	/**
+	 * Returns a view of the last STRING token's raw bytes, positioned on the
+	 * body. The same ByteBuffer instance is reused for as long as the source
+	 * buffer stays the same.
+	 */
+	public ByteBuffer byteView() {
+		if(byteView == null || byteViewSource != src) {
+			byteView = src.duplicate();
+			byteViewSource = src;
+		}
+
+		byteView.clear();
+		byteView.limit(strOffset + strLength);
+		byteView.position(strOffset);
+		return byteView;
+	}
+
+	/**
+	 * Returns the last STRING token decoded as UTF-8 into a reusable
+	 * CharBuffer. The returned buffer is overwritten by the next call.
+	 */
+	public CharBuffer charView() {
+		if(utf8 == null) {
+			utf8 = UTF8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+
+		// UTF-8 never yields more chars than bytes
+		if(charView == null || charView.capacity() < strLength)
+			charView = CharBuffer.allocate(Math.max(strLength, 64));
+
+		charView.clear();
+		utf8.reset();
+		utf8.decode(byteView(), charView, true);
+		utf8.flush(charView);
+		charView.flip();
+		return charView;
+	}
+
+	/**
+	 * Compares the last STRING token with the given raw bytes.
+	 */
+	public boolean stringEquals(byte[] expected) {
+		if(expected.length != strLength)
+			return false;
+
+		for(int i = 0; i < strLength; i++) {
+			if(src.get(strOffset + i) != expected[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return FNV-1a hash of the last STRING token's raw bytes.
+	 */
+	public int stringHash() {
+		return hash(src, strOffset, strLength);
+	}
+
+	/**
+	 * FNV-1a hash of the given bytes in bb; absolute positions.
+	 */
+	public static int hash(ByteBuffer bb, int offset, int length) {
+		int h = 0x811c9dc5;
+		for(int i = offset; i < offset + length; i++) {
+			h ^= bb.get(i) & 0xff;
+			h *= 0x01000193;
+		}
+		return h;
+	}
+
+	/**
+	 * Allocates a String holding the last STRING token.
+	 */
+	public String stringValue() {
+		if(src.hasArray())
+			return new String(src.array(), src.arrayOffset() + strOffset, strLength, UTF8);
+
+		return charView().toString();
+	}
+}
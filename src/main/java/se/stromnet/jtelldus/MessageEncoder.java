@@ -0,0 +1,200 @@
+package se.stromnet.jtelldus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes message arguments in the telldusd wire format straight into a
+ * direct ByteBuffer, which can be handed to a SocketChannel without any
+ * further copying.
+ *
+ * Encoders, and their buffers, are pooled. Get one with acquire() and give
+ * it back with release() when the message has been sent. Encoders which are
+ * never released are simply garbage collected.
+ *
+ * As in Message, string lengths are given in characters (telldusd counts
+ * wide chars), and the string itself is encoded as UTF-8.
+ *
+ * Instances are not thread safe, the pool is.
+ */
+public class MessageEncoder {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Large enough for any regular command */
+	private static final int INITIAL_SIZE = 512;
+	private static final int MAX_POOLED = 32;
+
+	private static final ConcurrentLinkedQueue<MessageEncoder> pool =
+					new ConcurrentLinkedQueue<MessageEncoder>();
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	private ByteBuffer buffer;
+	private final CharsetEncoder utf8;
+
+	private MessageEncoder() {
+		buffer = ByteBuffer.allocateDirect(INITIAL_SIZE);
+		utf8 = UTF8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	/**
+	 * Get an empty encoder from the pool, or create a new one if the pool
+	 * is empty.
+	 */
+	public static MessageEncoder acquire() {
+		MessageEncoder e = pool.poll();
+		if(e == null)
+			return new MessageEncoder();
+
+		pooled.decrementAndGet();
+		return e;
+	}
+
+	/**
+	 * Return this encoder to the pool. It must not be used afterwards.
+	 */
+	public void release() {
+		buffer.clear();
+		if(pooled.incrementAndGet() <= MAX_POOLED)
+			pool.offer(this);
+		else
+			pooled.decrementAndGet();
+	}
+
+	/**
+	 * Discard everything written so far.
+	 */
+	public void clear() {
+		buffer.clear();
+	}
+
+	/**
+	 * Append a string argument, <len>:<utf-8 bytes>.
+	 */
+	public MessageEncoder putString(CharSequence argument) {
+		int len = argument.length();
+		putDigits(len);
+		ensure(1 + len);
+		buffer.put((byte) ':');
+
+		// Plain ASCII is by far the most common; skip the CharsetEncoder
+		int i = 0;
+		for(; i < len; i++) {
+			char c = argument.charAt(i);
+			if(c >= 0x80)
+				break;
+			buffer.put((byte) c);
+		}
+
+		if(i < len)
+			encode(argument, i, len);
+
+		return this;
+	}
+
+	/**
+	 * Append an integer argument, i<digits>s.
+	 */
+	public MessageEncoder putInt(int argument) {
+		ensure(1);
+		buffer.put((byte) 'i');
+		putDigits(argument);
+		ensure(1);
+		buffer.put((byte) 's');
+		return this;
+	}
+
+	private void putDigits(int value) {
+		long v = value;
+		ensure(11);
+		if(v < 0) {
+			buffer.put((byte) '-');
+			v = -v;
+		}
+
+		int digits = 1;
+		for(long t = v; t >= 10; t /= 10)
+			digits++;
+
+		int end = buffer.position() + digits;
+		for(int p = end - 1; p >= buffer.position(); p--) {
+			buffer.put(p, (byte) ('0' + (v % 10)));
+			v /= 10;
+		}
+		buffer.position(end);
+	}
+
+	private void encode(CharSequence argument, int start, int end) {
+		CharBuffer in = CharBuffer.wrap(argument, start, end);
+		utf8.reset();
+		while(true) {
+			CoderResult cr = utf8.encode(in, buffer, true);
+			if(cr.isOverflow()) {
+				ensure(buffer.capacity());
+				continue;
+			}
+
+			cr = utf8.flush(buffer);
+			if(cr.isOverflow()) {
+				ensure(buffer.capacity());
+				continue;
+			}
+			return;
+		}
+	}
+
+	private void ensure(int bytes) {
+		if(buffer.remaining() >= bytes)
+			return;
+
+		int size = buffer.capacity() * 2;
+		while(size - buffer.position() < bytes)
+			size *= 2;
+
+		ByteBuffer larger = ByteBuffer.allocateDirect(size);
+		buffer.flip();
+		larger.put(buffer);
+		buffer = larger;
+	}
+
+	/**
+	 * @return number of bytes encoded so far.
+	 */
+	public int size() {
+		return buffer.position();
+	}
+
+	/**
+	 * Returns a new view of the encoded bytes.
+	 */
+	public ByteBuffer encoded() {
+		ByteBuffer b = buffer.duplicate();
+		b.flip();
+		return b;
+	}
+
+	/**
+	 * Write the encoded bytes to a channel. The encoder is left untouched,
+	 * so the same data can be written again (i.e. on retry).
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		int end = buffer.position();
+		buffer.flip();
+		try {
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+		} finally {
+			buffer.limit(buffer.capacity());
+			buffer.position(end);
+		}
+	}
+}
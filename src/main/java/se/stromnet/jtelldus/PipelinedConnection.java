@@ -0,0 +1,245 @@
+package se.stromnet.jtelldus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.stromnet.jtelldus.Protocol.ErrorCode;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One long-lived command connection on which any number of messages are
+ * written back to back, without waiting for the replies in between.
+ *
+ * Stock telldusd closes the connection after the first reply, but some
+ * forks keep serving messages on it, replying in order. Replies are read
+ * by a thread of its own and handed to the callers in FIFO order; each
+ * reply is a single token.
+ *
+ * Use open() to probe whether telldusd supports this. If the connection
+ * breaks later on, every outstanding command fails and the connection is
+ * closed for good.
+ */
+public class PipelinedConnection {
+	private static final Logger log = LoggerFactory.getLogger(PipelinedConnection.class);
+
+	/** Max ms to wait for the probe replies */
+	public static final long PROBE_TIMEOUT = 2000;
+
+	private final TelldusSocket socket;
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final ConcurrentLinkedQueue<CompletableFuture<ByteBuffer>> waiting =
+			new ConcurrentLinkedQueue<CompletableFuture<ByteBuffer>>();
+	private final Thread thread;
+	private volatile boolean open = true;
+
+	private PipelinedConnection(TelldusSocket socket, ThreadFactory threadFactory) {
+		this.socket = socket;
+		thread = Threads.newThread(threadFactory, new Runnable() {
+			public void run() {
+				readLoop();
+			}
+		}, getClass().getSimpleName(), true);
+		thread.start();
+	}
+
+	/**
+	 * Connect and check that telldusd answers two messages sent back to
+	 * back on the same connection.
+	 *
+	 * @param threadFactory Factory for the reader thread, or null for a
+	 *	regular daemon thread.
+	 * @return an open connection, or null if telldusd could not be reached
+	 *	or does not support pipelining.
+	 */
+	public static PipelinedConnection open(SocketAddress address, ThreadFactory threadFactory) {
+		TelldusSocket socket = new TelldusSocket(address);
+		if(!socket.connect())
+			return null;
+
+		PipelinedConnection c = new PipelinedConnection(socket, threadFactory);
+		Message m1 = Message.direct("tdGetNumberOfDevices");
+		Message m2 = Message.direct("tdGetNumberOfDevices");
+		try {
+			CompletableFuture<ByteBuffer> first = c.submit(m1);
+			CompletableFuture<ByteBuffer> second = c.submit(m2);
+			first.get(PROBE_TIMEOUT, TimeUnit.MILLISECONDS);
+			second.get(PROBE_TIMEOUT, TimeUnit.MILLISECONDS);
+			return c;
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch(ExecutionException ex) {
+			log.debug("Pipelining probe failed", ex.getCause());
+		} catch(TimeoutException ex) {
+			log.debug("Pipelining probe timed out");
+		} catch(IOException ex) {
+			log.debug("Pipelining probe failed", ex);
+		} finally {
+			m1.release();
+			m2.release();
+		}
+
+		c.close();
+		return null;
+	}
+
+	/**
+	 * Send a message and wait for its reply.
+	 *
+	 * @return Buffer in write mode, holding the reply from position 0.
+	 */
+	public ByteBuffer execute(Message m) throws IOException {
+		return execute(m, 0);
+	}
+
+	/**
+	 * Send a message and wait at most timeoutMillis for its reply. A reply
+	 * arriving later is read and thrown away, so the replies to later
+	 * messages still match up.
+	 *
+	 * @param timeoutMillis Max time to wait, or 0 to wait forever.
+	 * @return Buffer in write mode, holding the reply from position 0.
+	 * @throws CommandException with ERROR_COMMUNICATING_SERVICE on timeout.
+	 */
+	public ByteBuffer execute(Message m, long timeoutMillis) throws IOException {
+		CompletableFuture<ByteBuffer> reply = submit(m);
+		try {
+			if(timeoutMillis > 0)
+				return reply.get(timeoutMillis, TimeUnit.MILLISECONDS);
+			return reply.get();
+		} catch(TimeoutException ex) {
+			throw new CommandException(ErrorCode.ERROR_COMMUNICATING_SERVICE,
+					"No reply within "+ timeoutMillis +"ms");
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for reply");
+		} catch(ExecutionException ex) {
+			if(ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+			throw new IOException(ex.getCause());
+		}
+	}
+
+	private CompletableFuture<ByteBuffer> submit(Message m) throws IOException {
+		CompletableFuture<ByteBuffer> reply = new CompletableFuture<ByteBuffer>();
+		writeLock.lock();
+		try {
+			if(!open)
+				throw new IOException("Pipelined connection is closed");
+
+			// Queue before writing, the reply may arrive before write() returns.
+			waiting.add(reply);
+			try {
+				socket.write(m);
+			} catch(IOException ex) {
+				close();
+				throw ex;
+			}
+		} finally {
+			writeLock.unlock();
+		}
+		return reply;
+	}
+
+	private void readLoop() {
+		IOException failure;
+		try {
+			ByteBuffer bb = ByteBuffer.allocate(2000);
+			MessageDecoder decoder = new MessageDecoder();
+			int decoded = 0;
+			int tokenStart = 0;
+			while(true) {
+				if(!bb.hasRemaining()) {
+					// Drop replies already handed out
+					if(tokenStart > 0) {
+						bb.flip();
+						bb.position(tokenStart);
+						bb.compact();
+						decoded -= tokenStart;
+						tokenStart = 0;
+					}
+
+					if(!bb.hasRemaining()) {
+						ByteBuffer larger = ByteBuffer.allocate(bb.capacity() * 2);
+						bb.flip();
+						larger.put(bb);
+						bb = larger;
+					}
+				}
+
+				if(socket.read(bb) < 0)
+					throw new IOException("Connection closed by telldusd");
+
+				bb.flip();
+				bb.position(decoded);
+				int token;
+				while((token = decoder.next(bb)) == MessageDecoder.INT || token == MessageDecoder.STRING) {
+					ByteBuffer reply = ByteBuffer.allocate(bb.position() - tokenStart);
+					reply.put(bb.array(), tokenStart, reply.capacity());
+					tokenStart = bb.position();
+
+					CompletableFuture<ByteBuffer> f = waiting.poll();
+					if(f == null)
+						throw new IOException("Unexpected reply from telldusd");
+					f.complete(reply);
+				}
+
+				if(token == MessageDecoder.ERROR)
+					throw new IOException("Malformed reply from telldusd");
+
+				decoded = bb.position();
+
+				// Back to write mode, keeping everything we've read.
+				bb.position(bb.limit());
+				bb.limit(bb.capacity());
+			}
+		} catch(IOException ex) {
+			failure = ex;
+		}
+
+		if(open)
+			log.warn("Pipelined connection failed: "+ failure.getMessage());
+		close();
+
+		CompletableFuture<ByteBuffer> f;
+		while((f = waiting.poll()) != null)
+			f.completeExceptionally(failure);
+	}
+
+	/**
+	 * Close the connection. Outstanding commands fail.
+	 */
+	public void close() {
+		writeLock.lock();
+		try {
+			open = false;
+			try {
+				socket.disconnect();
+			} catch(IOException ex) {
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * @return number of commands waiting for a reply.
+	 */
+	public int getWaiting() {
+		return waiting.size();
+	}
+}
@@ -0,0 +1,72 @@
+package se.stromnet.jtelldus;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How long to wait between attempts to reach telldusd.
+ *
+ * The first retry is immediate, since a dropped connection is often
+ * restored right away. After that the delay doubles for every failed
+ * attempt, up to maxDelay. Each delay is shortened by a random part of up
+ * to jitter (0-1) of it, so that many clients losing telldusd at the same
+ * time do not all come back at the same moment.
+ */
+public class ReconnectPolicy {
+	/** 0, 0.5s, 1s, 2s ... up to 30s, with 50% jitter */
+	public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(500, 30000, 0.5);
+
+	private final long baseDelay;
+	private final long maxDelay;
+	private final double jitter;
+
+	/**
+	 * @param baseDelay Delay in ms after the second failed attempt.
+	 * @param maxDelay Max delay in ms.
+	 * @param jitter Max part of each delay to randomly cut off, 0-1.
+	 */
+	public ReconnectPolicy(long baseDelay, long maxDelay, double jitter) {
+		if(jitter < 0 || jitter > 1)
+			throw new IllegalArgumentException("Jitter must be between 0 and 1");
+
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * @param attempt Number of failed attempts in a row, from 1.
+	 * @return ms to wait before the next attempt.
+	 */
+	public long delay(int attempt) {
+		if(attempt <= 1)
+			return 0;
+
+		int doublings = Math.min(attempt - 2, 62);
+		long delay = baseDelay > (maxDelay >> doublings) ? maxDelay : baseDelay << doublings;
+		delay = Math.min(delay, maxDelay);
+		if(jitter > 0)
+			delay -= (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+		return delay;
+	}
+
+	public long getBaseDelay() {
+		return baseDelay;
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	public double getJitter() {
+		return jitter;
+	}
+
+	@Override
+	public String toString() {
+		return "ReconnectPolicy{" +
+				"baseDelay=" + baseDelay +
+				", maxDelay=" + maxDelay +
+				", jitter=" + jitter +
+				'}';
+	}
+}
@@ -0,0 +1,17 @@
+package se.stromnet.jtelldus;
+
+import java.io.IOException;
+
+/**
+ * Sends a command to telldusd and waits for the reply. Unlike the
+ * TelldusInterface functions, a failed command throws instead of
+ * returning an error code, so that callers such as the caches never
+ * mistake one for a value. The message is released.
+ *
+ * Implemented by TelldusClient.
+ */
+interface Requester {
+	int requestInt(Message m) throws IOException;
+
+	String requestString(Message m) throws IOException;
+}
@@ -30,6 +30,12 @@ public class Sensor
 		id = src.takeInt();
 	}
 
+	public Sensor(String protocol, String model, int id) {
+		this.protocol = protocol;
+		this.model = model;
+		this.id = id;
+	}
+
 	public String getProtocol() {
 		return protocol;
 	}
@@ -42,6 +48,28 @@ public class Sensor
 		return id;
 	}
 
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof Sensor)) return false;
+
+		Sensor sensor = (Sensor) o;
+
+		if (id != sensor.id) return false;
+		if (model != null ? !model.equals(sensor.model) : sensor.model != null) return false;
+		if (protocol != null ? !protocol.equals(sensor.protocol) : sensor.protocol != null) return false;
+
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = protocol != null ? protocol.hashCode() : 0;
+		result = 31 * result + (model != null ? model.hashCode() : 0);
+		result = 31 * result + id;
+		return result;
+	}
+
 	@Override
 	public String toString() {
 		return "Sensor{" +
@@ -0,0 +1,80 @@
+package se.stromnet.jtelldus;
+
+import se.stromnet.jtelldus.Protocol.SensorValueType;
+
+/**
+ * The latest value of one data type of one sensor, as kept by
+ * SensorTable. Immutable.
+ */
+public class SensorReading {
+	private final Sensor sensor;
+	private final SensorValueType dataType;
+	private final double value;
+	private final String rawValue;
+	private final int timestamp;
+	private final long sequence;
+
+	SensorReading(Sensor sensor, SensorValueType dataType, String rawValue, int timestamp, long sequence) {
+		this.sensor = sensor;
+		this.dataType = dataType;
+		this.value = SensorValue.parse(rawValue);
+		this.rawValue = rawValue;
+		this.timestamp = timestamp;
+		this.sequence = sequence;
+	}
+
+	public Sensor getSensor() {
+		return sensor;
+	}
+
+	public SensorValueType getDataType() {
+		return dataType;
+	}
+
+	/**
+	 * @return the value, or NaN if telldusd sent something not numeric.
+	 */
+	public double getValue() {
+		return value;
+	}
+
+	/**
+	 * @return the value exactly as sent by telldusd.
+	 */
+	public String getRawValue() {
+		return rawValue;
+	}
+
+	/**
+	 * @return telldusd's time of the reading, in seconds since the epoch.
+	 */
+	public int getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the table's sequence number at the time this was stored.
+	 *	Later readings have higher numbers.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Fill in value as tdSensorValue() would.
+	 */
+	public void copyTo(SensorValue value) {
+		value.set(dataType, rawValue, timestamp);
+	}
+
+	@Override
+	public String toString() {
+		return "SensorReading{" +
+				"sensor=" + sensor +
+				", dataType=" + dataType +
+				", value=" + rawValue +
+				", timestamp=" + timestamp +
+				", sequence=" + sequence +
+				'}';
+	}
+}
@@ -0,0 +1,215 @@
+package se.stromnet.jtelldus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.stromnet.jtelldus.Protocol.SensorValueType;
+import se.stromnet.jtelldus.event.TDConnectionEvent;
+import se.stromnet.jtelldus.event.TDSensorEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latest value of every sensor and data type seen, kept current by
+ * TDSensorEvents, so that reading a temperature is a map lookup rather
+ * than a round trip to telldusd.
+ *
+ * Readings are keyed by a long packing the sensor's (protocol, model)
+ * pair, its id and the data type. Each (protocol, model) pair is given a
+ * number the first time it is seen, so a lookup allocates no strings.
+ *
+ * A reading older than the stored one is ignored, as is one repeating it,
+ * which telldusd sends when more than one receiver hears the same sensor.
+ * Since values may have been missed while the event socket was down, the
+ * table is cleared when it reconnects.
+ *
+ * Created by TelldusInterface when TelldusConfig.setSensorTable() is set.
+ */
+public class SensorTable implements TDSensorEvent.Listener, TDConnectionEvent.Listener {
+	private static final Logger log = LoggerFactory.getLogger(SensorTable.class);
+
+	// Bits of the key used by the (protocol, model) number
+	private static final int MAX_KINDS = 0xffff;
+
+	/**
+	 * Called when a reading is stored.
+	 */
+	public interface Listener {
+		/**
+		 * Called from the thread storing the reading, usually the event
+		 * reader thread, so it should return quickly.
+		 *
+		 * @param previous The reading replaced, or null if there was none.
+		 */
+		void onSensorChange(SensorReading previous, SensorReading current);
+	}
+
+	// protocol -> model -> number
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> kinds =
+			new ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>>();
+	private final AtomicInteger nextKind = new AtomicInteger();
+
+	private final ConcurrentHashMap<Long, SensorReading> readings = new ConcurrentHashMap<Long, SensorReading>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/**
+	 * @return the latest reading, or null if none has been seen.
+	 */
+	public SensorReading get(String protocol, String model, int id, int dataType) {
+		int kind = kind(protocol, model, false);
+		if(kind < 0)
+			return null;
+		return readings.get(key(kind, id, dataType));
+	}
+
+	public SensorReading get(String protocol, String model, int id, SensorValueType dataType) {
+		return get(protocol, model, id, dataType.code());
+	}
+
+	public SensorReading get(Sensor sensor, SensorValueType dataType) {
+		return get(sensor.getProtocol(), sensor.getModel(), sensor.getId(), dataType.code());
+	}
+
+	/**
+	 * @return all readings, in no particular order.
+	 */
+	public List<SensorReading> getReadings() {
+		return new ArrayList<SensorReading>(readings.values());
+	}
+
+	public int size() {
+		return readings.size();
+	}
+
+	/**
+	 * @return the sequence number of the latest reading stored.
+	 */
+	public long getSequence() {
+		return sequence.get();
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	public void clear() {
+		readings.clear();
+	}
+
+	public void onTDSensorEvent(TDSensorEvent event) {
+		update(event.getSensor(), event.getSensorValue());
+	}
+
+	public void onTDConnectionEvent(TDConnectionEvent event) {
+		if(event.getChannel() == TDConnectionEvent.Channel.EVENTS
+				&& event.getState() == TDConnectionEvent.State.UP)
+			clear();
+	}
+
+	/**
+	 * Store a value, unless it is older than or the same as the one stored.
+	 *
+	 * @return the stored reading, or null if the value was ignored.
+	 */
+	public SensorReading update(Sensor sensor, SensorValue value) {
+		int kind = kind(sensor.getProtocol(), sensor.getModel(), true);
+		if(kind < 0)
+			return null;
+
+		Long key = Long.valueOf(key(kind, sensor.getId(), value.getDataType().code()));
+		while(true) {
+			SensorReading previous = readings.get(key);
+			if(previous != null) {
+				if(value.getTimestamp() < previous.getTimestamp())
+					return null;
+				if(value.getTimestamp() == previous.getTimestamp()
+						&& Objects.equals(value.getRawValue(), previous.getRawValue()))
+					return null;
+			}
+
+			SensorReading current = new SensorReading(sensor, value.getDataType(),
+					value.getRawValue(), value.getTimestamp(), sequence.incrementAndGet());
+
+			boolean stored = previous == null
+					? readings.putIfAbsent(key, current) == null
+					: readings.replace(key, previous, current);
+			if(stored) {
+				fire(previous, current);
+				return current;
+			}
+		}
+	}
+
+	private void fire(SensorReading previous, SensorReading current) {
+		for(Listener l: listeners) {
+			try {
+				l.onSensorChange(previous, current);
+			} catch(RuntimeException ex) {
+				log.error("Listener "+ l +" failed on "+ current, ex);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of a (protocol, model) pair, or -1 if it has none
+	 *	and create is false, or there are too many.
+	 */
+	private int kind(String protocol, String model, boolean create) {
+		ConcurrentHashMap<String, Integer> models = kinds.get(protocol);
+		if(models == null) {
+			if(!create)
+				return -1;
+			models = new ConcurrentHashMap<String, Integer>();
+			ConcurrentHashMap<String, Integer> raced = kinds.putIfAbsent(protocol, models);
+			if(raced != null)
+				models = raced;
+		}
+
+		Integer kind = models.get(model);
+		if(kind != null)
+			return kind.intValue();
+		if(!create)
+			return -1;
+
+		synchronized(models) {
+			kind = models.get(model);
+			if(kind != null)
+				return kind.intValue();
+			int next = nextKind.getAndIncrement();
+			if(next > MAX_KINDS) {
+				log.warn("Too many sensor protocol/model pairs, not storing "+ protocol +"/"+ model);
+				return -1;
+			}
+			kind = Integer.valueOf(next);
+			models.put(model, kind);
+			return kind.intValue();
+		}
+	}
+
+	/**
+	 * kind in the top 16 bits, id in the middle 32 and the data type code
+	 * in the low 16.
+	 */
+	static long key(int kind, int id, int dataType) {
+		return ((long) kind << 48) | ((id & 0xffffffffL) << 16) | (dataType & 0xffff);
+	}
+
+	@Override
+	public String toString() {
+		return "SensorTable{" +
+				"readings=" + size() +
+				", sequence=" + getSequence() +
+				'}';
+	}
+}
@@ -11,6 +11,8 @@ public class SensorValue
 {
 	private Protocol.SensorValueType dataType;
 	private String value;
+	// As sent by telldusd, before format()
+	private String rawValue;
 	private int timestamp;
 
 	/**
@@ -29,6 +31,17 @@ public class SensorValue
 		load(msg);
 	}
 
+	/**
+	 * Creates a new sensor value from already decoded fields.
+	 *
+	 * @param dataType Type of value
+	 * @param value Value as sent by telldusd
+	 * @param timestamp Time of reading
+	 */
+	public SensorValue(Protocol.SensorValueType dataType, String value, int timestamp) {
+		set(dataType, value, timestamp);
+	}
+
 	public Protocol.SensorValueType getDataType() {
 		return dataType;
 	}
@@ -46,71 +59,94 @@ public class SensorValue
 	 */
 	public void load(Message msg) {
 		int dt = msg.takeInt();
-		dataType = Protocol.SensorValueType.fromCode(dt);
-		value = msg.takeString();
-		timestamp = msg.takeInt();
+		Protocol.SensorValueType type = Protocol.SensorValueType.fromCode(dt);
+		String raw = msg.takeString();
+		set(type, raw, msg.takeInt());
+	}
+
+	void set(Protocol.SensorValueType dataType, String rawValue, int timestamp) {
+		this.dataType = dataType;
+		this.rawValue = rawValue;
+		this.value = format(dataType, rawValue);
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Converts a raw value from telldusd into its presentable form.
+	 */
+	private static String format(Protocol.SensorValueType dataType, String value) {
 		switch (dataType) {
 			case WINDDIRECTION:
 				int direction = Integer.parseInt(value);
 				switch (direction) {
 					case 0:
-						value = "N";
-						break;
+						return "N";
 					case 1:
-						value = "NNE";
-						break;
+						return "NNE";
 					case 2:
-						value = "NE";
-						break;
+						return "NE";
 					case 3:
-						value = "ENE";
-						break;
+						return "ENE";
 					case 4:
-						value = "E";
-						break;
+						return "E";
 					case 5:
-						value = "ESE";
-						break;
+						return "ESE";
 					case 6:
-						value = "SE";
-						break;
+						return "SE";
 					case 7:
-						value = "SSE";
-						break;
+						return "SSE";
 					case 8:
-						value = "S";
-						break;
+						return "S";
 					case 9:
-						value = "SSW";
-						break;
+						return "SSW";
 					case 10:
-						value = "SW";
-						break;
+						return "SW";
 					case 11:
-						value = "WSW";
-						break;
+						return "WSW";
 					case 12:
-						value = "W";
-						break;
+						return "W";
 					case 13:
-						value = "WNW";
-						break;
+						return "WNW";
 					case 14:
-						value = "NW";
-						break;
+						return "NW";
 					case 15:
-						value = "NNW";
-						break;
+						return "NNW";
 				}
 				break;
 
 		}
+		return value;
 	}
 
 	public String getValue() {
 		return value;
 	}
 
+	/**
+	 * @return the value as sent by telldusd, i.e. wind direction as 0-15
+	 *	rather than a compass point.
+	 */
+	public String getRawValue() {
+		return rawValue;
+	}
+
+	/**
+	 * @return the raw value as a number, or NaN if it is not numeric.
+	 */
+	public double getNumericValue() {
+		return parse(rawValue);
+	}
+
+	static double parse(String rawValue) {
+		if(rawValue == null)
+			return Double.NaN;
+		try {
+			return Double.parseDouble(rawValue);
+		} catch(NumberFormatException ex) {
+			return Double.NaN;
+		}
+	}
+
 	public int getTimestamp() {
 		return timestamp;
 	}
@@ -0,0 +1,265 @@
+package se.stromnet.jtelldus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.stromnet.jtelldus.Protocol.ErrorCode;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a number of command connections to telldusd connected in advance.
+ *
+ * telldusd only handles one message per connection, so every command needs
+ * a new connection. With a pool, the connect is done in the background
+ * beforehand and a command only has to write and read. Each connection
+ * handed out is replaced by a background thread, at most one connect per
+ * refill interval. Connections idle for too long are closed and replaced,
+ * in case something in between has dropped them silently. Before a
+ * connection is handed out it is also checked for end of stream, as when
+ * telldusd restarted.
+ *
+ * With a size of 0, no background thread is used and acquire() simply
+ * connects a new socket.
+ */
+public class SocketPool {
+	private static final Logger log = LoggerFactory.getLogger(SocketPool.class);
+
+	private final SocketAddress address;
+	private final int size;
+	private final long refillInterval;
+	private final long maxIdle;
+
+	private final LinkedBlockingDeque<Entry> idle = new LinkedBlockingDeque<Entry>();
+	private final ReentrantLock refillLock = new ReentrantLock();
+	private final Condition refillSignal = refillLock.newCondition();
+	private ThreadFactory threadFactory;
+	private Thread thread;
+	private volatile boolean run = true;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private static class Entry {
+		final TelldusSocket socket;
+		final long connected;
+
+		Entry(TelldusSocket socket) {
+			this.socket = socket;
+			this.connected = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @param size Number of connections to keep ready.
+	 * @param refillInterval Min ms between two background connects.
+	 * @param maxIdle Max ms a connection may wait in the pool.
+	 */
+	public SocketPool(SocketAddress address, int size, long refillInterval, long maxIdle) {
+		this.address = address;
+		this.size = size;
+		this.refillInterval = refillInterval;
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * Set the factory for the refill thread. Must be called before start().
+	 *
+	 * @param threadFactory Factory, or null for a regular daemon thread.
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	public void start() {
+		if(size <= 0 || thread != null)
+			return;
+
+		thread = Threads.newThread(threadFactory, new Runnable() {
+			public void run() {
+				refillLoop();
+			}
+		}, getClass().getSimpleName(), true);
+		thread.start();
+	}
+
+	/**
+	 * Stop refilling and close all pooled connections.
+	 */
+	public void close() {
+		run = false;
+		if(thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+
+		Entry e;
+		while((e = idle.poll()) != null)
+			close(e.socket);
+	}
+
+	/**
+	 * Get a connected socket. The caller owns it and must disconnect it
+	 * when done.
+	 *
+	 * @throws IOException if no pooled connection was available and a new
+	 *	one could not be made.
+	 */
+	public TelldusSocket acquire() throws IOException {
+		return acquire(0);
+	}
+
+	/**
+	 * Like acquire(), but a connect made because the pool was empty gives
+	 * up after connectTimeout ms.
+	 *
+	 * @throws CommandException with ERROR_CONNECTING_SERVICE if no
+	 *	connection could be made.
+	 */
+	public TelldusSocket acquire(long connectTimeout) throws IOException {
+		Entry e;
+		while((e = idle.poll()) != null) {
+			if(isStale(e)) {
+				evictions.incrementAndGet();
+				close(e.socket);
+				continue;
+			}
+
+			hits.incrementAndGet();
+			signalRefill();
+			return e.socket;
+		}
+
+		misses.incrementAndGet();
+		signalRefill();
+
+		TelldusSocket socket = new TelldusSocket(address);
+		if(!socket.connect(connectTimeout))
+			throw new CommandException(ErrorCode.ERROR_CONNECTING_SERVICE, "Failed to connect to "+ address);
+		return socket;
+	}
+
+	private boolean isStale(Entry e) {
+		return System.currentTimeMillis() - e.connected > maxIdle || e.socket.isPeerClosed();
+	}
+
+	private void signalRefill() {
+		if(thread == null)
+			return;
+
+		refillLock.lock();
+		try {
+			refillSignal.signalAll();
+		} finally {
+			refillLock.unlock();
+		}
+	}
+
+	private void refillLoop() {
+		while(run) {
+			try {
+				evictStale();
+
+				if(idle.size() < size) {
+					TelldusSocket socket = new TelldusSocket(address);
+					if(socket.connect())
+						idle.offer(new Entry(socket));
+
+					if(refillInterval > 0)
+						Thread.sleep(refillInterval);
+					else if(!socket.isConnected())
+						Thread.sleep(1000); // telldusd down; don't spin
+					continue;
+				}
+
+				refillLock.lock();
+				try {
+					// Wake up now and then to evict stale connections
+					refillSignal.await(Math.max(1000, maxIdle / 2), TimeUnit.MILLISECONDS);
+				} finally {
+					refillLock.unlock();
+				}
+			} catch(InterruptedException ex) {
+				// Most likely close() was called; run will be false.
+			}
+		}
+	}
+
+	private void evictStale() {
+		// Oldest first. Taken out before checking, so acquire() cannot get
+		// the socket while isPeerClosed() has it non-blocking.
+		Entry e;
+		while((e = idle.pollFirst()) != null) {
+			if(!isStale(e)) {
+				idle.offerFirst(e);
+				return;
+			}
+			evictions.incrementAndGet();
+			close(e.socket);
+		}
+	}
+
+	private static void close(TelldusSocket socket) {
+		try {
+			socket.disconnect();
+		} catch(IOException ex) {
+			log.debug("Failed to close pooled connection", ex);
+		}
+	}
+
+	/**
+	 * @return number of acquire() calls served by a pooled connection.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of acquire() calls which had to connect.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of pooled connections closed for being idle too long.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return number of connections ready for use.
+	 */
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "SocketPool{" +
+				"address=" + address +
+				", size=" + size +
+				", idle=" + getIdleCount() +
+				", hits=" + getHits() +
+				", misses=" + getMisses() +
+				'}';
+	}
+}
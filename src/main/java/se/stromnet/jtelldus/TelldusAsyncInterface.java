@@ -0,0 +1,397 @@
+package se.stromnet.jtelldus;
+
+import se.stromnet.jtelldus.Protocol.DeviceMethod;
+import se.stromnet.jtelldus.Protocol.DeviceType;
+import se.stromnet.jtelldus.Protocol.ErrorCode;
+import se.stromnet.jtelldus.TelldusInterface.Controller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Non-blocking variant of the TelldusInterface commands.
+ *
+ * Every tdXXX function returns right away with a CompletableFuture, which
+ * is completed when telldusd has replied. If telldusd cannot be reached, the
+ * future completes exceptionally with an IOException. Each command must
+ * complete within TelldusConfig.getCommandTimeout(), or the future fails
+ * with a CommandException with ERROR_COMMUNICATING_SERVICE and the
+ * connection is closed. A timeout of 0 waits forever.
+ *
+ * Commands are sent through an AsyncCommandEngine, which serves all
+ * connections from a single thread. Futures are completed on that thread,
+ * so lengthy work should be chained with the *Async variants of
+ * CompletableFuture.
+ *
+ * This interface only sends commands. Use TelldusInterface for events.
+ */
+public class TelldusAsyncInterface {
+	private final AsyncCommandEngine engine;
+
+	private static final Function<ByteBuffer, Integer> INT = new Function<ByteBuffer, Integer>() {
+		public Integer apply(ByteBuffer bb) {
+			bb.flip();
+			return Message.takeInt(bb);
+		}
+	};
+
+	private static final Function<ByteBuffer, String> STRING = new Function<ByteBuffer, String>() {
+		public String apply(ByteBuffer bb) {
+			bb.flip();
+			return Message.takeString(bb);
+		}
+	};
+
+	private static final Function<Integer, Boolean> BOOL = new Function<Integer, Boolean>() {
+		public Boolean apply(Integer code) {
+			return code == ErrorCode.SUCCESS.code();
+		}
+	};
+
+	private static final Function<Integer, ErrorCode> ERROR_CODE = new Function<Integer, ErrorCode>() {
+		public ErrorCode apply(Integer code) {
+			return ErrorCode.fromCode(code);
+		}
+	};
+
+	public TelldusAsyncInterface(String host, int clientPort) throws IOException {
+		this(new TelldusConfig(host, clientPort, -1));
+	}
+
+	public TelldusAsyncInterface(TelldusConfig config) throws IOException {
+		engine = new AsyncCommandEngine(
+				config.getClientTransport().getAddress(),
+				config.getMaxConcurrentCommands(),
+				config.getThreadFactory());
+		engine.setTimeout(config.getCommandTimeout());
+	}
+
+	/**
+	 * Stop the engine thread. Outstanding commands fail.
+	 */
+	public void close() {
+		engine.close();
+	}
+
+	public AsyncCommandEngine getCommandEngine() {
+		return engine;
+	}
+
+	private CompletableFuture<ByteBuffer> send(Message m) {
+		try {
+			return engine.submit(m);
+		} finally {
+			m.release();
+		}
+	}
+
+	private CompletableFuture<Integer> getInteger(Message m) {
+		return send(m).thenApply(INT);
+	}
+
+	private CompletableFuture<String> getString(Message m) {
+		return send(m).thenApply(STRING);
+	}
+
+	private CompletableFuture<Boolean> getBool(Message m) {
+		return getInteger(m).thenApply(BOOL);
+	}
+
+	private static Message deviceCommand(String function, int deviceId) {
+		Message m = Message.direct(function);
+		m.addArgument(deviceId);
+		return m;
+	}
+
+	/**
+	 * See TelldusInterface.tdTurnOn()
+	 */
+	public CompletableFuture<Integer> tdTurnOn(int deviceId) {
+		return getInteger(deviceCommand("tdTurnOn", deviceId));
+	}
+
+	/**
+	 * See TelldusInterface.tdTurnOff()
+	 */
+	public CompletableFuture<Integer> tdTurnOff(int deviceId) {
+		return getInteger(deviceCommand("tdTurnOff", deviceId));
+	}
+
+	/**
+	 * See TelldusInterface.tdBell()
+	 */
+	public CompletableFuture<Integer> tdBell(int deviceId) {
+		return getInteger(deviceCommand("tdBell", deviceId));
+	}
+
+	/**
+	 * See TelldusInterface.tdDim()
+	 */
+	public CompletableFuture<Integer> tdDim(int deviceId, int level) {
+		Message m = deviceCommand("tdDim", deviceId);
+		m.addArgument(level);
+		return getInteger(m);
+	}
+
+	/**
+	 * See TelldusInterface.tdExecute()
+	 */
+	public CompletableFuture<Integer> tdExecute(int deviceId) {
+		return getInteger(deviceCommand("tdExecute", deviceId));
+	}
+
+	/**
+	 * See TelldusInterface.tdUp()
+	 */
+	public CompletableFuture<Integer> tdUp(int deviceId) {
+		return getInteger(deviceCommand("tdUp", deviceId));
+	}
+
+	/**
+	 * See TelldusInterface.tdDown()
+	 */
+	public CompletableFuture<Integer> tdDown(int deviceId) {
+		return getInteger(deviceCommand("tdDown", deviceId));
+	}
+
+	/**
+	 * See TelldusInterface.tdStop()
+	 */
+	public CompletableFuture<Integer> tdStop(int deviceId) {
+		return getInteger(deviceCommand("tdStop", deviceId));
+	}
+
+	/**
+	 * See TelldusInterface.tdLearn()
+	 */
+	public CompletableFuture<Integer> tdLearn(int deviceId) {
+		return getInteger(deviceCommand("tdLearn", deviceId));
+	}
+
+	/**
+	 * See TelldusInterface.tdLastSentCommand()
+	 */
+	public CompletableFuture<DeviceMethod> tdLastSentCommand(int deviceId, int methodsSupported) {
+		Message m = deviceCommand("tdLastSentCommand", deviceId);
+		m.addArgument(methodsSupported);
+		return getInteger(m).thenApply(new Function<Integer, DeviceMethod>() {
+			public DeviceMethod apply(Integer code) {
+				return DeviceMethod.fromCode(code);
+			}
+		});
+	}
+
+	/**
+	 * See TelldusInterface.tdLastSentValue()
+	 */
+	public CompletableFuture<String> tdLastSentValue(int deviceId) {
+		return getString(deviceCommand("tdLastSentValue", deviceId));
+	}
+
+	/**
+	 * See TelldusInterface.tdGetNumberOfDevices()
+	 */
+	public CompletableFuture<Integer> tdGetNumberOfDevices() {
+		return getInteger(Message.direct("tdGetNumberOfDevices"));
+	}
+
+	/**
+	 * See TelldusInterface.tdGetDeviceId()
+	 */
+	public CompletableFuture<Integer> tdGetDeviceId(int intDeviceIndex) {
+		return getInteger(deviceCommand("tdGetDeviceId", intDeviceIndex));
+	}
+
+	/**
+	 * See TelldusInterface.tdGetDeviceType()
+	 */
+	public CompletableFuture<DeviceType> tdGetDeviceType(int intDeviceId) {
+		return getInteger(deviceCommand("tdGetDeviceType", intDeviceId)).thenApply(new Function<Integer, DeviceType>() {
+			public DeviceType apply(Integer code) {
+				return DeviceType.fromCode(code);
+			}
+		});
+	}
+
+	/**
+	 * See TelldusInterface.tdGetName()
+	 */
+	public CompletableFuture<String> tdGetName(int intDeviceId) {
+		return getString(deviceCommand("tdGetName", intDeviceId));
+	}
+
+	/**
+	 * See TelldusInterface.tdSetName()
+	 */
+	public CompletableFuture<Boolean> tdSetName(int intDeviceId, String strNewName) {
+		Message msg = deviceCommand("tdSetName", intDeviceId);
+		msg.addArgument(strNewName);
+		return getBool(msg);
+	}
+
+	/**
+	 * See TelldusInterface.tdGetProtocol()
+	 */
+	public CompletableFuture<String> tdGetProtocol(int intDeviceId) {
+		return getString(deviceCommand("tdGetProtocol", intDeviceId));
+	}
+
+	/**
+	 * See TelldusInterface.tdSetProtocol()
+	 */
+	public CompletableFuture<Boolean> tdSetProtocol(int intDeviceId, String strProtocol) {
+		Message msg = deviceCommand("tdSetProtocol", intDeviceId);
+		msg.addArgument(strProtocol);
+		return getBool(msg);
+	}
+
+	/**
+	 * See TelldusInterface.tdGetModel()
+	 */
+	public CompletableFuture<String> tdGetModel(int intDeviceId) {
+		return getString(deviceCommand("tdGetModel", intDeviceId));
+	}
+
+	/**
+	 * See TelldusInterface.tdSetModel()
+	 */
+	public CompletableFuture<Boolean> tdSetModel(int intDeviceId, String strModel) {
+		Message msg = deviceCommand("tdSetModel", intDeviceId);
+		msg.addArgument(strModel);
+		return getBool(msg);
+	}
+
+	/**
+	 * See TelldusInterface.tdSetDeviceParameter()
+	 */
+	public CompletableFuture<Boolean> tdSetDeviceParameter(int intDeviceId, String strName, String strValue) {
+		Message msg = deviceCommand("tdSetDeviceParameter", intDeviceId);
+		msg.addArgument(strName);
+		msg.addArgument(strValue);
+		return getBool(msg);
+	}
+
+	/**
+	 * See TelldusInterface.tdGetDeviceParameter()
+	 */
+	public CompletableFuture<String> tdGetDeviceParameter(int intDeviceId, String strName, String defaultValue) {
+		Message msg = deviceCommand("tdGetDeviceParameter", intDeviceId);
+		msg.addArgument(strName);
+		msg.addArgument(defaultValue);
+		return getString(msg);
+	}
+
+	/**
+	 * See TelldusInterface.tdAddDevice()
+	 */
+	public CompletableFuture<Integer> tdAddDevice() {
+		return getInteger(Message.direct("tdAddDevice"));
+	}
+
+	/**
+	 * See TelldusInterface.tdRemoveDevice()
+	 */
+	public CompletableFuture<Boolean> tdRemoveDevice(int intDeviceId) {
+		return getBool(deviceCommand("tdRemoveDevice", intDeviceId));
+	}
+
+	/**
+	 * See TelldusInterface.tdMethods()
+	 */
+	public CompletableFuture<Integer> tdMethods(int id, DeviceMethod... methodsSupported) {
+		int m = 0;
+		for(DeviceMethod dm: methodsSupported)
+			m+= dm.code();
+
+		Message msg = deviceCommand("tdMethods", id);
+		msg.addArgument(m);
+		return getInteger(msg);
+	}
+
+	/**
+	 * See TelldusInterface.tdSendRawCommand()
+	 */
+	public CompletableFuture<ErrorCode> tdSendRawCommand(String command, int reserved) {
+		Message msg = Message.direct("tdSendRawCommand");
+		msg.addArgument(command);
+		msg.addArgument(reserved);
+		return getInteger(msg).thenApply(ERROR_CODE);
+	}
+
+	/**
+	 * See TelldusInterface.tdSensor()
+	 */
+	public CompletableFuture<List<Sensor>> tdSensor() {
+		return getString(Message.direct("tdSensor")).thenApply(new Function<String, List<Sensor>>() {
+			public List<Sensor> apply(String retval) {
+				return TelldusInterface.parseSensors(retval);
+			}
+		});
+	}
+
+	/**
+	 * Get one of the supported sensor values from a sensor, see
+	 * TelldusInterface.tdSensorValue().
+	 *
+	 * @return Future with the value, or null if the value could not be fetched.
+	 */
+	public CompletableFuture<SensorValue> tdSensorValue(String protocol, String model, int id, int dataType) {
+		Message msg = Message.direct("tdSensorValue");
+		msg.addArgument(protocol);
+		msg.addArgument(model);
+		msg.addArgument(id);
+		msg.addArgument(dataType);
+
+		return getString(msg).thenApply(new Function<String, SensorValue>() {
+			public SensorValue apply(String retval) {
+				if(retval == null || retval.length() == 0)
+					return null;
+				return new SensorValue(Message.fromString(retval));
+			}
+		});
+	}
+
+	/**
+	 * See TelldusInterface.tdController()
+	 */
+	public CompletableFuture<List<Controller>> tdController() {
+		return getString(Message.direct("tdController")).thenApply(new Function<String, List<Controller>>() {
+			public List<Controller> apply(String retval) {
+				return TelldusInterface.parseControllers(retval);
+			}
+		});
+	}
+
+	/**
+	 * See TelldusInterface.tdControllerValue()
+	 */
+	public CompletableFuture<String> tdControllerValue(int controllerId, String name) {
+		Message msg = Message.direct("tdControllerValue");
+		msg.addArgument(controllerId);
+		msg.addArgument(name);
+		return getString(msg);
+	}
+
+	/**
+	 * See TelldusInterface.tdSetControllerValue()
+	 */
+	public CompletableFuture<ErrorCode> tdSetControllerValue(int controllerId, String name, String value) {
+		Message msg = Message.direct("tdSetControllerValue");
+		msg.addArgument(controllerId);
+		msg.addArgument(name);
+		msg.addArgument(value);
+		return getInteger(msg).thenApply(ERROR_CODE);
+	}
+
+	/**
+	 * See TelldusInterface.tdRemoveController()
+	 */
+	public CompletableFuture<ErrorCode> tdRemoveController(int controllerId) {
+		Message msg = Message.direct("tdRemoveController");
+		msg.addArgument(controllerId);
+		return getInteger(msg).thenApply(ERROR_CODE);
+	}
+}
@@ -4,11 +4,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.stromnet.jtelldus.event.EventDispatcher;
 import se.stromnet.jtelldus.event.EventFactory;
+import se.stromnet.jtelldus.event.EventFilter;
+import se.stromnet.jtelldus.event.EventFrame;
+import se.stromnet.jtelldus.event.EventPublisher;
+import se.stromnet.jtelldus.event.EventStream;
+import se.stromnet.jtelldus.event.EventType;
+import se.stromnet.jtelldus.event.ListenerQueue;
+import se.stromnet.jtelldus.event.OverflowPolicy;
+import se.stromnet.jtelldus.event.TDConnectionEvent;
 import se.stromnet.jtelldus.event.TelldusEvent;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Implements the client communications. Opens up one event socket, and provides
@@ -18,14 +28,19 @@ import java.nio.channels.ClosedByInterruptException;
  *
  * @author johan
  */
-public class TelldusClient implements Runnable {
+public class TelldusClient implements Runnable, Requester {
 	private static final Logger log = LoggerFactory.getLogger(TelldusClient.class);
 
-	private TelldusSocket client, events;
+	private TelldusSocket events;
+	private CommandEngine engine;
 	protected Thread thread;
 
-	private EventDispatcher dispatcher;
-	private boolean run = true;
+	private final EventDispatcher dispatcher;
+	private volatile boolean run = true;
+	private volatile boolean flyweightEvents;
+	private volatile EventFilter eventFilter;
+	private ReconnectPolicy reconnectPolicy = ReconnectPolicy.DEFAULT;
+	private EventWatchdog watchdog;
 	
 
 	public TelldusClient() {
@@ -33,22 +48,78 @@ public class TelldusClient implements Runnable {
 	}
 	
 	public TelldusClient(String host, int clientPort, int eventPort) throws IOException {
+		this(new TelldusConfig(host, clientPort, eventPort));
+	}
+
+	public TelldusClient(TelldusConfig config) throws IOException {
 		this();
-		start(host, clientPort, eventPort);
+		start(config);
 	}
 	
 	public void start(String host, int clientPort, int eventPort) throws IOException
 	{
-		client = new TelldusSocket(host, clientPort);
-		events = new TelldusSocket(host, eventPort);
+		start(new TelldusConfig(host, clientPort, eventPort));
+	}
+
+	public void start(TelldusConfig config) throws IOException
+	{
+		ThreadFactory threadFactory = config.getThreadFactory();
+		dispatcher.setThreadFactory(threadFactory);
+
+		SocketPool pool = new SocketPool(
+				config.getClientTransport().getAddress(),
+				config.getCommandPoolSize(),
+				config.getCommandPoolRefillInterval(),
+				config.getCommandPoolMaxIdle());
+		pool.setThreadFactory(threadFactory);
+		pool.start();
+		engine = new CommandEngine(pool, config.getMaxConcurrentCommands(), threadFactory);
+		engine.setTimeout(config.getCommandTimeout());
+		reconnectPolicy = config.getReconnectPolicy();
+
+		if(config.getCircuitBreakerThreshold() > 0) {
+			CircuitBreaker breaker = new CircuitBreaker(config.getCircuitBreakerThreshold(), reconnectPolicy);
+			breaker.setListener(new CircuitBreaker.Listener() {
+				public void onStateChange(CircuitBreaker.State state, long retryIn) {
+					if(state == CircuitBreaker.State.OPEN)
+						log.warn("telldusd unreachable, failing commands for "+ retryIn +"ms");
+					fireConnectionEvent(TDConnectionEvent.Channel.COMMANDS, toConnectionState(state), retryIn);
+				}
+			});
+			engine.setCircuitBreaker(breaker);
+		}
 
-		thread = new Thread(this);
-		thread.setName(this.getClass().getSimpleName() + "-" + thread.getId());
+		if(config.isPipelinedCommands()) {
+			PipelinedConnection pipeline = PipelinedConnection.open(
+					config.getClientTransport().getAddress(), threadFactory);
+			if(pipeline != null)
+				engine.setPipeline(pipeline);
+			else
+				log.info("telldusd does not support pipelined commands, using one connection per command");
+		}
+
+		events = new TelldusSocket(config.getEventTransport());
+
+		if(config.getEventWatchdogPeriod() > 0) {
+			watchdog = new EventWatchdog(config.getEventWatchdogPeriod(), engine, new Runnable() {
+				public void run() {
+					events.abort();
+				}
+			}, threadFactory);
+			watchdog.start();
+		}
+
+		thread = Threads.newThread(threadFactory, this, this.getClass().getSimpleName(), false);
 		thread.start();
 	}
 
 	public void close() {
 		run = false;
+		if(watchdog != null)
+			watchdog.close();
+		if(engine != null)
+			engine.close();
+
 		if(thread == null)
 			return;
 		
@@ -58,59 +129,81 @@ public class TelldusClient implements Runnable {
 		}catch(Exception ex) {}
 
 		thread = null;
+		dispatcher.close();
+	}
+
+	private static TDConnectionEvent.State toConnectionState(CircuitBreaker.State state) {
+		switch(state) {
+			case OPEN:
+				return TDConnectionEvent.State.DOWN;
+			case HALF_OPEN:
+				return TDConnectionEvent.State.PROBING;
+			default:
+				return TDConnectionEvent.State.UP;
+		}
+	}
+
+	private void fireConnectionEvent(TDConnectionEvent.Channel channel, TDConnectionEvent.State state, long retryIn) {
+		if(dispatcher.hasListeners(TDConnectionEvent.TYPE))
+			dispatcher.dispatchEvent(new TDConnectionEvent(channel, state, retryIn));
 	}
 
 	/**
 	 * Main loop for separate Thread. keeps connection to event socket
-	 * alive and reads events.
+	 * alive and reads events. Lost connections are retried according to
+	 * the ReconnectPolicy.
 	 */
 	public void run() {
+		// Failed attempts in a row. A connection which is lost before any
+		// data is received counts as a failed attempt too.
+		int failures = 0;
 		while (run) {
 			if (!events.connect()) {
-				// Connection failed; wait 1s and try again until it works out.
-				try {
-					Thread.sleep(1000);
-				} catch (Exception e) {
-				}
+				backoff(++failures);
 				continue;
 			}
 
+			fireConnectionEvent(TDConnectionEvent.Channel.EVENTS, TDConnectionEvent.State.UP, 0);
+
 			try {
-				// Use same buffer size as ClientCommunicationHandler.cpp
-				ByteBuffer bb = ByteBuffer.allocate(2000);
+				// Use same initial buffer size as ClientCommunicationHandler.cpp
+				EventStream stream = new EventStream(2000);
 				while (run) {
 					if(log.isTraceEnabled())
 						log.trace("Reading...");
 
-					if (bb.position() == 0) {
-						int len = events.read(bb);
-						if(log.isTraceEnabled())
-							log.trace("Got "+ len +" bytes on socket");
-					} else {
-						// Bytes left in buffer, skipping read
-					}
-					bb.flip(); // Switch to reading from buffer
-
-
-					if (!Message.nextIsString(bb)) {
-						throw new IllegalStateException("Illegal data in buffer, expected string");
-					}
-
-					Message msg = new Message(bb);
-					if(!handleEvent(msg)) {
-						// Unhandled; clear out bb
-						log.info("Unhandled event. "+bb.remaining()+" bytes data left in buffer, throwing it away");
-
-						// We could not parse the event. This could be due to partial read. Restore the state of the buffer, and try to read some more data
-						bb.clear();
-					} else {
-						bb.compact(); // Make the buffer ready for writing to buffer
+					int len = stream.readFrom(events);
+					if(log.isTraceEnabled())
+						log.trace("Got "+ len +" bytes on socket");
+
+					if(len < 0)
+						throw new IOException("Event socket closed by telldusd");
+					failures = 0;
+					if(watchdog != null)
+						watchdog.activity();
+
+					// Handle every complete event we got before reading again.
+					// Any partial event is kept for the next read.
+					if(watchdog != null)
+						watchdog.dispatching(true);
+					try {
+						while (stream.nextFrame()) {
+							if(!handleEvent(stream.frame()))
+								log.info("Unhandled event "+ stream.frame());
+						}
+					} finally {
+						if(watchdog != null)
+							watchdog.dispatching(false);
 					}
 				}
 			} catch(ClosedByInterruptException ex) {
 				// Most likely close() was called; run will be false.
 			} catch (IOException ex) {
 				log.error("Error talking to telldusd", ex);
+				try {
+					events.disconnect();
+				} catch (IOException e) {
+				}
 			} catch (IllegalStateException ex) {
 				log.error("Unexpected state", ex);
 				// Disconnect and hope a reconnect solves it.
@@ -119,6 +212,9 @@ public class TelldusClient implements Runnable {
 				} catch (IOException e) {
 				}
 			}
+
+			if (run)
+				backoff(++failures);
 		}
 		
 		try {
@@ -126,11 +222,41 @@ public class TelldusClient implements Runnable {
 		}catch(IOException ex) {}
 	}
 
+	/**
+	 * Wait before the next attempt to connect the event socket.
+	 */
+	private void backoff(int failures) {
+		long delay = reconnectPolicy.delay(failures);
+		fireConnectionEvent(TDConnectionEvent.Channel.EVENTS, TDConnectionEvent.State.DOWN, delay);
+		if (delay == 0)
+			return;
+
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			// Most likely close() was called; run will be false.
+		}
+	}
+
 	/**
 	 * Extract event and dispatch if proper
 	 */
-	private boolean handleEvent(Message msg) {
-		TelldusEvent event = EventFactory.createEvent(msg);
+	private boolean handleEvent(EventFrame frame) {
+		EventFilter filter = eventFilter;
+		if(filter != null && !filter.accept(frame)) {
+			if(log.isTraceEnabled())
+				log.trace("Filtered out "+frame);
+			return true;
+		}
+
+		// Don't bother building events nobody listens for
+		if(!dispatcher.hasListeners(EventFactory.eventType(frame))) {
+			if(log.isTraceEnabled())
+				log.trace("No listeners for "+frame);
+			return true;
+		}
+
+		TelldusEvent event = EventFactory.createEvent(frame, flyweightEvents);
 
 		if(log.isDebugEnabled())
 			log.debug("Received event "+event);
@@ -143,10 +269,71 @@ public class TelldusClient implements Runnable {
 		return true;
 	}
 
+	/**
+	 * Enable or disable flyweight events. Flyweight events are views over the
+	 * receive buffer which decode their fields first when they are read.
+	 * They are only valid during the listener callback, unless detach()'ed.
+	 */
+	public void setFlyweightEvents(boolean flyweightEvents) {
+		this.flyweightEvents = flyweightEvents;
+	}
+
+	public boolean isFlyweightEvents() {
+		return flyweightEvents;
+	}
+
+	/**
+	 * Set a filter which is applied to every event before it is built.
+	 *
+	 * @param filter Filter to use, or null to pass all events.
+	 */
+	public void setEventFilter(EventFilter filter) {
+		this.eventFilter = filter;
+	}
+
+	public EventFilter getEventFilter() {
+		return eventFilter;
+	}
+
 	public void registerEventListener(TelldusEvent.Listener listener) {
 		dispatcher.addEventListener(listener);
 	}
 
+	public ListenerQueue registerEventListener(TelldusEvent.Listener listener, int capacity, OverflowPolicy policy) {
+		return dispatcher.addEventListener(listener, capacity, policy);
+	}
+
+	public void setStripedDispatch(int stripes, int queueCapacity) {
+		dispatcher.setStripedDispatch(stripes, queueCapacity);
+	}
+
+	public EventPublisher<TelldusEvent> getEventPublisher() {
+		return dispatcher.getPublisher();
+	}
+
+	public <E extends TelldusEvent> EventPublisher<E> getEventPublisher(EventType<E, ?> type) {
+		return dispatcher.getPublisher(type);
+	}
+
+	public SocketPool getCommandPool() {
+		return engine.getPool();
+	}
+
+	public CommandEngine getCommandEngine() {
+		return engine;
+	}
+
+	/**
+	 * @return the event watchdog, or null if not enabled.
+	 */
+	public EventWatchdog getEventWatchdog() {
+		return watchdog;
+	}
+
+	public List<ListenerQueue> getListenerQueues() {
+		return dispatcher.getListenerQueues();
+	}
+
 	public void unregisterEventListener(TelldusEvent.Listener listener) {
 		dispatcher.removeEventListener(listener);
 	}
@@ -159,65 +346,74 @@ public class TelldusClient implements Runnable {
 	}
 
 	protected int getIntegerFromService(Message m) {
-		ByteBuffer bb = sendToService(m);
-		bb.flip(); // Switch to reading from buffer
-
-		return Message.takeInt(bb);
+		return getIntegerFromService(m, engine.getTimeout());
 	}
 
-	protected String getStringFromService(Message m) {
-		ByteBuffer bb = sendToService(m);
-		bb.flip(); // Switch to reading from buffer
+	/**
+	 * @return the reply, or like the telldus client library the error code
+	 *	if the command failed.
+	 */
+	protected int getIntegerFromService(Message m, long timeout) {
+		try {
+			ByteBuffer bb = sendToService(m, timeout);
+			bb.flip(); // Switch to reading from buffer
 
-		return Message.takeString(bb);
+			return Message.takeInt(bb);
+		} catch (IOException ex) {
+			return CommandException.errorCodeOf(ex).code();
+		}
 	}
 
-	protected ByteBuffer sendToService(Message m) {
-		return sendToService(m, true);
+	protected String getStringFromService(Message m) {
+		return getStringFromService(m, engine.getTimeout());
 	}
 
-
 	/**
-	 * Send a control message to the telldus daemon.
-	 *
-	 * If it fails and the retry flag is set, we will try to re-send it once.
-	 * 
-	 * @param m
-	 * @param retry
-	 * @return
+	 * @return the reply, or an empty string if the command failed.
 	 */
-	private ByteBuffer sendToService(Message m, boolean retry) {
-		/**
-		 * Unfortunately telldusd cannot handle more than one message
-		 * per connection..
-		 */
+	protected String getStringFromService(Message m, long timeout) {
 		try {
-			// Socket is generally already disconnected.. But for retrys, might not be.
+			ByteBuffer bb = sendToService(m, timeout);
+			bb.flip(); // Switch to reading from buffer
 
-			// XXX: trunk client has retry support.
-			client.disconnect();
+			return Message.takeString(bb);
+		} catch (IOException ex) {
+			return "";
+		}
+	}
 
-			client.connect();
-			client.write(m);
+	/**
+	 * Like getIntegerFromService(), but a failed command throws instead of
+	 * returning an error code. Used by the caches, which must not store
+	 * error codes as values.
+	 */
+	public int requestInt(Message m) throws IOException {
+		ByteBuffer bb = sendToService(m, engine.getTimeout());
+		bb.flip();
+		return Message.takeInt(bb);
+	}
 
-			ByteBuffer bb = ByteBuffer.allocate(2000);
-			client.read(bb);
+	/**
+	 * Like getStringFromService(), but a failed command throws instead of
+	 * returning "".
+	 */
+	public String requestString(Message m) throws IOException {
+		ByteBuffer bb = sendToService(m, engine.getTimeout());
+		bb.flip();
+		return Message.takeString(bb);
+	}
 
-			return bb;
+	/**
+	 * @param timeout Max ms for the command, or 0 for no limit.
+	 */
+	protected ByteBuffer sendToService(Message m, long timeout) throws IOException {
+		try {
+			return engine.execute(m, timeout);
 		} catch (IOException ex) {
-
-			if (retry) // Retry once
-			{
-				return sendToService(m, false);
-			}
-
-			return null;
+			log.warn("Command failed: "+ ex.getMessage());
+			throw ex;
 		} finally {
-			// Always disconnect.
-			try {
-				client.disconnect();
-			} catch (IOException ex) {
-			}
+			m.release();
 		}
 	}
 }
@@ -0,0 +1,367 @@
+package se.stromnet.jtelldus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Settings for TelldusInterface/TelldusClient.
+ *
+ * Only the two telldusd sockets are required, either as host and TCP
+ * ports or as URIs (see Transport); everything else has defaults which
+ * behave like the plain TelldusInterface(host, clientPort, eventPort).
+ */
+public class TelldusConfig {
+	private static final Logger log = LoggerFactory.getLogger(TelldusConfig.class);
+
+	public static final int DEFAULT_DISCOVERY_PARALLELISM = 8;
+
+	private final String host;
+	private final int clientPort;
+	private final int eventPort;
+	private final Transport clientTransport;
+	private final Transport eventTransport;
+
+	private int commandPoolSize = 0;
+	private long commandPoolRefillInterval = 0;
+	private long commandPoolMaxIdle = 60000;
+	private int maxConcurrentCommands = 8;
+	private boolean pipelinedCommands = false;
+	private long commandTimeout = 30000;
+	private ReconnectPolicy reconnectPolicy = ReconnectPolicy.DEFAULT;
+	private int circuitBreakerThreshold = 3;
+	private long eventWatchdogPeriod = 0;
+	private boolean deviceCache = false;
+	private boolean sensorTable = false;
+	private boolean deviceStateCache = false;
+	private long commandSuppressionTtl = 0;
+	private boolean controllerCache = false;
+	private boolean deviceParameterStore = false;
+	private String[] deviceParameterPrefetch = DeviceParameterStore.COMMON_PARAMETERS;
+	private int discoveryParallelism = DEFAULT_DISCOVERY_PARALLELISM;
+	private ThreadFactory threadFactory;
+
+	public TelldusConfig(String host, int clientPort, int eventPort) {
+		this.host = host;
+		this.clientPort = clientPort;
+		this.eventPort = eventPort;
+		this.clientTransport = null;
+		this.eventTransport = null;
+	}
+
+	/**
+	 * @param clientUri telldusd's client socket, such as unix:///tmp/TelldusClient
+	 * @param eventUri telldusd's event socket, such as unix:///tmp/TelldusEvents
+	 */
+	public TelldusConfig(String clientUri, String eventUri) {
+		this.host = null;
+		this.clientPort = -1;
+		this.eventPort = -1;
+		this.clientTransport = Transport.forUri(clientUri);
+		this.eventTransport = Transport.forUri(eventUri);
+	}
+
+	/**
+	 * @return the host, or null if the config was created from URIs.
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	public int getClientPort() {
+		return clientPort;
+	}
+
+	public int getEventPort() {
+		return eventPort;
+	}
+
+	public Transport getClientTransport() {
+		if(clientTransport == null)
+			return Transport.tcp(host, clientPort);
+		return clientTransport;
+	}
+
+	public Transport getEventTransport() {
+		if(eventTransport == null)
+			return Transport.tcp(host, eventPort);
+		return eventTransport;
+	}
+
+	/**
+	 * Number of command connections to keep connected in advance, so that
+	 * a command does not have to wait for a connect. telldusd only takes
+	 * one command per connection, so each one is replaced once used.
+	 * 0 (the default) connects when a command is sent.
+	 */
+	public TelldusConfig setCommandPoolSize(int commandPoolSize) {
+		this.commandPoolSize = commandPoolSize;
+		return this;
+	}
+
+	public int getCommandPoolSize() {
+		return commandPoolSize;
+	}
+
+	/**
+	 * Min time in ms between two connects made to refill the pool.
+	 */
+	public TelldusConfig setCommandPoolRefillInterval(long millis) {
+		this.commandPoolRefillInterval = millis;
+		return this;
+	}
+
+	public long getCommandPoolRefillInterval() {
+		return commandPoolRefillInterval;
+	}
+
+	/**
+	 * Pooled connections unused for this many ms are closed and replaced.
+	 */
+	public TelldusConfig setCommandPoolMaxIdle(long millis) {
+		this.commandPoolMaxIdle = millis;
+		return this;
+	}
+
+	public long getCommandPoolMaxIdle() {
+		return commandPoolMaxIdle;
+	}
+
+	/**
+	 * Max number of commands sent to telldusd at once, by any number of
+	 * threads. Other threads wait for their turn. 0 means no limit.
+	 */
+	public TelldusConfig setMaxConcurrentCommands(int maxConcurrentCommands) {
+		this.maxConcurrentCommands = maxConcurrentCommands;
+		return this;
+	}
+
+	public int getMaxConcurrentCommands() {
+		return maxConcurrentCommands;
+	}
+
+	/**
+	 * Max time in ms for a command, including waiting for its turn and
+	 * connecting. A command which takes longer fails with
+	 * ERROR_COMMUNICATING_SERVICE. 0 means no limit.
+	 * See TelldusInterface.withTimeout() to override it per command.
+	 */
+	public TelldusConfig setCommandTimeout(long millis) {
+		this.commandTimeout = millis;
+		return this;
+	}
+
+	public long getCommandTimeout() {
+		return commandTimeout;
+	}
+
+	/**
+	 * Delays between attempts to reconnect the event socket, and how long
+	 * the command circuit breaker stays open.
+	 */
+	public TelldusConfig setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+		this.reconnectPolicy = reconnectPolicy;
+		return this;
+	}
+
+	public ReconnectPolicy getReconnectPolicy() {
+		return reconnectPolicy;
+	}
+
+	/**
+	 * Number of commands in a row failing to connect after which further
+	 * commands fail right away, until a trial command gets through again.
+	 * See CircuitBreaker. 0 disables the breaker.
+	 */
+	public TelldusConfig setCircuitBreakerThreshold(int threshold) {
+		this.circuitBreakerThreshold = threshold;
+		return this;
+	}
+
+	public int getCircuitBreakerThreshold() {
+		return circuitBreakerThreshold;
+	}
+
+	/**
+	 * Check that telldusd is alive when no event data has been received
+	 * for this many ms, and reconnect the event socket if it is. See
+	 * EventWatchdog. 0 (the default) disables the watchdog.
+	 */
+	public TelldusConfig setEventWatchdogPeriod(long millis) {
+		this.eventWatchdogPeriod = millis;
+		return this;
+	}
+
+	public long getEventWatchdogPeriod() {
+		return eventWatchdogPeriod;
+	}
+
+	/**
+	 * Keep the attributes of all devices in memory, so that TelldusInterface
+	 * can answer tdGetName() and friends without asking telldusd. The cache
+	 * is kept current by TDDeviceChangeEvents; an EventFilter must not drop
+	 * those. The devices are loaded in the background at start, with up
+	 * to getDiscoveryParallelism() commands at once. See DeviceRegistry.
+	 */
+	public TelldusConfig setDeviceCache(boolean deviceCache) {
+		this.deviceCache = deviceCache;
+		return this;
+	}
+
+	public boolean isDeviceCache() {
+		return deviceCache;
+	}
+
+	/**
+	 * Keep the latest value of every sensor in memory, from TDSensorEvents,
+	 * and let TelldusInterface.tdSensorValue() answer from it. See
+	 * SensorTable.
+	 */
+	public TelldusConfig setSensorTable(boolean sensorTable) {
+		this.sensorTable = sensorTable;
+		return this;
+	}
+
+	public boolean isSensorTable() {
+		return sensorTable;
+	}
+
+	/**
+	 * Keep the last known state of every device, from TDDeviceEvents, and
+	 * let TelldusInterface answer tdLastSentCommand() and tdLastSentValue()
+	 * from it. See DeviceStateCache.
+	 */
+	public TelldusConfig setDeviceStateCache(boolean deviceStateCache) {
+		this.deviceStateCache = deviceStateCache;
+		return this;
+	}
+
+	public boolean isDeviceStateCache() {
+		return deviceStateCache || commandSuppressionTtl > 0;
+	}
+
+	/**
+	 * Skip tdTurnOn, tdTurnOff and tdDim when the device is known to have
+	 * been put in that state less than this many ms ago, saving the RF
+	 * transmission. Enables the device state cache. 0 (the default) always
+	 * sends.
+	 */
+	public TelldusConfig setCommandSuppressionTtl(long millis) {
+		this.commandSuppressionTtl = millis;
+		return this;
+	}
+
+	public long getCommandSuppressionTtl() {
+		return commandSuppressionTtl;
+	}
+
+	/**
+	 * Keep the controller list and controller values in memory, kept
+	 * current by TDControllerEvents, and let TelldusInterface answer
+	 * tdController() and tdControllerValue() from it. See ControllerCache.
+	 */
+	public TelldusConfig setControllerCache(boolean controllerCache) {
+		this.controllerCache = controllerCache;
+		return this;
+	}
+
+	public boolean isControllerCache() {
+		return controllerCache;
+	}
+
+	/**
+	 * Keep device parameters in memory and let TelldusInterface answer
+	 * tdGetDeviceParameter() from them. The parameters named by
+	 * setDeviceParameterPrefetch() are loaded for all devices in the
+	 * background at start and after the event socket reconnects, with up
+	 * to getDiscoveryParallelism() commands at once. See
+	 * DeviceParameterStore.
+	 */
+	public TelldusConfig setDeviceParameterStore(boolean deviceParameterStore) {
+		this.deviceParameterStore = deviceParameterStore;
+		return this;
+	}
+
+	public boolean isDeviceParameterStore() {
+		return deviceParameterStore;
+	}
+
+	/**
+	 * Parameters to load for every device at start, when the device
+	 * parameter store is on. Defaults to
+	 * DeviceParameterStore.COMMON_PARAMETERS; none loads each parameter
+	 * when first asked for.
+	 */
+	public TelldusConfig setDeviceParameterPrefetch(String... names) {
+		this.deviceParameterPrefetch = names;
+		return this;
+	}
+
+	public String[] getDeviceParameterPrefetch() {
+		return deviceParameterPrefetch;
+	}
+
+	/**
+	 * Max number of commands TelldusInterface.snapshot(), the device cache
+	 * load and the device parameter prefetch run at once, or 0 for the
+	 * default, DEFAULT_DISCOVERY_PARALLELISM. Also limited by
+	 * setMaxConcurrentCommands().
+	 */
+	public TelldusConfig setDiscoveryParallelism(int discoveryParallelism) {
+		this.discoveryParallelism = discoveryParallelism;
+		return this;
+	}
+
+	public int getDiscoveryParallelism() {
+		return discoveryParallelism > 0 ? discoveryParallelism : DEFAULT_DISCOVERY_PARALLELISM;
+	}
+
+	/**
+	 * Try to send all commands on one persistent connection, which forked
+	 * telldusd versions support. It is probed for at start; if telldusd
+	 * does not support it, one connection per command is used as usual.
+	 */
+	public TelldusConfig setPipelinedCommands(boolean pipelinedCommands) {
+		this.pipelinedCommands = pipelinedCommands;
+		return this;
+	}
+
+	public boolean isPipelinedCommands() {
+		return pipelinedCommands;
+	}
+
+	/**
+	 * Factory for every thread the client starts: the event reader,
+	 * listener queues, striped dispatch workers and the pool refiller.
+	 * null (the default) uses regular platform threads.
+	 */
+	public TelldusConfig setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+		return this;
+	}
+
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * Run the client's threads as virtual threads. Needs Java 21 or later;
+	 * on older JVMs a warning is logged and platform threads are used.
+	 *
+	 * Commands run on the caller's thread, so to send commands from
+	 * virtual threads, simply call TelldusInterface from them. Nothing on
+	 * the command path holds a monitor while blocking.
+	 */
+	public TelldusConfig setVirtualThreads(boolean virtualThreads) {
+		if(!virtualThreads) {
+			threadFactory = null;
+			return this;
+		}
+
+		threadFactory = Threads.virtualThreadFactory();
+		if(threadFactory == null)
+			log.warn("Virtual threads are not available in this JVM, using platform threads");
+		return this;
+	}
+}
@@ -1,9 +1,15 @@
 package se.stromnet.jtelldus;
 
+import se.stromnet.jtelldus.Protocol.ChangeType;
 import se.stromnet.jtelldus.Protocol.ControllerType;
 import se.stromnet.jtelldus.Protocol.DeviceMethod;
 import se.stromnet.jtelldus.Protocol.DeviceType;
 import se.stromnet.jtelldus.Protocol.ErrorCode;
+import se.stromnet.jtelldus.event.EventFilter;
+import se.stromnet.jtelldus.event.EventPublisher;
+import se.stromnet.jtelldus.event.EventType;
+import se.stromnet.jtelldus.event.ListenerQueue;
+import se.stromnet.jtelldus.event.OverflowPolicy;
 import se.stromnet.jtelldus.event.TelldusEvent;
 
 import java.io.IOException;
@@ -37,17 +43,119 @@ import java.util.List;
  * For each interface implemented, the instance will have a function which is
  * called whenever an event arrives.
  * 
+ * All tdXXX functions may be called from any number of threads at the same
+ * time. Each command runs on a connection of its own, and the number of
+ * commands sent at once is limited, see TelldusConfig.
+ *
  * The events are dispatched in an ordered fashion, so first registered listener
  * will get it first. The event dispatching is synchronous, so make sure to not
- * perform any lengthy operations in the callback.
+ * perform any lengthy operations in the callback, or register the listener
+ * with a queue of its own.
  *
  * @author Johan Ström <johan@stromnet.se>
  */
 public class TelldusInterface {
 	protected TelldusClient client;
+	private final TelldusConfig config;
+	// Command timeout in ms, or -1 for TelldusConfig.getCommandTimeout()
+	private final long timeout;
+	// null unless TelldusConfig.setDeviceCache()
+	private final DeviceRegistry devices;
+	// null unless TelldusConfig.setSensorTable()
+	private final SensorTable sensors;
+	// null unless TelldusConfig.setDeviceStateCache()
+	private final DeviceStateCache states;
+	// null unless TelldusConfig.setControllerCache()
+	private final ControllerCache controllers;
+	// null unless TelldusConfig.setDeviceParameterStore()
+	private final DeviceParameterStore parameters;
 	
 	public TelldusInterface(String host, int clientPort, int eventPort) throws IOException {
-		client = new TelldusClient(host, clientPort, eventPort);
+		config = new TelldusConfig(host, clientPort, eventPort);
+		client = new TelldusClient(config);
+		timeout = -1;
+		devices = null;
+		sensors = null;
+		states = null;
+		controllers = null;
+		parameters = null;
+	}
+
+	/**
+	 * Create with additional settings, such as a pool of command
+	 * connections. See TelldusConfig.
+	 */
+	public TelldusInterface(TelldusConfig config) throws IOException {
+		client = new TelldusClient(config);
+		this.config = config;
+		timeout = -1;
+
+		if(config.isDeviceCache()) {
+			devices = new DeviceRegistry(client, config.getDiscoveryParallelism(), config.getThreadFactory());
+			// Own thread, since updates talk to telldusd. BLOCK; a lost
+			// change would leave the cache stale.
+			client.registerEventListener(devices, 256, OverflowPolicy.BLOCK);
+			devices.startLoad();
+		} else {
+			devices = null;
+		}
+
+		if(config.isSensorTable()) {
+			sensors = new SensorTable();
+			client.registerEventListener(sensors);
+		} else {
+			sensors = null;
+		}
+
+		if(config.isDeviceStateCache()) {
+			states = new DeviceStateCache(config.getCommandSuppressionTtl());
+			client.registerEventListener(states);
+		} else {
+			states = null;
+		}
+
+		if(config.isControllerCache()) {
+			controllers = new ControllerCache(client);
+			client.registerEventListener(controllers);
+		} else {
+			controllers = null;
+		}
+
+		if(config.isDeviceParameterStore()) {
+			parameters = new DeviceParameterStore(client);
+			client.registerEventListener(parameters);
+			parameters.setPrefetch(config.getDeviceParameterPrefetch(),
+					config.getDiscoveryParallelism(), config.getThreadFactory());
+			parameters.startPrefetch();
+		} else {
+			parameters = null;
+		}
+	}
+
+	private TelldusInterface(TelldusInterface parent, long timeout) {
+		client = parent.client;
+		config = parent.config;
+		this.timeout = timeout;
+		this.devices = parent.devices;
+		this.sensors = parent.sensors;
+		this.states = parent.states;
+		this.controllers = parent.controllers;
+		this.parameters = parent.parameters;
+	}
+
+	/**
+	 * Returns a view of this interface whose commands use another timeout
+	 * than TelldusConfig.getCommandTimeout(), for example:
+	 *
+	 *	td.withTimeout(500).tdTurnOn(3);
+	 *
+	 * The view shares connections and listeners with this instance;
+	 * closing either closes both.
+	 *
+	 * @param millis Max time for each command, or 0 for no limit.
+	 */
+	public TelldusInterface withTimeout(long millis) {
+		return new TelldusInterface(this, millis);
 	}
 
 	public void close() {
@@ -70,6 +178,127 @@ public class TelldusInterface {
 		client.registerEventListener(listener);
 	}
 
+	/**
+	 * Register a listener which is called from a thread of its own instead
+	 * of the event reading thread. Events are queued for the listener, up
+	 * to capacity events. When the queue is full, policy decides whether to
+	 * wait for the listener or which event to drop. Use this for listeners
+	 * which may take a while, such as ones writing to a database.
+	 *
+	 * Note that with OverflowPolicy.BLOCK a slow listener still stalls
+	 * event reading, once its queue is full.
+	 *
+	 * @return The listener's queue, which provides queue depth and drop counters.
+	 */
+	public ListenerQueue registerListener(TelldusEvent.Listener listener, int capacity, OverflowPolicy policy) {
+		return client.registerEventListener(listener, capacity, policy);
+	}
+
+	/**
+	 * Deliver events from a pool of threads instead of the event reading
+	 * thread. Events about the same device, sensor or controller are
+	 * always delivered in order, by the same thread, while events about
+	 * different ones are delivered in parallel. Listeners must then be
+	 * thread safe.
+	 *
+	 * @param threads Number of threads, or 0 to go back to delivering
+	 *	events from the event reading thread.
+	 * @param queueCapacity Max number of events waiting per thread. Event
+	 *	reading waits when a thread's queue is full.
+	 */
+	public void setParallelDispatch(int threads, int queueCapacity) {
+		client.setStripedDispatch(threads, queueCapacity);
+	}
+
+	/**
+	 * Returns a Flow.Publisher of all events, as an alternative to
+	 * listeners. Subscribers are called from ForkJoinPool.commonPool().
+	 *
+	 * Demand is honoured all the way to the event socket: when a
+	 * subscriber has not requested more events and its buffer is full,
+	 * event reading waits, leaving data in the socket.
+	 */
+	public EventPublisher<TelldusEvent> getEventPublisher() {
+		return client.getEventPublisher();
+	}
+
+	/**
+	 * Returns a Flow.Publisher of one type of events, such as
+	 * TDSensorEvent.TYPE. See getEventPublisher().
+	 */
+	public <E extends TelldusEvent> EventPublisher<E> getEventPublisher(EventType<E, ?> type) {
+		return client.getEventPublisher(type);
+	}
+
+	/**
+	 * @return the command engine, for monitoring.
+	 */
+	public CommandEngine getCommandEngine() {
+		return client.getCommandEngine();
+	}
+
+	/**
+	 * @return the event watchdog, whose getHealth() tells whether events
+	 *	are flowing, or null if not enabled. See TelldusConfig.setEventWatchdogPeriod().
+	 */
+	public EventWatchdog getEventWatchdog() {
+		return client.getEventWatchdog();
+	}
+
+	/**
+	 * @return the device cache, or null if TelldusConfig.setDeviceCache()
+	 *	was not set.
+	 */
+	public DeviceRegistry getDeviceRegistry() {
+		return devices;
+	}
+
+	/**
+	 * @return the latest sensor values, or null if
+	 *	TelldusConfig.setSensorTable() was not set.
+	 */
+	public SensorTable getSensorTable() {
+		return sensors;
+	}
+
+	/**
+	 * @return the last known device states, or null if
+	 *	TelldusConfig.setDeviceStateCache() was not set.
+	 */
+	public DeviceStateCache getDeviceStateCache() {
+		return states;
+	}
+
+	/**
+	 * @return the controller cache, or null if
+	 *	TelldusConfig.setControllerCache() was not set.
+	 */
+	public ControllerCache getControllerCache() {
+		return controllers;
+	}
+
+	/**
+	 * @return the device parameter store, or null if
+	 *	TelldusConfig.setDeviceParameterStore() was not set.
+	 */
+	public DeviceParameterStore getDeviceParameterStore() {
+		return parameters;
+	}
+
+	/**
+	 * @return the pool of command connections, for monitoring.
+	 */
+	public SocketPool getCommandPool() {
+		return client.getCommandPool();
+	}
+
+	/**
+	 * @return queues of all listeners registered with a queue capacity.
+	 */
+	public List<ListenerQueue> getListenerQueues() {
+		return client.getListenerQueues();
+	}
+
 	/**
 	 * Unregister a previously registered event listener.
 	 */
@@ -77,6 +306,60 @@ public class TelldusInterface {
 		client.unregisterEventListener(listener);
 	}
 
+	/**
+	 * Enable flyweight events. Instead of decoding every field of every event
+	 * up front, events are then views over the receive buffer, and fields are
+	 * decoded first when read. Events for which no listener is registered are
+	 * never built at all, regardless of this setting.
+	 *
+	 * Flyweight events are only valid during the callback. A listener which
+	 * wants to keep an event must call TelldusEvent.detach() on it first.
+	 */
+	public void setFlyweightEvents(boolean flyweightEvents) {
+		client.setFlyweightEvents(flyweightEvents);
+	}
+
+	/**
+	 * Drop unwanted events, such as sensors belonging to the neighbours,
+	 * before they are built and dispatched. See EventFilter.
+	 *
+	 * @param filter Completely configured filter, or null to remove the filter.
+	 */
+	public void setEventFilter(EventFilter filter) {
+		client.setEventFilter(filter);
+	}
+
+	/**
+	 * Discover all devices, sensors with their values, and controllers,
+	 * with up to TelldusConfig.getDiscoveryParallelism() commands running
+	 * at once.
+	 *
+	 * @see #snapshot(int)
+	 */
+	public Inventory snapshot() throws IOException {
+		return snapshot(config.getDiscoveryParallelism());
+	}
+
+	/**
+	 * Discover all devices, sensors with their values, and controllers.
+	 * The commands are run concurrently, over separate connections, which
+	 * is much faster than asking for one thing at a time against a slow
+	 * telldusd. The number of connections is also limited by
+	 * TelldusConfig.getMaxConcurrentCommands().
+	 *
+	 * @param parallelism Max number of commands running at once.
+	 * @throws IOException if any command failed.
+	 */
+	public Inventory snapshot(int parallelism) throws IOException {
+		Discovery discovery = new Discovery(client);
+		client.registerEventListener(discovery);
+		try {
+			return discovery.run(parallelism, config.getThreadFactory());
+		} finally {
+			client.unregisterEventListener(discovery);
+		}
+	}
+
 	/**
 	 * Turns a device on.
 	 * Make sure the device supports this by calling tdMethods() before any
@@ -85,9 +368,12 @@ public class TelldusInterface {
 	 * @param deviceId The device id to turn on.
 	 **/
 	public int tdTurnOn(int deviceId) {
-		Message m = new Message("tdTurnOn");
+		if(states != null && states.isCurrent(deviceId, DeviceMethod.TURNON, null))
+			return ErrorCode.SUCCESS.code();
+
+		Message m = Message.direct("tdTurnOn");
 		m.addArgument(deviceId);
-		return client.getIntegerFromService(m);
+		return sent(deviceId, DeviceMethod.TURNON, "", getIntegerFromService(m));
 	}
 
 	/**
@@ -98,9 +384,12 @@ public class TelldusInterface {
 	 * @param deviceId The device id to turn off.
 	 */
 	public int tdTurnOff(int deviceId) {
-		Message m = new Message("tdTurnOff");
+		if(states != null && states.isCurrent(deviceId, DeviceMethod.TURNOFF, null))
+			return ErrorCode.SUCCESS.code();
+
+		Message m = Message.direct("tdTurnOff");
 		m.addArgument(deviceId);
-		return client.getIntegerFromService(m);
+		return sent(deviceId, DeviceMethod.TURNOFF, "", getIntegerFromService(m));
 	}
 
 	/**
@@ -111,9 +400,9 @@ public class TelldusInterface {
 	 * @param deviceId The device id to send bell to
 	 */
 	public int tdBell(int deviceId) {
-		Message m = new Message("tdBell");
+		Message m = Message.direct("tdBell");
 		m.addArgument(deviceId);
-		return client.getIntegerFromService(m);
+		return getIntegerFromService(m);
 	}
 
 	/**
@@ -125,10 +414,14 @@ public class TelldusInterface {
 	 * @param level The level the device should dim to. This value should be 0-255
 	 */
 	public int tdDim(int deviceId, int level) {
-		Message m = new Message("tdDim");
+		String value = String.valueOf(level);
+		if(states != null && states.isCurrent(deviceId, DeviceMethod.DIM, value))
+			return ErrorCode.SUCCESS.code();
+
+		Message m = Message.direct("tdDim");
 		m.addArgument(deviceId);
 		m.addArgument(level);
-		return client.getIntegerFromService(m);
+		return sent(deviceId, DeviceMethod.DIM, value, getIntegerFromService(m));
 	}
 
 	/**
@@ -139,9 +432,9 @@ public class TelldusInterface {
 	 * @param deviceId The id to execute
 	 */
 	public int tdExecute(int deviceId) {
-		Message m = new Message("tdExecute");
+		Message m = Message.direct("tdExecute");
 		m.addArgument(deviceId);
-		return client.getIntegerFromService(m);
+		return getIntegerFromService(m);
 	}
 
 	/**
@@ -152,9 +445,9 @@ public class TelldusInterface {
 	 * @param deviceId The device id to send the command to
 	 */
 	public int tdUp(int deviceId) {
-		Message m = new Message("tdUp");
+		Message m = Message.direct("tdUp");
 		m.addArgument(deviceId);
-		return client.getIntegerFromService(m);
+		return getIntegerFromService(m);
 	}
 
 	/**
@@ -165,9 +458,9 @@ public class TelldusInterface {
 	 * @param deviceId The device id to send the command to
 	 */
 	public int tdDown(int deviceId) {
-		Message m = new Message("tdDown");
+		Message m = Message.direct("tdDown");
 		m.addArgument(deviceId);
-		return client.getIntegerFromService(m);
+		return getIntegerFromService(m);
 	}
 
 	/**
@@ -178,9 +471,9 @@ public class TelldusInterface {
 	 * @param deviceId The device id to stop
 	 */
 	public int tdStop(int deviceId) {
-		Message m = new Message("tdStop");
+		Message m = Message.direct("tdStop");
 		m.addArgument(deviceId);
-		return client.getIntegerFromService(m);
+		return getIntegerFromService(m);
 	}
 
 	/**
@@ -192,9 +485,9 @@ public class TelldusInterface {
 	 * @param deviceId The device id to learn.
 	 */
 	public int tdLearn(int deviceId) {
-		Message m = new Message("tdLearn");
+		Message m = Message.direct("tdLearn");
 		m.addArgument(deviceId);
-		return client.getIntegerFromService(m);
+		return getIntegerFromService(m);
 	}
 
 	/**
@@ -206,10 +499,17 @@ public class TelldusInterface {
 	 * @return the last sent command as Protocol.DeviceMethod.
 	 */
 	public DeviceMethod tdLastSentCommand(int deviceId, int methodsSupported) {
-		Message m = new Message("tdLastSentCommand");
+		if(states != null) {
+			// telldusd maps methods the caller doesn't support to others
+			DeviceStateCache.State s = states.get(deviceId);
+			if(s != null && s.getMethod() != null && (s.getMethod().code() & methodsSupported) != 0)
+				return s.getMethod();
+		}
+
+		Message m = Message.direct("tdLastSentCommand");
 		m.addArgument(deviceId);
 		m.addArgument(methodsSupported);
-		return DeviceMethod.fromCode(client.getIntegerFromService(m));
+		return DeviceMethod.fromCode(getIntegerFromService(m));
 	}
 
 	/**
@@ -220,10 +520,16 @@ public class TelldusInterface {
 	 * @return the the value as a human readable string, example "128" for 50%
 	 */
 	public String tdLastSentValue(int deviceId) {
-		Message m = new Message("tdLearn");
+		if(states != null) {
+			DeviceStateCache.State s = states.get(deviceId);
+			if(s != null)
+				return s.getValue();
+		}
+
+		Message m = Message.direct("tdLastSentValue");
 		m.addArgument(deviceId);
 
-		return client.getStringFromService(m);
+		return getStringFromService(m);
 	}
 
 	/**
@@ -231,7 +537,14 @@ public class TelldusInterface {
 	 * @return an integer of the total number of devices configured
 	 */
 	public int tdGetNumberOfDevices() {
-		return client.getIntegerFromService(new Message("tdGetNumberOfDevices"));
+		if(devices != null) {
+			try {
+				return devices.getNumberOfDevices();
+			} catch(IOException ex) {
+				// Let the direct call report the error
+			}
+		}
+		return getIntegerFromService(Message.direct("tdGetNumberOfDevices"));
 	}
 
 	/**
@@ -249,18 +562,30 @@ public class TelldusInterface {
 	 * @return the unique id for the device or -1 if the device is not found.
 	 */
 	public int tdGetDeviceId(int intDeviceIndex) {
-		Message msg = new Message("tdGetDeviceId");
+		if(devices != null) {
+			try {
+				return devices.getDeviceId(intDeviceIndex);
+			} catch(IOException ex) {
+				// Let the direct call report the error
+			}
+		}
+
+		Message msg = Message.direct("tdGetDeviceId");
 		msg.addArgument(intDeviceIndex);
-		return client.getIntegerFromService(msg);
+		return getIntegerFromService(msg);
 	}
 
 	/**
 	 * Returns which type the device is. The device is one of Protocol.DeviceType
 	 */
 	public DeviceType tdGetDeviceType(int intDeviceId) {
-		Message msg = new Message("tdGetDeviceType");
+		Device d = cachedDevice(intDeviceId);
+		if(d != null && d.getType() != null)
+			return d.getType();
+
+		Message msg = Message.direct("tdGetDeviceType");
 		msg.addArgument(intDeviceId);
-		return DeviceType.fromCode(client.getIntegerFromService(msg));
+		return DeviceType.fromCode(getIntegerFromService(msg));
 	}
 
 	/**
@@ -270,9 +595,13 @@ public class TelldusInterface {
 	 * @return The name of the device or null if the device is not found.
 	 */
 	public String tdGetName(int intDeviceId) {
-		Message msg = new Message("tdGetName");
+		Device d = cachedDevice(intDeviceId);
+		if(d != null)
+			return d.getName();
+
+		Message msg = Message.direct("tdGetName");
 		msg.addArgument(intDeviceId);
-		return client.getStringFromService(msg);
+		return getStringFromService(msg);
 	}
 
 	/**
@@ -284,10 +613,13 @@ public class TelldusInterface {
 	 * @return true on success, false otherwise.
 	 */
 	public boolean tdSetName(int intDeviceId, String strNewName) {
-		Message msg = new Message("tdSetName");
+		Message msg = Message.direct("tdSetName");
 		msg.addArgument(intDeviceId);
 		msg.addArgument(strNewName);
-		return client.getBoolFromService(msg);
+		boolean ok = getBoolFromService(msg);
+		if(ok && devices != null)
+			devices.nameSet(intDeviceId, strNewName);
+		return ok;
 	}
 
 	/**
@@ -295,9 +627,13 @@ public class TelldusInterface {
 	 * @return the protocol used by a specific device.
 	 */
 	public String tdGetProtocol(int intDeviceId) {
-		Message msg = new Message("tdGetProtocol");
+		Device d = cachedDevice(intDeviceId);
+		if(d != null)
+			return d.getProtocol();
+
+		Message msg = Message.direct("tdGetProtocol");
 		msg.addArgument(intDeviceId);
-		return client.getStringFromService(msg);
+		return getStringFromService(msg);
 
 	}
 
@@ -310,10 +646,13 @@ public class TelldusInterface {
 	 * @return true on success, false otherwise.
 	 */
 	public boolean tdSetProtocol(int intDeviceId, String strProtocol) {
-		Message msg = new Message("tdSetProtocol");
+		Message msg = Message.direct("tdSetProtocol");
 		msg.addArgument(intDeviceId);
 		msg.addArgument(strProtocol);
-		return client.getBoolFromService(msg);
+		boolean ok = getBoolFromService(msg);
+		if(ok && devices != null)
+			devices.changed(intDeviceId, ChangeType.CHANGE_PROTOCOL);
+		return ok;
 	}
 
 	/**
@@ -321,9 +660,13 @@ public class TelldusInterface {
 	 * @return the model for a device. Not all protocols uses this.
 	 */
 	public String tdGetModel(int intDeviceId) {
-		Message msg = new Message("tdGetModel");
+		Device d = cachedDevice(intDeviceId);
+		if(d != null)
+			return d.getModel();
+
+		Message msg = Message.direct("tdGetModel");
 		msg.addArgument(intDeviceId);
-		return client.getStringFromService(msg);
+		return getStringFromService(msg);
 
 	}
 
@@ -336,10 +679,13 @@ public class TelldusInterface {
 	 * @return true on success, false otherwise.
 	 */
 	public boolean tdSetModel(int intDeviceId, String strModel) {
-		Message msg = new Message("tdSetModel");
+		Message msg = Message.direct("tdSetModel");
 		msg.addArgument(intDeviceId);
 		msg.addArgument(strModel);
-		return client.getBoolFromService(msg);
+		boolean ok = getBoolFromService(msg);
+		if(ok && devices != null)
+			devices.changed(intDeviceId, ChangeType.CHANGE_MODEL);
+		return ok;
 	}
 
 	/**
@@ -352,11 +698,14 @@ public class TelldusInterface {
 	 * @return true on success, false otherwise.
 	 */
 	public boolean tdSetDeviceParameter(int intDeviceId, String strName, String strValue) {
-		Message msg = new Message("tdSetDeviceParameter");
+		Message msg = Message.direct("tdSetDeviceParameter");
 		msg.addArgument(intDeviceId);
 		msg.addArgument(strName);
 		msg.addArgument(strValue);
-		return client.getBoolFromService(msg);
+		boolean ok = getBoolFromService(msg);
+		if(ok && parameters != null)
+			parameters.parameterSet(intDeviceId, strName, strValue);
+		return ok;
 	}
 
 	/**
@@ -367,11 +716,19 @@ public class TelldusInterface {
 	 * @return any protocol specific parameter specified by strName
 	 */
 	public String tdGetDeviceParameter(int intDeviceId, String strName, String defaultValue) {
-		Message msg = new Message("tdGetDeviceParameter");
+		if(parameters != null) {
+			try {
+				return parameters.get(intDeviceId, strName, defaultValue);
+			} catch(IOException ex) {
+				// Let the direct call report the error
+			}
+		}
+
+		Message msg = Message.direct("tdGetDeviceParameter");
 		msg.addArgument(intDeviceId);
 		msg.addArgument(strName);
 		msg.addArgument(defaultValue);
-		return client.getStringFromService(msg);
+		return getStringFromService(msg);
 	}
 
 	/**
@@ -382,8 +739,11 @@ public class TelldusInterface {
 	 * @return The new device id for the newly created device. If the creation fails it returns a negative value.
 	 */
 	public int tdAddDevice() {
-		Message msg = new Message("tdAddDevice");
-		return client.getIntegerFromService(msg);
+		Message msg = Message.direct("tdAddDevice");
+		int id = getIntegerFromService(msg);
+		if(id >= 0 && devices != null)
+			devices.added(id);
+		return id;
 	}
 
 	/**
@@ -392,9 +752,12 @@ public class TelldusInterface {
 	 * @return true on success, false otherwise.
 	 */
 	public boolean tdRemoveDevice(int intDeviceId) {
-		Message msg = new Message("tdRemoveDevice");
+		Message msg = Message.direct("tdRemoveDevice");
 		msg.addArgument(intDeviceId);
-		return client.getBoolFromService(msg);
+		boolean ok = getBoolFromService(msg);
+		if(ok && devices != null)
+			devices.removed(intDeviceId);
+		return ok;
 	}
 
 	/**
@@ -421,10 +784,20 @@ public class TelldusInterface {
 		for(DeviceMethod dm: methodsSupported)
 			m+= dm.code();
 
-		Message msg = new Message("tdMethods");
+		if(devices != null) {
+			try {
+				int cached = devices.getMethods(id, m);
+				if(cached >= 0)
+					return cached;
+			} catch(IOException ex) {
+				// Let the direct call report the error
+			}
+		}
+
+		Message msg = Message.direct("tdMethods");
 		msg.addArgument(id);
 		msg.addArgument(m);
-		return client.getIntegerFromService(msg);
+		return getIntegerFromService(msg);
 	}
 
 	/**
@@ -455,26 +828,26 @@ public class TelldusInterface {
 	 * @return ErrorCode.SUCCESS on success or one of the other ErrorCodes on failure
 	 */
 	public ErrorCode tdSendRawCommand(String command, int reserved) {
-		Message msg = new Message("tdSendRawCommand");
+		Message msg = Message.direct("tdSendRawCommand");
 		msg.addArgument(command);
 		msg.addArgument(reserved);
-		return ErrorCode.fromCode(client.getIntegerFromService(msg));
+		return ErrorCode.fromCode(getIntegerFromService(msg));
 	}
 
 	public void tdConnectTellStickController(int vid, int pid, String serial) {
-		Message msg = new Message("tdConnectTellStickController");
+		Message msg = Message.direct("tdConnectTellStickController");
 		msg.addArgument(vid);
 		msg.addArgument(pid);
 		msg.addArgument(serial);
-		client.getStringFromService(msg);
+		getStringFromService(msg);
 	}
 
 	public void tdDisconnectTellStickController(int vid, int pid, String serial) {
-		Message msg = new Message("tdDisconnectTellStickController");
+		Message msg = Message.direct("tdDisconnectTellStickController");
 		msg.addArgument(vid);
 		msg.addArgument(pid);
 		msg.addArgument(serial);
-		client.getStringFromService(msg);
+		getStringFromService(msg);
 	}
 
 
@@ -483,8 +856,11 @@ public class TelldusInterface {
 	 *
 	 */
 	public List<Sensor> tdSensor() {
-		Message msg = new Message("tdSensor");
-		String retval = client.getStringFromService(msg);
+		Message msg = Message.direct("tdSensor");
+		return parseSensors(getStringFromService(msg));
+	}
+
+	static List<Sensor> parseSensors(String retval) {
 		if(retval == null || retval.length() == 0)
 			return null;
 
@@ -496,6 +872,8 @@ public class TelldusInterface {
 		List<Sensor> l = new ArrayList<Sensor>(count);
 		for(int i = 0; i < count; i++) {
 			Sensor s = new Sensor(ret);
+			// Data types supported; not kept
+			ret.takeInt();
 			l.add(s);
 		}
 
@@ -519,20 +897,30 @@ public class TelldusInterface {
 	 */
 	public ErrorCode tdSensorValue(String protocol, String model, int id, int dataType, SensorValue value) {
 		assert value != null;
-		Message msg = new Message("tdSensorValue");
+		if(sensors != null) {
+			SensorReading r = sensors.get(protocol, model, id, dataType);
+			if(r != null) {
+				r.copyTo(value);
+				return ErrorCode.SUCCESS;
+			}
+		}
+
+		Message msg = Message.direct("tdSensorValue");
 		msg.addArgument(protocol);
 		msg.addArgument(model);
 		msg.addArgument(id);
 		msg.addArgument(dataType);
 
-		String retval = client.getStringFromService(msg);
+		String retval = getStringFromService(msg);
 		if(retval == null || retval.length() == 0)
 			return ErrorCode.ERROR_METHOD_NOT_SUPPORTED;
 
 		Message ret = Message.fromString(retval);
 
 		value.load(ret);
-		
+		if(sensors != null)
+			sensors.update(new Sensor(protocol, model, id), value);
+
 		return ErrorCode.SUCCESS;
 	}
 
@@ -541,8 +929,19 @@ public class TelldusInterface {
 	 * Get a list of all controllers.
 	 */
 	public List<Controller> tdController() {
-		Message msg = new Message("tdController");
-		String retval = client.getStringFromService(msg);
+		if(controllers != null) {
+			try {
+				return new ArrayList<Controller>(controllers.getControllers());
+			} catch(IOException ex) {
+				// Let the direct call report the error
+			}
+		}
+
+		Message msg = Message.direct("tdController");
+		return parseControllers(getStringFromService(msg));
+	}
+
+	static List<Controller> parseControllers(String retval) {
 		if(retval == null || retval.length() == 0)
 			return null;
 
@@ -573,6 +972,13 @@ public class TelldusInterface {
 			available = (src.takeInt() == 1);
 		}
 
+		Controller(int id, ControllerType type, String name, boolean available) {
+			this.id = id;
+			this.type = type;
+			this.name = name;
+			this.available = available;
+		}
+
 		public int getId() {
 			return id;
 		}
@@ -599,11 +1005,19 @@ public class TelldusInterface {
 	 * @return String with result, or null if not supported.
 	 **/
 	public String tdControllerValue(int controllerId, String name) {
-		Message msg = new Message("tdControllerValue");
+		if(controllers != null) {
+			try {
+				return controllers.getValue(controllerId, name);
+			} catch(IOException ex) {
+				// Let the direct call report the error
+			}
+		}
+
+		Message msg = Message.direct("tdControllerValue");
 		msg.addArgument(controllerId);
 		msg.addArgument(name);
 
-		return client.getStringFromService(msg);
+		return getStringFromService(msg);
 	}
 
 	/**
@@ -615,11 +1029,14 @@ public class TelldusInterface {
 	 * @param value The new value for the parameter.
 	 */
 	public ErrorCode tdSetControllerValue(int controllerId, String name, String value) {
-		Message msg = new Message("tdSetControllerValue");
+		Message msg = Message.direct("tdSetControllerValue");
 		msg.addArgument(controllerId);
 		msg.addArgument(name);
 		msg.addArgument(value);
-		return ErrorCode.fromCode(client.getIntegerFromService(msg));
+		ErrorCode result = ErrorCode.fromCode(getIntegerFromService(msg));
+		if(result == ErrorCode.SUCCESS && controllers != null)
+			controllers.valueSet(controllerId, name, value);
+		return result;
 	}
 
 	/**
@@ -633,8 +1050,52 @@ public class TelldusInterface {
 	 * controller is still connected.
 	 */
 	public ErrorCode tdRemoveController(int controllerId) {
-		Message msg = new Message("tdRemoveController");
+		Message msg = Message.direct("tdRemoveController");
 		msg.addArgument(controllerId);
-		return ErrorCode.fromCode(client.getIntegerFromService(msg));
+		ErrorCode result = ErrorCode.fromCode(getIntegerFromService(msg));
+		if(result == ErrorCode.SUCCESS && controllers != null)
+			controllers.removed(controllerId);
+		return result;
+	}
+
+	/**
+	 * Record the state a command put the device in, if it succeeded.
+	 *
+	 * @return result
+	 */
+	private int sent(int deviceId, DeviceMethod method, String value, int result) {
+		if(states != null && result == ErrorCode.SUCCESS.code())
+			states.update(deviceId, method, value);
+		return result;
+	}
+
+	/**
+	 * @return the cached device, or null if there is no cache, the id is
+	 *	unknown or loading failed.
+	 */
+	private Device cachedDevice(int id) {
+		if(devices == null)
+			return null;
+		try {
+			return devices.getDevice(id);
+		} catch(IOException ex) {
+			return null;
+		}
+	}
+
+	private int getIntegerFromService(Message m) {
+		if(timeout < 0)
+			return client.getIntegerFromService(m);
+		return client.getIntegerFromService(m, timeout);
+	}
+
+	private String getStringFromService(Message m) {
+		if(timeout < 0)
+			return client.getStringFromService(m);
+		return client.getStringFromService(m, timeout);
+	}
+
+	private boolean getBoolFromService(Message m) {
+		return getIntegerFromService(m) == ErrorCode.SUCCESS.code();
 	}
 }
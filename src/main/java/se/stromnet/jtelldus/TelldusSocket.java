@@ -4,9 +4,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 
 /**
@@ -17,23 +20,62 @@ import java.nio.channels.SocketChannel;
 public class TelldusSocket {
 	private static final Logger log = LoggerFactory.getLogger(TelldusSocket.class);
 	
-	private SocketChannel socket;
-	private SocketAddress sa;
+	// Read by abort() from other threads
+	private volatile SocketChannel socket;
+	private final Transport transport;
 	
 	public TelldusSocket(String host, int port) throws IOException {
-		sa = new InetSocketAddress(host, port);
+		this(Transport.tcp(host, port));
+	}
+
+	public TelldusSocket(SocketAddress sa) {
+		this(Transport.forAddress(sa));
+	}
+
+	public TelldusSocket(Transport transport) {
+		this.transport = transport;
+	}
+
+	public SocketAddress getAddress() {
+		return transport.getAddress();
+	}
+
+	public boolean isConnected() {
+		SocketChannel s = socket;
+		return s != null && s.isConnected();
 	}
 
 	public boolean connect() {
+		return connect(0);
+	}
+
+	/**
+	 * Connect, giving up after timeoutMillis. The connect is made
+	 * non-blocking and waited for with a Selector; the socket is in
+	 * blocking mode again when this returns.
+	 *
+	 * @param timeoutMillis Max time to wait, or 0 to wait as long as the OS does.
+	 */
+	public boolean connect(long timeoutMillis) {
 		if(socket != null)
 			return true;
 
-		log.debug("Connecting to " + sa);
+		log.debug("Connecting to " + transport);
+		SocketChannel s = null;
 		try {
-			socket = SocketChannel.open();
-			socket.configureBlocking(true);
-			socket.connect(sa);
-			socket.finishConnect();
+			s = transport.open();
+			// Published before connecting, so abort() can interrupt it
+			socket = s;
+			if(timeoutMillis <= 0) {
+				s.configureBlocking(true);
+				s.connect(transport.getAddress());
+				s.finishConnect();
+			} else {
+				s.configureBlocking(false);
+				if(!s.connect(transport.getAddress()))
+					awaitConnect(s, timeoutMillis);
+				s.configureBlocking(true);
+			}
 			log.debug("Connected");
 			return true;
 		}
@@ -42,25 +84,89 @@ public class TelldusSocket {
 			if(log.isDebugEnabled())
 				log.debug("Connection failure", ex);
 			
+			if(s != null) {
+				try {
+					s.close();
+				} catch(IOException ignored) {}
+			}
 			socket = null;
 
 			return false;
 		}
 	}
 
+	private static void awaitConnect(SocketChannel s, long timeoutMillis) throws IOException {
+		Selector selector = Selector.open();
+		try {
+			s.register(selector, SelectionKey.OP_CONNECT);
+			if(selector.select(timeoutMillis) == 0)
+				throw new SocketTimeoutException("Connect timed out after "+ timeoutMillis +"ms");
+			s.finishConnect();
+		} finally {
+			// Deregisters the channel, so it can be made blocking again
+			selector.close();
+		}
+	}
+
+	/**
+	 * Close the connection from another thread, making any read or write
+	 * in progress fail. The owner should still call disconnect().
+	 */
+	public void abort() {
+		SocketChannel s = socket;
+		if(s == null)
+			return;
+
+		try {
+			s.close();
+		} catch(IOException ex) {
+		}
+	}
+
 	public void disconnect() throws IOException {
-		if(socket == null)
+		SocketChannel s = socket;
+		if(s == null)
 			return;
 
-		socket.close();
 		socket = null;
+		s.close();
+	}
+
+	/**
+	 * Check, without blocking, whether the other end has closed the
+	 * connection. telldusd never sends anything before asked, so there
+	 * should be nothing to read; isConnected() stays true regardless.
+	 * Must not be used while another thread reads.
+	 */
+	public boolean isPeerClosed() {
+		SocketChannel s = socket;
+		if(s == null || !s.isConnected())
+			return true;
+
+		try {
+			s.configureBlocking(false);
+			try {
+				return s.read(ByteBuffer.allocate(1)) != 0;
+			} finally {
+				s.configureBlocking(true);
+			}
+		} catch(IOException ex) {
+			return true;
+		}
 	}
 
 	public int read(ByteBuffer bb) throws IOException {
-		return socket.read(bb);
+		// May be disconnected by another thread
+		SocketChannel s = socket;
+		if(s == null)
+			throw new ClosedChannelException();
+		return s.read(bb);
 	}
 
 	public void write(Message msg) throws IOException {
-		socket.write(msg.serialize());
+		SocketChannel s = socket;
+		if(s == null)
+			throw new ClosedChannelException();
+		msg.writeTo(s);
 	}
 }
@@ -0,0 +1,72 @@
+package se.stromnet.jtelldus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads used by jtelldus, optionally from a ThreadFactory
+ * such as one making virtual threads.
+ */
+public final class Threads {
+	private static final Logger log = LoggerFactory.getLogger(Threads.class);
+
+	private Threads() {
+	}
+
+	/**
+	 * Returns a factory for virtual threads, as provided by
+	 * Thread.ofVirtual().factory() on Java 21 and later.
+	 *
+	 * @return The factory, or null if this JVM has no virtual threads.
+	 */
+	public static ThreadFactory virtualThreadFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = ofVirtual.getReturnType().getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch(Exception ex) {
+			log.debug("Virtual threads not available", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Create, but do not start, a thread named prefix-id.
+	 *
+	 * @param factory Factory to use, or null for a regular platform thread.
+	 * @param daemon Only applies to platform threads; virtual threads are
+	 *	always daemon threads.
+	 */
+	public static Thread newThread(ThreadFactory factory, Runnable task, String prefix, boolean daemon) {
+		Thread t;
+		if(factory == null) {
+			t = new Thread(task);
+			t.setDaemon(daemon);
+		} else {
+			t = factory.newThread(task);
+		}
+
+		t.setName(prefix + "-" + t.getId());
+		return t;
+	}
+
+	/**
+	 * Create a pool of threads named prefix-id, for running commands in
+	 * parallel.
+	 *
+	 * @param factory Factory to use, or null for regular daemon threads.
+	 */
+	public static ExecutorService newPool(final ThreadFactory factory, int threads, final String prefix) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				return Threads.newThread(factory, task, prefix, true);
+			}
+		});
+	}
+}
@@ -0,0 +1,110 @@
+package se.stromnet.jtelldus;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * How to reach one of telldusd's sockets.
+ *
+ * Plain telldusd listens on the UNIX sockets /tmp/TelldusClient and
+ * /tmp/TelldusEvents, which can be used directly. A TCP port, from a
+ * patched telldusd or a socat bridge, works as well. A transport is
+ * chosen by URI:
+ *
+ *	unix:///tmp/TelldusClient
+ *	tcp://localhost:9998
+ */
+public abstract class Transport {
+	private final SocketAddress address;
+
+	private Transport(SocketAddress address) {
+		this.address = address;
+	}
+
+	/**
+	 * @param uri unix:///path or tcp://host:port
+	 * @throws IllegalArgumentException if the URI is malformed or of an
+	 *	unknown scheme.
+	 */
+	public static Transport forUri(String uri) {
+		URI u = URI.create(uri);
+		if("unix".equals(u.getScheme())) {
+			if(u.getPath() == null || u.getPath().isEmpty())
+				throw new IllegalArgumentException("No path in "+ uri);
+			return unix(u.getPath());
+		}
+
+		if("tcp".equals(u.getScheme())) {
+			if(u.getHost() == null || u.getPort() < 0)
+				throw new IllegalArgumentException("Need both host and port in "+ uri);
+			return tcp(u.getHost(), u.getPort());
+		}
+
+		throw new IllegalArgumentException("Unknown transport "+ uri);
+	}
+
+	public static Transport forAddress(SocketAddress address) {
+		if(address instanceof UnixDomainSocketAddress)
+			return new Unix((UnixDomainSocketAddress) address);
+		return new Tcp(address);
+	}
+
+	public static Transport tcp(String host, int port) {
+		return new Tcp(new InetSocketAddress(host, port));
+	}
+
+	public static Transport unix(String path) {
+		return new Unix(UnixDomainSocketAddress.of(path));
+	}
+
+	public SocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return a new, unconnected and blocking channel of the right kind
+	 *	for getAddress().
+	 */
+	public abstract SocketChannel open() throws IOException;
+
+	private static class Tcp extends Transport {
+		Tcp(SocketAddress address) {
+			super(address);
+		}
+
+		@Override
+		public SocketChannel open() throws IOException {
+			return SocketChannel.open();
+		}
+
+		@Override
+		public String toString() {
+			SocketAddress sa = getAddress();
+			if(!(sa instanceof InetSocketAddress))
+				return sa.toString();
+			InetSocketAddress a = (InetSocketAddress) sa;
+			return "tcp://"+ a.getHostString() +":"+ a.getPort();
+		}
+	}
+
+	private static class Unix extends Transport {
+		Unix(UnixDomainSocketAddress address) {
+			super(address);
+		}
+
+		@Override
+		public SocketChannel open() throws IOException {
+			return SocketChannel.open(StandardProtocolFamily.UNIX);
+		}
+
+		@Override
+		public String toString() {
+			return "unix://"+ ((UnixDomainSocketAddress) getAddress()).getPath();
+		}
+	}
+}
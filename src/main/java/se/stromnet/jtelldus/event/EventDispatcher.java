@@ -1,6 +1,16 @@
 package se.stromnet.jtelldus.event;
 
-import java.util.*;
+import se.stromnet.jtelldus.Threads;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This is an internal JTelldus class which provides the event dispatching
@@ -9,40 +19,97 @@ import java.util.*;
  * Event listeners are added, and for any interface it implements it will
  * get events for.
  *
+ * Listeners are kept in one array per event type, indexed by
+ * EventType.getIndex(). The arrays are never modified; adding or removing
+ * a listener publishes new copies. Dispatching is thus a plain iteration
+ * over a snapshot which needs no locking, while listeners may be added and
+ * removed from any thread.
+ *
+ * Listeners are normally called on the thread dispatching the event. A
+ * listener added with a queue capacity is instead called from a thread of
+ * its own, see ListenerQueue. Events can also be consumed as a
+ * Flow.Publisher, see getPublisher().
+ *
+ * With striped dispatch enabled, events are instead handed to a
+ * StripedExecutor keyed on TelldusEvent.getKey(). Events about the same
+ * device, sensor or controller are then delivered in order, while events
+ * about different ones are delivered in parallel.
+ *
  * @author johan
  */
 public class EventDispatcher {
 
-	private Map<Class<? extends TelldusEvent>,
-					List<? extends TelldusEvent.Listener>> listeners;
+	private static final TelldusEvent.Listener[] NONE = new TelldusEvent.Listener[0];
 
+	// Copy-on-write, both the outer and the inner arrays.
+	private volatile TelldusEvent.Listener[][] listeners = new TelldusEvent.Listener[0][];
 
-	public EventDispatcher() {
-		listeners = new HashMap<Class<? extends TelldusEvent>,
-						List<? extends TelldusEvent.Listener>>();
-	}
+	private volatile StripedExecutor executor;
+	private volatile ThreadFactory threadFactory;
 
-	public void dispatchEvent(TelldusEvent event) {
-		List<? extends TelldusEvent.Listener>
-						ll = listeners.get(event.getClass());
+	private final Map<EventType<?, ?>, EventPublisher<?>> publishers = new HashMap<EventType<?, ?>, EventPublisher<?>>();
+	private EventPublisher<TelldusEvent> publisher;
+	private ExecutorService publisherExecutor;
 
-		// No listeners registerd for this class?
-		if(ll == null)
+	public void dispatchEvent(final TelldusEvent event) {
+		StripedExecutor ex = executor;
+		if(ex == null) {
+			deliver(event);
 			return;
+		}
+
+		// Delivered after the receive buffer has been reused
+		event.detach();
+		try {
+			ex.execute(event.getKey(), new Runnable() {
+				public void run() {
+					deliver(event);
+				}
+			});
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void deliver(TelldusEvent event) {
+		EventType<?, ?> type = event.getEventType();
+		TelldusEvent.Listener[] ll = listenersFor(type);
 
 		for(TelldusEvent.Listener l: ll) {
-			// XXX: Can this be done nicer?
-			if(event instanceof TDDeviceChangeEvent)
-				((TDDeviceChangeEvent.Listener)l).onTDDeviceChangeEvent((TDDeviceChangeEvent) event);
-			else if(event instanceof TDDeviceEvent)
-				((TDDeviceEvent.Listener)l).onTDDeviceEvent((TDDeviceEvent) event);
-			else if(event instanceof TDRawDeviceEvent)
-				((TDRawDeviceEvent.Listener)l).onTDRawDeviceEvent((TDRawDeviceEvent) event);
-			else if(event instanceof TDSensorEvent)
-				((TDSensorEvent.Listener)l).onTDSensorEvent((TDSensorEvent) event);
-			else if(event instanceof TDControllerEvent)
-				((TDControllerEvent.Listener)l).onTDControllerEvent((TDControllerEvent) event);
+			if(l instanceof EventSink) {
+				// Queued events outlive the receive buffer
+				event.detach();
+				((EventSink) l).offer(event);
+			} else {
+				type.deliver(l, event);
+			}
 		}
+
+		// Lazy events refer to the receive buffer, which is reused after this.
+		event.expire();
+	}
+
+	private TelldusEvent.Listener[] listenersFor(EventType<?, ?> type) {
+		TelldusEvent.Listener[][] all = listeners;
+		int i = type.getIndex();
+		if(i >= all.length || all[i] == null)
+			return NONE;
+		return all[i];
+	}
+
+	/**
+	 * @return true if any listener is registered for the event type.
+	 */
+	public boolean hasListeners(EventType<?, ?> type) {
+		return listenersFor(type).length > 0;
+	}
+
+	/**
+	 * @return true if any listener is registered for the event class.
+	 */
+	public boolean hasListeners(Class<? extends TelldusEvent> eventClass) {
+		EventType<?, ?> type = typeOf(eventClass);
+		return type != null && hasListeners(type);
 	}
 
 	/**
@@ -50,35 +117,73 @@ public class EventDispatcher {
 	 * what events will be listened for.
 	 */
 	public void addEventListener(TelldusEvent.Listener listener) {
-		if(listener instanceof TDDeviceChangeEvent.Listener)
-			addEventListener(TDDeviceChangeEvent.class, listener);
+		for(EventType<?, ?> type: EventFactory.types()) {
+			if(type.getListenerClass().isInstance(listener))
+				addEventListener(type, listener);
+		}
+	}
 
-		if(listener instanceof TDDeviceEvent.Listener)
-			addEventListener(TDDeviceEvent.class, listener);
 
-		if(listener instanceof TDRawDeviceEvent.Listener)
-			addEventListener(TDRawDeviceEvent.class, listener);
+	/**
+	 * Add an event listener which is called from a thread of its own,
+	 * through a bounded queue.
+	 *
+	 * @param capacity Max number of events waiting for the listener.
+	 * @param policy What to do when the queue is full.
+	 * @return The queue, for monitoring.
+	 */
+	public ListenerQueue addEventListener(TelldusEvent.Listener listener, int capacity, OverflowPolicy policy) {
+		ListenerQueue queue = new ListenerQueue(listener, capacity, policy, threadFactory);
+		queue.start();
 
-		if(listener instanceof TDSensorEvent.Listener)
-			addEventListener(TDSensorEvent.class, listener);
-		
-		if(listener instanceof TDControllerEvent.Listener)
-			addEventListener(TDControllerEvent.class, listener);
-	}
+		boolean added = false;
+		for(EventType<?, ?> type: EventFactory.types()) {
+			if(type.getListenerClass().isInstance(listener)) {
+				add(type, queue);
+				added = true;
+			}
+		}
 
+		// Not listening for anything; don't leave the thread around
+		if(!added)
+			queue.close();
+		return queue;
+	}
 
 	/**
 	 * Remove an event listener.
-	 * All instances in all classes will be removed.
+	 * All instances in all classes will be removed, along with any queue.
 	 */
-	public void removeEventListener(TelldusEvent.Listener listener) {
-		for(Class clazz: listeners.keySet()) {
-			Iterator<? extends TelldusEvent.Listener> i = listeners.get(clazz).iterator();
-			while(i.hasNext()) {
-				if(i.next() == listener)
-					i.remove();
+	public synchronized void removeEventListener(TelldusEvent.Listener listener) {
+		TelldusEvent.Listener[][] all = listeners.clone();
+		boolean changed = false;
+
+		for(int i = 0; i < all.length; i++) {
+			TelldusEvent.Listener[] ll = all[i];
+			if(ll == null)
+				continue;
+
+			int n = 0;
+			TelldusEvent.Listener[] kept = new TelldusEvent.Listener[ll.length];
+			for(TelldusEvent.Listener l: ll) {
+				if(l == listener) {
+					if(l instanceof EventSink)
+						((EventSink) l).close();
+				} else if(l instanceof ListenerQueue && ((ListenerQueue) l).getListener() == listener) {
+					((ListenerQueue) l).close();
+				} else {
+					kept[n++] = l;
+				}
+			}
+
+			if(n != ll.length) {
+				all[i] = Arrays.copyOf(kept, n);
+				changed = true;
 			}
 		}
+
+		if(changed)
+			listeners = all;
 	}
 
 	/**
@@ -88,11 +193,164 @@ public class EventDispatcher {
 	 * Mainly for internal use.
 	 */
 	public void addEventListener(Class<? extends TelldusEvent> eventClass, TelldusEvent.Listener listener) {
-		List ll = listeners.get(eventClass);
-		if(ll == null)
-			listeners.put(eventClass, ll = new LinkedList());
+		EventType<?, ?> type = typeOf(eventClass);
+		if(type == null)
+			throw new IllegalArgumentException("Unknown event class "+ eventClass.getName());
+
+		addEventListener(type, listener);
+	}
+
+	/**
+	 * Adds an event listener for the specific event type.
+	 */
+	public void addEventListener(EventType<?, ?> type, TelldusEvent.Listener listener) {
+		if(!type.getListenerClass().isInstance(listener))
+			throw new IllegalArgumentException(listener +" is not a "+ type.getListenerClass().getName());
 
-		ll.add(listener);
+		add(type, listener);
 	}
 
+	private synchronized void add(EventType<?, ?> type, TelldusEvent.Listener listener) {
+		int i = type.getIndex();
+		TelldusEvent.Listener[][] all = listeners;
+		all = Arrays.copyOf(all, Math.max(all.length, i + 1));
+
+		TelldusEvent.Listener[] ll = all[i] == null ? NONE : all[i];
+		ll = Arrays.copyOf(ll, ll.length + 1);
+		ll[ll.length - 1] = listener;
+		all[i] = ll;
+
+		listeners = all;
+	}
+
+	/**
+	 * @return all queues of listeners added with a queue capacity.
+	 */
+	public List<ListenerQueue> getListenerQueues() {
+		List<ListenerQueue> queues = new ArrayList<ListenerQueue>();
+		for(TelldusEvent.Listener[] ll: listeners) {
+			if(ll == null)
+				continue;
+			for(TelldusEvent.Listener l: ll) {
+				if(l instanceof ListenerQueue && !queues.contains(l))
+					queues.add((ListenerQueue) l);
+			}
+		}
+		return queues;
+	}
+
+	/**
+	 * Returns a publisher of all events, created on first call. Event
+	 * types registered after that are not published.
+	 *
+	 * Subscribers are called from a pool of threads made by the factory
+	 * set with setThreadFactory(), shared by all publishers, and each has
+	 * a buffer of Flow.defaultBufferSize() events.
+	 */
+	public synchronized EventPublisher<TelldusEvent> getPublisher() {
+		if(publisher == null || publisher.isClosed()) {
+			publisher = new EventPublisher<TelldusEvent>(null, publisherExecutor(), Flow.defaultBufferSize());
+			for(EventType<?, ?> type: EventFactory.types())
+				add(type, publisher);
+		}
+		return publisher;
+	}
+
+	/**
+	 * Returns a publisher of events of the given type, created on first
+	 * call for the type. See getPublisher().
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <E extends TelldusEvent> EventPublisher<E> getPublisher(EventType<E, ?> type) {
+		EventPublisher<E> p = (EventPublisher<E>) publishers.get(type);
+		if(p == null || p.isClosed()) {
+			p = new EventPublisher<E>(type, publisherExecutor(), Flow.defaultBufferSize());
+			publishers.put(type, p);
+			add(type, p);
+		}
+		return p;
+	}
+
+	private ExecutorService publisherExecutor() {
+		if(publisherExecutor == null) {
+			final ThreadFactory factory = threadFactory;
+			publisherExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					return Threads.newThread(factory, task, "EventPublisher", true);
+				}
+			});
+		}
+		return publisherExecutor;
+	}
+
+	/**
+	 * Deliver events from a pool of threads, keeping the order of events
+	 * with equal TelldusEvent.getKey(). Preferably set before any events
+	 * are dispatched; events already queued by a previous executor may be
+	 * delivered out of order with new ones.
+	 *
+	 * @param stripes Number of threads, or 0 to deliver events on the
+	 *	dispatching thread.
+	 * @param queueCapacity Max number of events waiting per thread. When
+	 *	full, dispatchEvent() blocks.
+	 */
+	public synchronized void setStripedDispatch(int stripes, int queueCapacity) {
+		StripedExecutor old = executor;
+		executor = stripes > 0 ? new StripedExecutor(stripes, queueCapacity, threadFactory) : null;
+		if(old != null)
+			old.shutdown();
+	}
+
+	/**
+	 * Set the factory for threads created from now on, for listener
+	 * queues, striped dispatch and publishers.
+	 *
+	 * @param threadFactory Factory, or null for regular daemon threads.
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * @return the executor used for striped dispatch, or null if not enabled.
+	 */
+	public StripedExecutor getStripedExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Stop the threads of all listener queues and of striped dispatch,
+	 * and close all publishers.
+	 */
+	public void close() {
+		setStripedDispatch(0, 0);
+
+		List<EventSink> sinks = new ArrayList<EventSink>();
+		for(TelldusEvent.Listener[] ll: listeners) {
+			if(ll == null)
+				continue;
+			for(TelldusEvent.Listener l: ll) {
+				if(l instanceof EventSink && !sinks.contains(l))
+					sinks.add((EventSink) l);
+			}
+		}
+
+		for(EventSink sink: sinks)
+			removeEventListener(sink);
+
+		synchronized(this) {
+			// Subscribers still get onComplete()
+			if(publisherExecutor != null)
+				publisherExecutor.shutdown();
+			publisherExecutor = null;
+		}
+	}
+
+	private static EventType<?, ?> typeOf(Class<? extends TelldusEvent> eventClass) {
+		for(EventType<?, ?> type: EventFactory.types()) {
+			if(type.getEventClass() == eventClass)
+				return type;
+		}
+		return null;
+	}
 }
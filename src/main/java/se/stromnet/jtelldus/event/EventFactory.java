@@ -3,8 +3,18 @@ package se.stromnet.jtelldus.event;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.stromnet.jtelldus.Message;
+import se.stromnet.jtelldus.MessageDecoder;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
+ * Builds events from telldusd data.
+ *
+ * Event types are looked up in a table of registered EventTypes. On the
+ * event socket the raw type token is matched on hash and length, without
+ * building a String.
  *
  * @author johan
  */
@@ -12,29 +22,138 @@ public class EventFactory {
 
 	private static final Logger log = LoggerFactory.getLogger(EventFactory.class);
 
+	/** Power of two, well above the number of wire types */
+	private static final int WIRE_TABLE_SIZE = 32;
+
+	// Copy-on-write; replaced as a whole on register()
+	private static volatile EventType<?, ?>[] types = new EventType<?, ?>[0];
+	private static volatile EventType<?, ?>[] wireTable = new EventType<?, ?>[WIRE_TABLE_SIZE];
+	private static volatile Map<String, EventType<?, ?>> byName = new HashMap<String, EventType<?, ?>>();
+
+	static {
+		register(TDDeviceChangeEvent.TYPE);
+		register(TDDeviceEvent.TYPE);
+		register(TDRawDeviceEvent.TYPE);
+		register(TDSensorEvent.TYPE);
+		register(TDControllerEvent.TYPE);
+		register(TDConnectionEvent.TYPE);
+	}
+
+	/**
+	 * Register an event type, making it known to the EventStream and the
+	 * EventDispatcher.
+	 */
+	public static synchronized void register(EventType<?, ?> type) {
+		if(byName.containsKey(type.getName()))
+			throw new IllegalArgumentException("Event type "+ type +" already registered");
+
+		EventType<?, ?>[] t = Arrays.copyOf(types, types.length + 1);
+		t[t.length - 1] = type;
+
+		Map<String, EventType<?, ?>> n = new HashMap<String, EventType<?, ?>>(byName);
+		n.put(type.getName(), type);
+
+		EventType<?, ?>[] w = wireTable;
+		if(type.isWireType()) {
+			w = wireTable.clone();
+			int i = type.nameHash() & (WIRE_TABLE_SIZE - 1);
+			int probes = 0;
+			while(w[i] != null) {
+				if(++probes == WIRE_TABLE_SIZE)
+					throw new IllegalStateException("Too many event types");
+				i = (i + 1) & (WIRE_TABLE_SIZE - 1);
+			}
+			w[i] = type;
+		}
+
+		byName = n;
+		wireTable = w;
+		types = t;
+	}
+
+	/**
+	 * @return all registered event types.
+	 */
+	public static EventType<?, ?>[] types() {
+		return types.clone();
+	}
+
+	/**
+	 * Look up an event type by name.
+	 *
+	 * @return The type, or null if unknown.
+	 */
+	public static EventType<?, ?> forName(String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 * Look up an event type sent by telldusd.
+	 *
+	 * @param decoder Decoder which just returned the event type STRING token.
+	 * @return The type, or null if unknown.
+	 */
+	static EventType<?, ?> typeOf(MessageDecoder decoder) {
+		EventType<?, ?>[] w = wireTable;
+		int hash = decoder.stringHash();
+		int i = hash & (WIRE_TABLE_SIZE - 1);
+		EventType<?, ?> t;
+		while((t = w[i]) != null) {
+			if(t.matches(decoder, hash))
+				return t;
+			i = (i + 1) & (WIRE_TABLE_SIZE - 1);
+		}
+		return null;
+	}
+
+	/**
+	 * @return The event class which will be created from frame.
+	 */
+	public static Class<? extends TelldusEvent> eventClass(EventFrame frame) {
+		return frame.type.getEventClass();
+	}
+
+	/**
+	 * @return The type of event which will be created from frame.
+	 */
+	public static EventType<?, ?> eventType(EventFrame frame) {
+		return frame.type;
+	}
+
+	public static TelldusEvent createEvent(EventFrame frame) {
+		return createEvent(frame, false);
+	}
+
+	/**
+	 * Create an event from a frame found by EventStream.
+	 *
+	 * @param lazy If true, the event is a flyweight view over the frame which
+	 *	decodes fields first when they are read. Such events are only valid
+	 *	until the stream reads more data, see TelldusEvent.detach().
+	 */
+	public static TelldusEvent createEvent(EventFrame frame, boolean lazy) {
+		try {
+			if(lazy)
+				return frame.type.createLazy(frame);
+
+			return frame.type.create(frame.toMessage());
+		}catch(Exception e) {
+			log.error("Failed to parse event", e);
+			return null;
+		}
+	}
+
 	public static TelldusEvent createEvent(Message msg) {
 		try {
 			String type = msg.takeString();
-			TelldusEvent event = null;
-
-			if ("TDDeviceChangeEvent".equals(type)) {
-				event = new TDDeviceChangeEvent(msg);
-			} else if ("TDDeviceEvent".equals(type)) {
-				event = new TDDeviceEvent(msg);
-			} else if ("TDRawDeviceEvent".equals(type)) {
-				event = new TDRawDeviceEvent(msg);
-			} else if ("TDSensorEvent".equals(type)) {
-				event = new TDSensorEvent(msg);
-			} else if ("TDControllerEvent".equals(type)) {
-				event = new TDControllerEvent(msg);
-			}
+			EventType<?, ?> t = byName.get(type);
 
-			if(event == null) {
+			if(t == null || !t.isWireType()) {
 				log.warn("Unhandled event of type "+type);
 				return null;
 			}
 
-			return event;
+			return t.create(msg);
 		}catch(Exception e) {
 			log.error("Failed to parse event", e);
 			return null;
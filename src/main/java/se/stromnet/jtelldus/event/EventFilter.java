@@ -0,0 +1,360 @@
+package se.stromnet.jtelldus.event;
+
+import se.stromnet.jtelldus.MessageDecoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drops unwanted events straight from the EventFrame, before any event
+ * object is built.
+ *
+ * Events can be filtered on sensor protocol, model and id, on controller
+ * id and on device id. For each of these there is an allow list and a deny
+ * list. An event is dropped if one of its fields is denied, or if there is
+ * an allow list for the field and the value is not in it. Fields which an
+ * event does not have are not checked:
+ *
+ *	TDSensorEvent		protocol, model, sensor id
+ *	TDRawDeviceEvent	controller id, and protocol/model/sensor id from the raw data
+ *	TDControllerEvent	controller id
+ *	TDDeviceEvent, TDDeviceChangeEvent	device id
+ *
+ * Names are matched on a hash of their raw UTF-8 bytes and ids through
+ * primitive int sets, so no Strings are created while filtering.
+ *
+ * Configure the filter completely before passing it to
+ * TelldusInterface.setEventFilter(); it must not be modified afterwards.
+ */
+public class EventFilter {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte[] RAW_PROTOCOL = "protocol".getBytes(UTF8);
+	private static final byte[] RAW_MODEL = "model".getBytes(UTF8);
+	private static final byte[] RAW_ID = "id".getBytes(UTF8);
+
+	private final NameSet allowProtocols = new NameSet();
+	private final NameSet denyProtocols = new NameSet();
+	private final NameSet allowModels = new NameSet();
+	private final NameSet denyModels = new NameSet();
+	private final IntSet allowSensorIds = new IntSet();
+	private final IntSet denySensorIds = new IntSet();
+	private final IntSet allowControllerIds = new IntSet();
+	private final IntSet denyControllerIds = new IntSet();
+	private final IntSet allowDeviceIds = new IntSet();
+	private final IntSet denyDeviceIds = new IntSet();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	public EventFilter allowProtocols(String... protocols) {
+		allowProtocols.addAll(protocols);
+		return this;
+	}
+
+	public EventFilter denyProtocols(String... protocols) {
+		denyProtocols.addAll(protocols);
+		return this;
+	}
+
+	public EventFilter allowModels(String... models) {
+		allowModels.addAll(models);
+		return this;
+	}
+
+	public EventFilter denyModels(String... models) {
+		denyModels.addAll(models);
+		return this;
+	}
+
+	public EventFilter allowSensorIds(int... ids) {
+		allowSensorIds.addAll(ids);
+		return this;
+	}
+
+	public EventFilter denySensorIds(int... ids) {
+		denySensorIds.addAll(ids);
+		return this;
+	}
+
+	public EventFilter allowControllerIds(int... ids) {
+		allowControllerIds.addAll(ids);
+		return this;
+	}
+
+	public EventFilter denyControllerIds(int... ids) {
+		denyControllerIds.addAll(ids);
+		return this;
+	}
+
+	public EventFilter allowDeviceIds(int... ids) {
+		allowDeviceIds.addAll(ids);
+		return this;
+	}
+
+	public EventFilter denyDeviceIds(int... ids) {
+		denyDeviceIds.addAll(ids);
+		return this;
+	}
+
+	/**
+	 * @return number of events dropped by this filter.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Check whether the event in frame should be passed on.
+	 */
+	public boolean accept(EventFrame frame) {
+		boolean ok = check(frame);
+		if(!ok)
+			dropped.incrementAndGet();
+		return ok;
+	}
+
+	private boolean check(EventFrame frame) {
+		EventType<?, ?> t = frame.type;
+		ByteBuffer bb = frame.buffer;
+
+		if(t == TDSensorEvent.TYPE) {
+			int base = frame.start;
+			return checkInt(allowSensorIds, denySensorIds, frame.getInt(2))
+					&& checkName(allowProtocols, denyProtocols, bb, base + frame.offsets[0], frame.lengths[0])
+					&& checkName(allowModels, denyModels, bb, base + frame.offsets[1], frame.lengths[1]);
+		}
+
+		if(t == TDRawDeviceEvent.TYPE) {
+			if(!checkInt(allowControllerIds, denyControllerIds, frame.getInt(1)))
+				return false;
+
+			int offset = frame.start + frame.offsets[0];
+			int length = frame.lengths[0];
+			return checkRawField(allowProtocols, denyProtocols, bb, offset, length, RAW_PROTOCOL)
+					&& checkRawField(allowModels, denyModels, bb, offset, length, RAW_MODEL)
+					&& checkRawId(allowSensorIds, denySensorIds, bb, offset, length);
+		}
+
+		if(t == TDControllerEvent.TYPE)
+			return checkInt(allowControllerIds, denyControllerIds, frame.getInt(0));
+
+		if(t == TDDeviceEvent.TYPE || t == TDDeviceChangeEvent.TYPE)
+			return checkInt(allowDeviceIds, denyDeviceIds, frame.getInt(0));
+
+		return true;
+	}
+
+	private static boolean checkInt(IntSet allow, IntSet deny, int value) {
+		if(deny.contains(value))
+			return false;
+		return allow.isEmpty() || allow.contains(value);
+	}
+
+	private static boolean checkName(NameSet allow, NameSet deny, ByteBuffer bb, int offset, int length) {
+		if(allow.isEmpty() && deny.isEmpty())
+			return true;
+
+		int hash = MessageDecoder.hash(bb, offset, length);
+		if(deny.contains(hash, bb, offset, length))
+			return false;
+		return allow.isEmpty() || allow.contains(hash, bb, offset, length);
+	}
+
+	/**
+	 * Raw data looks like "class:sensor;protocol:mandolyn;model:temperaturehumidity;id:11;..."
+	 * Find the value for key and check it.
+	 */
+	private static boolean checkRawField(NameSet allow, NameSet deny, ByteBuffer bb, int offset, int length, byte[] key) {
+		if(allow.isEmpty() && deny.isEmpty())
+			return true;
+
+		int end = offset + length;
+		int start = findRawField(bb, offset, end, key);
+		if(start < 0)
+			return true; // No such field; nothing to check
+
+		return checkName(allow, deny, bb, start, fieldEnd(bb, start, end) - start);
+	}
+
+	/**
+	 * Check the "id:" field of raw data against the sensor id sets. Raw
+	 * data without a numeric id, such as most commands, is not checked.
+	 */
+	private static boolean checkRawId(IntSet allow, IntSet deny, ByteBuffer bb, int offset, int length) {
+		if(allow.isEmpty() && deny.isEmpty())
+			return true;
+
+		int end = offset + length;
+		int start = findRawField(bb, offset, end, RAW_ID);
+		if(start < 0)
+			return true;
+
+		int stop = fieldEnd(bb, start, end);
+		int p = start;
+		boolean negative = p < stop && bb.get(p) == '-';
+		if(negative)
+			p++;
+		if(p == stop || stop - p > 10)
+			return true;
+
+		long value = 0;
+		for(; p < stop; p++) {
+			int digit = bb.get(p) - '0';
+			if(digit < 0 || digit > 9)
+				return true;
+			value = value * 10 + digit;
+		}
+		if(negative)
+			value = -value;
+		if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			return true;
+
+		return checkInt(allow, deny, (int) value);
+	}
+
+	/**
+	 * @return position of the value for key in the raw data between offset
+	 *	and end, or -1 if there is no such field.
+	 */
+	private static int findRawField(ByteBuffer bb, int offset, int end, byte[] key) {
+		int p = offset;
+		while(p < end) {
+			int sep = fieldEnd(bb, p, end);
+			if(sep - p > key.length && bb.get(p + key.length) == ':' && regionEquals(bb, p, key))
+				return p + key.length + 1;
+			p = sep + 1;
+		}
+		return -1;
+	}
+
+	private static int fieldEnd(ByteBuffer bb, int p, int end) {
+		while(p < end && bb.get(p) != ';')
+			p++;
+		return p;
+	}
+
+	private static boolean regionEquals(ByteBuffer bb, int offset, byte[] expected) {
+		for(int i = 0; i < expected.length; i++) {
+			if(bb.get(offset + i) != expected[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Open addressing set of primitive ints.
+	 */
+	static class IntSet {
+		private static final int FREE = Integer.MIN_VALUE;
+
+		private int[] table = new int[0];
+		private int size;
+		private boolean hasFree; // FREE itself is in the set
+
+		void addAll(int... values) {
+			for(int v: values)
+				add(v);
+		}
+
+		void add(int value) {
+			if(value == FREE) {
+				if(!hasFree)
+					size++;
+				hasFree = true;
+				return;
+			}
+
+			if((size + 1) * 2 > table.length)
+				rehash(Math.max(8, table.length * 2));
+
+			int i = slot(value, table.length);
+			while(table[i] != FREE) {
+				if(table[i] == value)
+					return;
+				i = (i + 1) & (table.length - 1);
+			}
+			table[i] = value;
+			size++;
+		}
+
+		boolean contains(int value) {
+			if(value == FREE)
+				return hasFree;
+
+			if(table.length == 0)
+				return false;
+
+			int i = slot(value, table.length);
+			while(table[i] != FREE) {
+				if(table[i] == value)
+					return true;
+				i = (i + 1) & (table.length - 1);
+			}
+			return false;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		private void rehash(int capacity) {
+			int[] old = table;
+			table = new int[capacity];
+			Arrays.fill(table, FREE);
+			for(int v: old) {
+				if(v == FREE)
+					continue;
+				int i = slot(v, capacity);
+				while(table[i] != FREE)
+					i = (i + 1) & (capacity - 1);
+				table[i] = v;
+			}
+		}
+
+		private static int slot(int value, int capacity) {
+			int h = value * 0x9e3779b9;
+			return (h ^ (h >>> 16)) & (capacity - 1);
+		}
+	}
+
+	/**
+	 * Set of names, looked up by hash and verified against the raw bytes.
+	 */
+	static class NameSet {
+		private final IntSet hashes = new IntSet();
+		private byte[][] names = new byte[0][];
+		private int[] nameHashes = new int[0];
+
+		void addAll(String... values) {
+			for(String v: values)
+				add(v);
+		}
+
+		void add(String value) {
+			byte[] bytes = value.getBytes(UTF8);
+			names = Arrays.copyOf(names, names.length + 1);
+			nameHashes = Arrays.copyOf(nameHashes, nameHashes.length + 1);
+			names[names.length - 1] = bytes;
+			nameHashes[nameHashes.length - 1] = MessageDecoder.hash(ByteBuffer.wrap(bytes), 0, bytes.length);
+			hashes.add(nameHashes[nameHashes.length - 1]);
+		}
+
+		boolean isEmpty() {
+			return names.length == 0;
+		}
+
+		boolean contains(int hash, ByteBuffer bb, int offset, int length) {
+			if(!hashes.contains(hash))
+				return false;
+
+			// Rule out hash collisions
+			for(int i = 0; i < names.length; i++) {
+				if(nameHashes[i] == hash && names[i].length == length && regionEquals(bb, offset, names[i]))
+					return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package se.stromnet.jtelldus.event;
+
+import se.stromnet.jtelldus.Message;
+import se.stromnet.jtelldus.MessageDecoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Location of one complete event in the receive buffer, as found by
+ * EventStream. Holds the event type and the offsets of each argument token,
+ * so that fields can be read without parsing the frame again.
+ *
+ * The frame refers to the receive buffer, and is only valid until the
+ * stream reads more data.
+ */
+public class EventFrame {
+	/**
+	 * Max arguments of an event type. Of the built-in types TDSensorEvent
+	 * has the most, 6; the rest leaves room for added types.
+	 */
+	static final int MAX_ARGS = 8;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	ByteBuffer buffer;
+	EventType<?, ?> type;
+	int start;
+	int end;
+
+	// Offsets are relative to start, since the frame may be moved while partial
+	int typeOffset;
+	int typeLength;
+
+	int count;
+	final int[] kinds = new int[MAX_ARGS];
+	final int[] ints = new int[MAX_ARGS];
+	final int[] offsets = new int[MAX_ARGS];
+	final int[] lengths = new int[MAX_ARGS];
+
+	private ByteBuffer view;
+	private ByteBuffer viewSource;
+
+	void begin(ByteBuffer buffer, int start) {
+		this.buffer = buffer;
+		this.start = start;
+		this.end = start;
+		count = 0;
+	}
+
+	void setType(EventType<?, ?> type, MessageDecoder decoder) {
+		this.type = type;
+		typeOffset = decoder.stringOffset() - start;
+		typeLength = decoder.stringLength();
+	}
+
+	void addToken(int kind, MessageDecoder decoder) {
+		kinds[count] = kind;
+		if(kind == MessageDecoder.INT) {
+			ints[count] = decoder.intValue();
+		} else {
+			offsets[count] = decoder.stringOffset() - start;
+			lengths[count] = decoder.stringLength();
+		}
+		count++;
+	}
+
+	/**
+	 * @return number of argument tokens, not counting the event type.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return frame length in bytes, including the event type.
+	 */
+	public int length() {
+		return end - start;
+	}
+
+	public int getInt(int arg) {
+		assert kinds[arg] == MessageDecoder.INT;
+		return ints[arg];
+	}
+
+	public String getString(int arg) {
+		assert kinds[arg] == MessageDecoder.STRING;
+		return decode(start + offsets[arg], lengths[arg]);
+	}
+
+	public String getType() {
+		return decode(start + typeOffset, typeLength);
+	}
+
+	private String decode(int offset, int length) {
+		if(buffer.hasArray())
+			return new String(buffer.array(), buffer.arrayOffset() + offset, length, UTF8);
+
+		ByteBuffer bb = buffer.duplicate();
+		bb.limit(offset + length);
+		bb.position(offset);
+		return UTF8.decode(bb).toString();
+	}
+
+	public EventType<?, ?> getEventType() {
+		return type;
+	}
+
+	/**
+	 * Returns a Message over this frame, positioned on the first argument
+	 * after the event type.
+	 */
+	public Message toMessage() {
+		if(view == null || viewSource != buffer) {
+			view = buffer.duplicate();
+			viewSource = buffer;
+		}
+
+		view.clear();
+		view.limit(end);
+		view.position(start + typeOffset + typeLength);
+		return new Message(view);
+	}
+
+	@Override
+	public String toString() {
+		return "EventFrame{" +
+				"type=" + getType() +
+				", args=" + count +
+				", length=" + length() +
+				'}';
+	}
+}
@@ -0,0 +1,86 @@
+package se.stromnet.jtelldus.event;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes events to Flow.Subscribers.
+ *
+ * Each subscriber has a buffer of its own, and receives events from the
+ * given Executor as it signals demand. An event is skipped by subscribers
+ * whose buffer is full, as long as some subscriber has room for it. Only
+ * when every buffer is full does the thread dispatching events wait, until
+ * any of them has room. With the default dispatching this is the event
+ * reading thread, so telldusd's data is then left on the socket, held back
+ * by TCP flow control.
+ *
+ * Events are detached before they are published, see TelldusEvent.detach().
+ *
+ * Created by EventDispatcher.getPublisher().
+ *
+ * @param <E> Type of events published.
+ */
+public class EventPublisher<E extends TelldusEvent> extends SubmissionPublisher<E> implements EventSink {
+	/** Max ms between attempts while every subscriber's buffer is full */
+	private static final long MAX_RETRY_WAIT = 16;
+
+	private final EventType<E, ?> type;
+	private final AtomicLong dropped = new AtomicLong();
+
+	EventPublisher(EventType<E, ?> type, Executor executor, int maxBufferCapacity) {
+		super(executor, maxBufferCapacity);
+		this.type = type;
+	}
+
+	/**
+	 * @return the type of events published, or null for all events.
+	 */
+	public EventType<E, ?> getEventType() {
+		return type;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void offer(TelldusEvent event) {
+		if(isClosed() || !hasSubscribers())
+			return;
+
+		event.detach();
+		long wait = 1;
+		try {
+			while(true) {
+				int subscribers = getNumberOfSubscribers();
+				// Negative if dropped for some subscribers
+				int result = offer((E) event, null);
+				if(result >= 0)
+					return;
+				if(-result < subscribers) {
+					dropped.addAndGet(-result);
+					return;
+				}
+
+				// Every buffer is full; nobody got it, so it may be offered again
+				try {
+					Thread.sleep(wait);
+				} catch(InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					dropped.addAndGet(-result);
+					return;
+				}
+				wait = Math.min(wait * 2, MAX_RETRY_WAIT);
+				if(isClosed())
+					return;
+			}
+		} catch(IllegalStateException ex) {
+			// Closed meanwhile
+		}
+	}
+
+	/**
+	 * @return number of times an event was skipped by a subscriber whose
+	 *	buffer was full.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+}
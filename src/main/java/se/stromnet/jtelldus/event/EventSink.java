@@ -0,0 +1,17 @@
+package se.stromnet.jtelldus.event;
+
+/**
+ * Something registered in the EventDispatcher which takes events of any
+ * type, instead of being called through its listener interface.
+ */
+interface EventSink extends TelldusEvent.Listener {
+	/**
+	 * Take event, which stays valid after the call.
+	 */
+	void offer(TelldusEvent event);
+
+	/**
+	 * Called when removed from the dispatcher.
+	 */
+	void close();
+}
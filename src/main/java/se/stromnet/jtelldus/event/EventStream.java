@@ -0,0 +1,206 @@
+package se.stromnet.jtelldus.event;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.stromnet.jtelldus.MessageDecoder;
+import se.stromnet.jtelldus.TelldusSocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the data read from the event socket into event frames.
+ *
+ * Events are not delimited on the wire; each one is an event type string
+ * followed by a fixed set of arguments depending on the type. Each
+ * readFrom() call reads whatever the socket has, and nextFrame() then
+ * returns the complete frames in it one by one. A partial frame at the end
+ * is kept and completed by the next read. Frames larger than the buffer
+ * grows the buffer.
+ *
+ * If the data is not what we expect, only the broken frame is skipped; we
+ * look for the start of the next event type token and carry on from there.
+ *
+ * Instances are not thread safe.
+ */
+public class EventStream {
+	private static final Logger log = LoggerFactory.getLogger(EventStream.class);
+
+	/** Longest event type name we accept, with some margin */
+	private static final int MAX_TYPE_LENGTH = 32;
+	/** Larger frames are assumed to be garbage */
+	private static final int MAX_FRAME_SIZE = 64 * 1024;
+
+	private static final byte[] TYPE_PREFIX = {':', 'T', 'D'};
+
+	// In read mode; position is how far we've scanned
+	private ByteBuffer buffer;
+	private final MessageDecoder decoder = new MessageDecoder();
+	private final EventFrame frame = new EventFrame();
+
+	private boolean inFrame;
+	private int frameStart;
+	private int[] signature;
+
+	private long skippedBytes;
+
+	public EventStream(int initialSize) {
+		buffer = ByteBuffer.allocate(initialSize);
+		buffer.limit(0);
+	}
+
+	/**
+	 * Read from socket into the buffer. Any partial frame is moved to the
+	 * front of the buffer first, and the buffer is grown if the partial
+	 * frame fills it.
+	 *
+	 * @return number of bytes read, or -1 on end of stream.
+	 */
+	public int readFrom(TelldusSocket socket) throws IOException {
+		if(!inFrame)
+			frameStart = buffer.position();
+		int scanned = buffer.position() - frameStart;
+
+		// Only the unfinished tail is copied; often there is none.
+		buffer.position(frameStart);
+		buffer.compact();
+		frameStart = 0;
+
+		if(!buffer.hasRemaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+			if(log.isDebugEnabled())
+				log.debug("Grew event buffer to "+ buffer.capacity() +" bytes");
+		}
+
+		int len;
+		try {
+			len = socket.read(buffer);
+		} finally {
+			buffer.flip();
+			buffer.position(scanned);
+			frame.buffer = buffer;
+			frame.start = 0;
+		}
+
+		return len;
+	}
+
+	/**
+	 * Find the next complete frame in the buffer.
+	 *
+	 * @return true if a frame is available through frame(), false if more
+	 *	data needs to be read first.
+	 */
+	public boolean nextFrame() {
+		while(true) {
+			if(!inFrame) {
+				inFrame = true;
+				signature = null;
+				frameStart = buffer.position();
+				frame.begin(buffer, frameStart);
+				decoder.reset();
+			}
+
+			int token = decoder.next(buffer);
+			if(token == MessageDecoder.NEED_MORE) {
+				int pending = buffer.limit() - frameStart;
+				if(signature == null ? pending > MAX_TYPE_LENGTH + 3 : pending > MAX_FRAME_SIZE) {
+					resync();
+					continue;
+				}
+				return false;
+			}
+
+			if(token == MessageDecoder.ERROR) {
+				resync();
+				continue;
+			}
+
+			if(signature == null) {
+				if(token != MessageDecoder.STRING || decoder.stringLength() > MAX_TYPE_LENGTH) {
+					resync();
+					continue;
+				}
+
+				EventType<?, ?> type = EventFactory.typeOf(decoder);
+				if(type == null) {
+					log.warn("Unhandled event of type "+ decoder.stringValue());
+					resync();
+					continue;
+				}
+				signature = type.signature();
+				frame.setType(type, decoder);
+			} else {
+				if(token != signature[frame.count]) {
+					resync();
+					continue;
+				}
+				frame.addToken(token, decoder);
+			}
+
+			if(frame.count == signature.length) {
+				frame.end = buffer.position();
+				inFrame = false;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return the frame found by the last successful nextFrame().
+	 */
+	public EventFrame frame() {
+		return frame;
+	}
+
+	/**
+	 * @return number of bytes thrown away while looking for valid frames.
+	 */
+	public long getSkippedBytes() {
+		return skippedBytes;
+	}
+
+	/**
+	 * Skip the current frame and look for something resembling the start
+	 * of the next one, i.e. <digits>:TD.
+	 */
+	private void resync() {
+		decoder.reset();
+		inFrame = false;
+
+		int limit = buffer.limit();
+		int next = frameStart + 1;
+		while(next < limit && !isFrameStart(next, limit))
+			next++;
+
+		if(log.isDebugEnabled())
+			log.debug("Skipping "+ (next - frameStart) +" bytes of unexpected data");
+
+		skippedBytes += next - frameStart;
+		buffer.position(next);
+		frameStart = next;
+	}
+
+	private boolean isFrameStart(int i, int limit) {
+		int j = i;
+		while(j < limit && j - i < 3 && isDigit(buffer.get(j)))
+			j++;
+
+		if(j == i)
+			return false;
+
+		// Candidate, unless what we have so far contradicts it
+		for(int k = 0; k < TYPE_PREFIX.length && j + k < limit; k++) {
+			if(buffer.get(j + k) != TYPE_PREFIX[k])
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+}
@@ -0,0 +1,124 @@
+package se.stromnet.jtelldus.event;
+
+import se.stromnet.jtelldus.Message;
+import se.stromnet.jtelldus.MessageDecoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Describes one kind of event: its name and arguments on the wire, how to
+ * build it, and how to deliver it to a listener.
+ *
+ * Each event class holds its EventType in a static TYPE field, and the
+ * type is registered in EventFactory. Adding an event type means adding an
+ * entry there, not touching the factory or dispatcher logic.
+ *
+ * @param <E> Event class
+ * @param <L> Listener interface for the event
+ */
+public abstract class EventType<E extends TelldusEvent, L extends TelldusEvent.Listener> {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final AtomicInteger nextIndex = new AtomicInteger();
+
+	private final int index;
+	private final String name;
+	private final byte[] nameBytes;
+	private final int nameHash;
+	private final int[] signature;
+	private final Class<E> eventClass;
+	private final Class<L> listenerClass;
+
+	/**
+	 * @param name Name of the event on the wire
+	 * @param eventClass Class of the event
+	 * @param listenerClass Listener interface which receives the event
+	 * @param signature MessageDecoder.INT/STRING kinds of the arguments
+	 *	following the name on the wire, or null for events which are not
+	 *	sent by telldusd. At most EventFrame.MAX_ARGS long.
+	 */
+	protected EventType(String name, Class<E> eventClass, Class<L> listenerClass, int[] signature) {
+		if(signature != null && signature.length > EventFrame.MAX_ARGS)
+			throw new IllegalArgumentException("At most "+ EventFrame.MAX_ARGS +" arguments supported");
+
+		this.index = nextIndex.getAndIncrement();
+		this.name = name;
+		this.nameBytes = name.getBytes(UTF8);
+		this.nameHash = MessageDecoder.hash(ByteBuffer.wrap(nameBytes), 0, nameBytes.length);
+		this.signature = signature;
+		this.eventClass = eventClass;
+		this.listenerClass = listenerClass;
+	}
+
+	/**
+	 * Build an event from its arguments.
+	 *
+	 * @param msg Message positioned on the first argument.
+	 */
+	public abstract E create(Message msg);
+
+	/**
+	 * Build a lazy event over frame, see TelldusEvent.detach(). Types
+	 * which do not support lazy decoding build a regular event.
+	 */
+	public E createLazy(EventFrame frame) {
+		return create(frame.toMessage());
+	}
+
+	/**
+	 * Deliver event to listener.
+	 */
+	protected abstract void dispatch(L listener, E event);
+
+	@SuppressWarnings("unchecked")
+	final void deliver(TelldusEvent.Listener listener, TelldusEvent event) {
+		dispatch((L) listener, (E) event);
+	}
+
+	/**
+	 * @return small unique number identifying this type, suitable as array index.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Class<E> getEventClass() {
+		return eventClass;
+	}
+
+	public Class<L> getListenerClass() {
+		return listenerClass;
+	}
+
+	/**
+	 * @return true if this event is sent by telldusd.
+	 */
+	public boolean isWireType() {
+		return signature != null;
+	}
+
+	int[] signature() {
+		return signature;
+	}
+
+	int nameHash() {
+		return nameHash;
+	}
+
+	/**
+	 * @return true if the decoder's last STRING token is this type's name.
+	 */
+	boolean matches(MessageDecoder decoder, int hash) {
+		return hash == nameHash && decoder.stringEquals(nameBytes);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,243 @@
+package se.stromnet.jtelldus.event;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.stromnet.jtelldus.Threads;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Delivers events to a listener from a thread of its own, through a
+ * bounded queue.
+ *
+ * This keeps a slow listener from stalling the thread reading the event
+ * socket. What happens when the queue is full is decided by the
+ * OverflowPolicy. Events are detached before they are queued, see
+ * TelldusEvent.detach().
+ *
+ * Waiting is done with j.u.c locks rather than monitors, so the thread may
+ * be a virtual thread without pinning its carrier.
+ *
+ * Created by EventDispatcher.addEventListener(listener, capacity, policy).
+ */
+public class ListenerQueue implements EventSink {
+	private static final Logger log = LoggerFactory.getLogger(ListenerQueue.class);
+
+	private final TelldusEvent.Listener listener;
+	private final OverflowPolicy policy;
+
+	// Ring buffer, guarded by lock
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final TelldusEvent[] ring;
+	private int head;
+	private int count;
+	private boolean closed;
+
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	private final Thread thread;
+
+	ListenerQueue(TelldusEvent.Listener listener, int capacity, OverflowPolicy policy, ThreadFactory threadFactory) {
+		if(capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1");
+
+		this.listener = listener;
+		this.policy = policy;
+		this.ring = new TelldusEvent[capacity];
+
+		thread = Threads.newThread(threadFactory, new Runnable() {
+			public void run() {
+				deliverLoop();
+			}
+		}, getClass().getSimpleName(), true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Queue event for delivery. Only blocks if the policy is BLOCK and the
+	 * queue is full.
+	 */
+	public void offer(TelldusEvent event) {
+		lock.lock();
+		try {
+			if(closed)
+				return;
+
+			if(policy == OverflowPolicy.COALESCE && replace(event)) {
+				coalesced.incrementAndGet();
+				return;
+			}
+
+			if(count == ring.length) {
+				switch(policy) {
+					case BLOCK:
+						while(count == ring.length && !closed) {
+							try {
+								notFull.await();
+							} catch(InterruptedException ex) {
+								Thread.currentThread().interrupt();
+								dropped.incrementAndGet();
+								return;
+							}
+						}
+						if(closed)
+							return;
+						break;
+
+					case DROP_NEWEST:
+						dropped.incrementAndGet();
+						return;
+
+					case DROP_OLDEST:
+					case COALESCE:
+						ring[head] = null;
+						head = (head + 1) % ring.length;
+						count--;
+						dropped.incrementAndGet();
+						break;
+				}
+			}
+
+			ring[(head + count) % ring.length] = event;
+			count++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Replace a queued event superseded by event.
+	 */
+	private boolean replace(TelldusEvent event) {
+		for(int i = 0; i < count; i++) {
+			int slot = (head + i) % ring.length;
+			if(event.supersedes(ring[slot])) {
+				ring[slot] = event;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private TelldusEvent take() throws InterruptedException {
+		lock.lock();
+		try {
+			while(count == 0 && !closed)
+				notEmpty.await();
+
+			if(closed)
+				return null;
+
+			TelldusEvent event = ring[head];
+			ring[head] = null;
+			head = (head + 1) % ring.length;
+			count--;
+
+			// Wake up any BLOCKed producer
+			notFull.signal();
+			return event;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void deliverLoop() {
+		try {
+			TelldusEvent event;
+			while((event = take()) != null) {
+				try {
+					event.getEventType().deliver(listener, event);
+					delivered.incrementAndGet();
+				} catch(RuntimeException ex) {
+					log.error("Listener "+ listener +" failed on "+ event, ex);
+				}
+			}
+		} catch(InterruptedException ex) {
+			// Closed
+		}
+	}
+
+	/**
+	 * Stop delivering events. Events still queued are discarded.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			for(int i = 0; i < count; i++)
+				ring[(head + i) % ring.length] = null;
+			count = 0;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public TelldusEvent.Listener getListener() {
+		return listener;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	public int getCapacity() {
+		return ring.length;
+	}
+
+	/**
+	 * @return number of events waiting to be delivered.
+	 */
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of events delivered to the listener.
+	 */
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+
+	/**
+	 * @return number of events dropped because the queue was full.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of queued events replaced by a newer one, see OverflowPolicy.COALESCE.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ListenerQueue{" +
+				"listener=" + listener +
+				", policy=" + policy +
+				", depth=" + getQueueDepth() +
+				", dropped=" + getDroppedCount() +
+				'}';
+	}
+}
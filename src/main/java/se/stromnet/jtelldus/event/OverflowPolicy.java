@@ -0,0 +1,20 @@
+package se.stromnet.jtelldus.event;
+
+/**
+ * What a ListenerQueue does with a new event when it is full.
+ */
+public enum OverflowPolicy {
+	/** Wait for the listener to catch up. This stalls the event reader. */
+	BLOCK,
+	/** Drop the oldest queued event to make room for the new one */
+	DROP_OLDEST,
+	/** Drop the new event */
+	DROP_NEWEST,
+	/**
+	 * Replace a queued event which the new one supersedes, such as an
+	 * older reading from the same sensor, see TelldusEvent.supersedes().
+	 * This is done regardless of whether the queue is full. If the queue is
+	 * full and nothing is superseded, the oldest event is dropped.
+	 */
+	COALESCE
+}
@@ -0,0 +1,122 @@
+package se.stromnet.jtelldus.event;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.stromnet.jtelldus.Threads;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs tasks on a fixed set of worker threads, where tasks with equal keys
+ * always run on the same worker, in the order they were submitted.
+ *
+ * Each worker has a bounded queue of its own, so there is no lock shared
+ * by all workers. Submitting blocks while the worker's queue is full.
+ */
+public class StripedExecutor {
+	private static final Logger log = LoggerFactory.getLogger(StripedExecutor.class);
+
+	private static final Runnable STOP = new Runnable() {
+		public void run() {
+		}
+	};
+
+	private final Worker[] workers;
+
+	/**
+	 * @param stripes Number of worker threads.
+	 * @param queueCapacity Max number of waiting tasks per worker.
+	 */
+	public StripedExecutor(int stripes, int queueCapacity) {
+		this(stripes, queueCapacity, null);
+	}
+
+	/**
+	 * @param threadFactory Factory for the worker threads, or null for
+	 *	regular daemon threads.
+	 */
+	public StripedExecutor(int stripes, int queueCapacity, ThreadFactory threadFactory) {
+		if(stripes < 1)
+			throw new IllegalArgumentException("Need at least one stripe");
+
+		workers = new Worker[stripes];
+		for(int i = 0; i < stripes; i++) {
+			workers[i] = new Worker(queueCapacity);
+			workers[i].thread = Threads.newThread(threadFactory, workers[i], getClass().getSimpleName() + "-" + i, true);
+			workers[i].thread.start();
+		}
+	}
+
+	/**
+	 * Run task on the worker for key.
+	 *
+	 * @param key Tasks with equal keys run in order. May be null.
+	 */
+	public void execute(Object key, Runnable task) throws InterruptedException {
+		workers[stripe(key)].queue.put(task);
+	}
+
+	/**
+	 * @return index of the worker handling key.
+	 */
+	public int stripe(Object key) {
+		if(key == null)
+			return 0;
+
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		return (h & 0x7fffffff) % workers.length;
+	}
+
+	public int getStripes() {
+		return workers.length;
+	}
+
+	/**
+	 * @return number of tasks waiting for the given worker.
+	 */
+	public int getQueueDepth(int stripe) {
+		return workers[stripe].queue.size();
+	}
+
+	/**
+	 * Stop all workers once they have run the tasks already submitted.
+	 */
+	public void shutdown() {
+		for(Worker w: workers) {
+			try {
+				w.queue.put(STOP);
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				w.thread.interrupt();
+			}
+		}
+	}
+
+	private static class Worker implements Runnable {
+		final BlockingQueue<Runnable> queue;
+		Thread thread;
+
+		Worker(int queueCapacity) {
+			queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+		}
+
+		public void run() {
+			try {
+				Runnable task;
+				while((task = queue.take()) != STOP) {
+					try {
+						task.run();
+					} catch(RuntimeException ex) {
+						log.error("Task failed", ex);
+					}
+				}
+			} catch(InterruptedException ex) {
+				// Shut down
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package se.stromnet.jtelldus.event;
+
+import se.stromnet.jtelldus.Message;
+
+/**
+ * Sent by jtelldus itself, not telldusd, when the connection to telldusd
+ * goes up or down.
+ *
+ * For the EVENTS channel, DOWN means the event socket was lost or could
+ * not be connected, and retryIn is the time until the next attempt.
+ * For the COMMANDS channel, DOWN means commands fail right away since
+ * telldusd could not be reached (see CircuitBreaker), and PROBING that a
+ * trial command is being sent.
+ */
+public class TDConnectionEvent extends TelldusEvent {
+
+	public static final EventType<TDConnectionEvent, Listener> TYPE =
+			new EventType<TDConnectionEvent, Listener>("TDConnectionEvent", TDConnectionEvent.class, Listener.class, null) {
+		@Override
+		public TDConnectionEvent create(Message msg) {
+			throw new UnsupportedOperationException("TDConnectionEvent is not sent by telldusd");
+		}
+
+		@Override
+		protected void dispatch(Listener listener, TDConnectionEvent event) {
+			listener.onTDConnectionEvent(event);
+		}
+	};
+
+	public enum Channel {
+		EVENTS,
+		COMMANDS
+	}
+
+	public enum State {
+		UP,
+		DOWN,
+		PROBING
+	}
+
+	private final Channel channel;
+	private final State state;
+	private final long retryIn;
+
+	/**
+	 * @param retryIn ms until the next attempt when DOWN, otherwise 0.
+	 */
+	public TDConnectionEvent(Channel channel, State state, long retryIn) {
+		super("TDConnectionEvent");
+		this.channel = channel;
+		this.state = state;
+		this.retryIn = retryIn;
+	}
+
+	public Channel getChannel() {
+		return channel;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public long getRetryIn() {
+		return retryIn;
+	}
+
+	@Override
+	public Object getKey() {
+		return channel;
+	}
+
+	@Override
+	public EventType<?, ?> getEventType() {
+		return TYPE;
+	}
+
+	public interface Listener extends TelldusEvent.Listener {
+		void onTDConnectionEvent(TDConnectionEvent event);
+	}
+
+	@Override
+	public String toString() {
+		return "TDConnectionEvent{" +
+				"channel=" + channel +
+				", state=" + state +
+				", retryIn=" + retryIn +
+				"} " + super.toString();
+	}
+}
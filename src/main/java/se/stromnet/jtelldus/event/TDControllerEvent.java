@@ -1,22 +1,70 @@
 package se.stromnet.jtelldus.event;
 
 import se.stromnet.jtelldus.Message;
+import se.stromnet.jtelldus.MessageDecoder;
 import se.stromnet.jtelldus.Protocol.ChangeEvent;
 import se.stromnet.jtelldus.Protocol.ChangeType;
 
 public class TDControllerEvent extends TelldusEvent {
 
+	public static final EventType<TDControllerEvent, Listener> TYPE =
+			new EventType<TDControllerEvent, Listener>("TDControllerEvent", TDControllerEvent.class, Listener.class,
+					new int[] {MessageDecoder.INT, MessageDecoder.INT, MessageDecoder.INT, MessageDecoder.STRING}) {
+		@Override
+		public TDControllerEvent create(Message msg) {
+			return new TDControllerEvent(msg);
+		}
+
+		@Override
+		public TDControllerEvent createLazy(EventFrame frame) {
+			return new TDControllerEvent(frame);
+		}
+
+		@Override
+		protected void dispatch(Listener listener, TDControllerEvent event) {
+			listener.onTDControllerEvent(event);
+		}
+	};
+
 	private int controllerId;
 	private ChangeEvent changeEvent;
 	private ChangeType changeType;
 	private String newValue;
 
+	// Raw codes, mapped to enums when first read
+	private int changeEventCode;
+	private int changeTypeCode;
+	private boolean decoded;
+
 	public TDControllerEvent(Message msg) {
 		super("TDControllerEvent");
 		controllerId = msg.takeInt();
 		changeEvent = ChangeEvent.fromCode(msg.takeInt());
 		changeType = ChangeType.fromCode(msg.takeInt());
 		newValue = msg.takeString();
+		decoded = true;
+	}
+
+	TDControllerEvent(EventFrame frame) {
+		super("TDControllerEvent", frame);
+		controllerId = frame.getInt(0);
+		changeEventCode = frame.getInt(1);
+		changeTypeCode = frame.getInt(2);
+	}
+
+	@Override
+	protected void decodeAll() {
+		decodeCodes();
+		getNewValue();
+	}
+
+	private void decodeCodes() {
+		if(decoded)
+			return;
+
+		changeEvent = ChangeEvent.fromCode(changeEventCode);
+		changeType = ChangeType.fromCode(changeTypeCode);
+		decoded = true;
 	}
 
 	public int getControllerId() {
@@ -24,17 +72,40 @@ public class TDControllerEvent extends TelldusEvent {
 	}
 
 	public ChangeEvent getChangeEvent() {
+		decodeCodes();
 		return changeEvent;
 	}
 
 	public ChangeType getChangeType() {
+		decodeCodes();
 		return changeType;
 	}
 
 	public String getNewValue() {
+		if(newValue == null)
+			newValue = frame().getString(3);
 		return newValue;
 	}
 
+	@Override
+	public Object getKey() {
+		return controllerId;
+	}
+
+	/**
+	 * Only a change of the same kind supersedes an older one.
+	 */
+	@Override
+	public boolean supersedes(TelldusEvent older) {
+		return super.supersedes(older)
+				&& getChangeEvent() == ((TDControllerEvent) older).getChangeEvent()
+				&& getChangeType() == ((TDControllerEvent) older).getChangeType();
+	}
+
+	@Override
+	public EventType<?, ?> getEventType() {
+		return TYPE;
+	}
 
 	public interface Listener extends TelldusEvent.Listener {
 		void onTDControllerEvent(TDControllerEvent event);
@@ -44,9 +115,9 @@ public class TDControllerEvent extends TelldusEvent {
 	public String toString() {
 		return "TDControllerEvent{" +
 				"controllerId=" + controllerId +
-				", changeEvent=" + changeEvent +
-				", changeType=" + changeType +
-				", newValue='" + newValue + '\'' +
+				", changeEvent=" + getChangeEvent() +
+				", changeType=" + getChangeType() +
+				", newValue='" + getNewValue() + '\'' +
 				"} " + super.toString();
 	}
 }
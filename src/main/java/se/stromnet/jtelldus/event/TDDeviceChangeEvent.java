@@ -1,14 +1,39 @@
 package se.stromnet.jtelldus.event;
 
 import se.stromnet.jtelldus.Message;
+import se.stromnet.jtelldus.MessageDecoder;
 import se.stromnet.jtelldus.Protocol.ChangeEvent;
 import se.stromnet.jtelldus.Protocol.ChangeType;
 
 public class TDDeviceChangeEvent extends TelldusDeviceEvent {
 
+	public static final EventType<TDDeviceChangeEvent, Listener> TYPE =
+			new EventType<TDDeviceChangeEvent, Listener>("TDDeviceChangeEvent", TDDeviceChangeEvent.class, Listener.class,
+					new int[] {MessageDecoder.INT, MessageDecoder.INT, MessageDecoder.INT}) {
+		@Override
+		public TDDeviceChangeEvent create(Message msg) {
+			return new TDDeviceChangeEvent(msg);
+		}
+
+		@Override
+		public TDDeviceChangeEvent createLazy(EventFrame frame) {
+			return new TDDeviceChangeEvent(frame);
+		}
+
+		@Override
+		protected void dispatch(Listener listener, TDDeviceChangeEvent event) {
+			listener.onTDDeviceChangeEvent(event);
+		}
+	};
+
 	private ChangeEvent changeEvent;
 	private ChangeType changeType;
 
+	// Raw codes, mapped to enums when first read
+	private int changeEventCode;
+	private int changeTypeCode;
+	private boolean decoded;
+
 	public TDDeviceChangeEvent(Message msg) {
 		super("TDDeviceChangeEvent", msg.takeInt());
 		/* In service code, changeEvent is called eventDeviceChanges, which would
@@ -19,24 +44,58 @@ public class TDDeviceChangeEvent extends TelldusDeviceEvent {
 		 */
 		changeEvent = ChangeEvent.fromCode(msg.takeInt());
 		changeType = ChangeType.fromCode(msg.takeInt());
+		decoded = true;
+	}
+
+	TDDeviceChangeEvent(EventFrame frame) {
+		super("TDDeviceChangeEvent", frame);
+		changeEventCode = frame.getInt(1);
+		changeTypeCode = frame.getInt(2);
+	}
+
+	@Override
+	protected void decodeAll() {
+		if(decoded)
+			return;
+
+		changeEvent = ChangeEvent.fromCode(changeEventCode);
+		changeType = ChangeType.fromCode(changeTypeCode);
+		decoded = true;
 	}
 
 	public ChangeEvent getChangeEvent() {
+		decodeAll();
 		return changeEvent;
 	}
 
 	public ChangeType getChangeType() {
+		decodeAll();
 		return changeType;
 	}
 
+	/**
+	 * Only a change of the same kind supersedes an older one.
+	 */
+	@Override
+	public boolean supersedes(TelldusEvent older) {
+		return super.supersedes(older)
+				&& getChangeEvent() == ((TDDeviceChangeEvent) older).getChangeEvent()
+				&& getChangeType() == ((TDDeviceChangeEvent) older).getChangeType();
+	}
+
 	@Override
 	public String toString() {
 		return "TDDeviceChangeEvent{" +
-				"changeEvent=" + changeEvent +
-				", changeType=" + changeType +
+				"changeEvent=" + getChangeEvent() +
+				", changeType=" + getChangeType() +
 				'}';
 	}
 
+	@Override
+	public EventType<?, ?> getEventType() {
+		return TYPE;
+	}
+
 	public interface Listener extends TelldusEvent.Listener {
 		void onTDDeviceChangeEvent(TDDeviceChangeEvent event);
 	}
@@ -1,13 +1,35 @@
 package se.stromnet.jtelldus.event;
 
 import se.stromnet.jtelldus.Message;
+import se.stromnet.jtelldus.MessageDecoder;
 import se.stromnet.jtelldus.Protocol.DeviceMethod;
 
 public class TDDeviceEvent extends TelldusDeviceEvent {
 
+	public static final EventType<TDDeviceEvent, Listener> TYPE =
+			new EventType<TDDeviceEvent, Listener>("TDDeviceEvent", TDDeviceEvent.class, Listener.class,
+					new int[] {MessageDecoder.INT, MessageDecoder.INT, MessageDecoder.STRING}) {
+		@Override
+		public TDDeviceEvent create(Message msg) {
+			return new TDDeviceEvent(msg);
+		}
+
+		@Override
+		public TDDeviceEvent createLazy(EventFrame frame) {
+			return new TDDeviceEvent(frame);
+		}
+
+		@Override
+		protected void dispatch(Listener listener, TDDeviceEvent event) {
+			listener.onTDDeviceEvent(event);
+		}
+	};
+
 	private DeviceMethod method; // or state..
 	private String stateValue;
 
+	private int methodCode;
+
 	public TDDeviceEvent(Message msg) {
 		super("TDDeviceEvent", msg.takeInt());
 		/* In callback code the method is called 'deviceState',
@@ -18,22 +40,42 @@ public class TDDeviceEvent extends TelldusDeviceEvent {
 		stateValue = msg.takeString();
 	}
 
+	TDDeviceEvent(EventFrame frame) {
+		super("TDDeviceEvent", frame);
+		methodCode = frame.getInt(1);
+	}
+
+	@Override
+	protected void decodeAll() {
+		getMethod();
+		getStateValue();
+	}
+
 	public DeviceMethod getMethod() {
+		if(method == null)
+			method = DeviceMethod.fromCode(methodCode);
 		return method;
 	}
 
 	public String getStateValue() {
+		if(stateValue == null)
+			stateValue = frame().getString(2);
 		return stateValue;
 	}
 
 	@Override
 	public String toString() {
 		return "TDDeviceEvent{" +
-				"method=" + method +
-				", stateValue='" + stateValue + '\'' +
+				"method=" + getMethod() +
+				", stateValue='" + getStateValue() + '\'' +
 				'}';
 	}
 
+	@Override
+	public EventType<?, ?> getEventType() {
+		return TYPE;
+	}
+
 	public interface Listener extends TelldusEvent.Listener {
 		void onTDDeviceEvent(TDDeviceEvent event);
 	}
@@ -1,9 +1,29 @@
 package se.stromnet.jtelldus.event;
 
 import se.stromnet.jtelldus.Message;
+import se.stromnet.jtelldus.MessageDecoder;
 
 public class TDRawDeviceEvent extends TelldusEvent {
 
+	public static final EventType<TDRawDeviceEvent, Listener> TYPE =
+			new EventType<TDRawDeviceEvent, Listener>("TDRawDeviceEvent", TDRawDeviceEvent.class, Listener.class,
+					new int[] {MessageDecoder.STRING, MessageDecoder.INT}) {
+		@Override
+		public TDRawDeviceEvent create(Message msg) {
+			return new TDRawDeviceEvent(msg);
+		}
+
+		@Override
+		public TDRawDeviceEvent createLazy(EventFrame frame) {
+			return new TDRawDeviceEvent(frame);
+		}
+
+		@Override
+		protected void dispatch(Listener listener, TDRawDeviceEvent event) {
+			listener.onTDRawDeviceEvent(event);
+		}
+	};
+
 	private String data;
 	private int controllerId;
 
@@ -13,7 +33,19 @@ public class TDRawDeviceEvent extends TelldusEvent {
 		controllerId = msg.takeInt();
 	}
 
+	TDRawDeviceEvent(EventFrame frame) {
+		super("TDRawDeviceEvent", frame);
+		controllerId = frame.getInt(1);
+	}
+
+	@Override
+	protected void decodeAll() {
+		getData();
+	}
+
 	public String getData() {
+		if(data == null)
+			data = frame().getString(0);
 		return data;
 	}
 
@@ -21,14 +53,33 @@ public class TDRawDeviceEvent extends TelldusEvent {
 		return controllerId;
 	}
 
+	@Override
+	public Object getKey() {
+		return controllerId;
+	}
+
+	/**
+	 * Raw events from one controller may be about any number of devices
+	 * or sensors, so they never supersede each other.
+	 */
+	@Override
+	public boolean supersedes(TelldusEvent older) {
+		return false;
+	}
+
 	@Override
 	public String toString() {
 		return "TDRawDeviceEvent{" +
-				"data='" + data + '\'' +
+				"data='" + getData() + '\'' +
 				", controllerId=" + controllerId +
 				'}';
 	}
 
+	@Override
+	public EventType<?, ?> getEventType() {
+		return TYPE;
+	}
+
 	public interface Listener extends TelldusEvent.Listener {
 		void onTDRawDeviceEvent(TDRawDeviceEvent event);
 	}
@@ -1,11 +1,32 @@
 package se.stromnet.jtelldus.event;
 
 import se.stromnet.jtelldus.Message;
+import se.stromnet.jtelldus.MessageDecoder;
+import se.stromnet.jtelldus.Protocol.SensorValueType;
 import se.stromnet.jtelldus.Sensor;
 import se.stromnet.jtelldus.SensorValue;
 
 public class TDSensorEvent extends TelldusEvent {
 
+	public static final EventType<TDSensorEvent, Listener> TYPE =
+			new EventType<TDSensorEvent, Listener>("TDSensorEvent", TDSensorEvent.class, Listener.class,
+					new int[] {MessageDecoder.STRING, MessageDecoder.STRING, MessageDecoder.INT, MessageDecoder.INT, MessageDecoder.STRING, MessageDecoder.INT}) {
+		@Override
+		public TDSensorEvent create(Message msg) {
+			return new TDSensorEvent(msg);
+		}
+
+		@Override
+		public TDSensorEvent createLazy(EventFrame frame) {
+			return new TDSensorEvent(frame);
+		}
+
+		@Override
+		protected void dispatch(Listener listener, TDSensorEvent event) {
+			listener.onTDSensorEvent(event);
+		}
+	};
+
 	private Sensor sensor;
 	private SensorValue value;
 
@@ -15,22 +36,59 @@ public class TDSensorEvent extends TelldusEvent {
 		value = new SensorValue(msg);
 	}
 
+	TDSensorEvent(EventFrame frame) {
+		super("TDSensorEvent", frame);
+	}
+
+	@Override
+	protected void decodeAll() {
+		getSensor();
+		getSensorValue();
+	}
+
 	public Sensor getSensor() {
+		if(sensor == null) {
+			EventFrame f = frame();
+			sensor = new Sensor(f.getString(0), f.getString(1), f.getInt(2));
+		}
 		return sensor;
 	}
 
 	public SensorValue getSensorValue() {
+		if(value == null) {
+			EventFrame f = frame();
+			value = new SensorValue(SensorValueType.fromCode(f.getInt(3)), f.getString(4), f.getInt(5));
+		}
 		return value;
 	}
 
+	@Override
+	public Object getKey() {
+		return getSensor();
+	}
+
+	/**
+	 * Only a newer value of the same data type supersedes an older one.
+	 */
+	@Override
+	public boolean supersedes(TelldusEvent older) {
+		return super.supersedes(older)
+				&& getSensorValue().getDataType() == ((TDSensorEvent) older).getSensorValue().getDataType();
+	}
+
 	@Override
 	public String toString() {
 		return "TDSensorEvent{" +
-				"sensor=" + sensor +
-				", value=" + value +
+				"sensor=" + getSensor() +
+				", value=" + getSensorValue() +
 				'}';
 	}
 
+	@Override
+	public EventType<?, ?> getEventType() {
+		return TYPE;
+	}
+
 	public interface Listener extends TelldusEvent.Listener {
 		void onTDSensorEvent(TDSensorEvent event);
 	}
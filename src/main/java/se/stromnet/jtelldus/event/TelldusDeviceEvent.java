@@ -8,6 +8,11 @@ public abstract class TelldusDeviceEvent extends TelldusEvent {
 		this.deviceId = deviceId;
 	}
 
+	protected TelldusDeviceEvent(String type, EventFrame frame) {
+		super(type, frame);
+		this.deviceId = frame.getInt(0);
+	}
+
 	@Override
 	public String toString() {
 		return "TelldusDeviceEvent{" +
@@ -15,6 +20,11 @@ public abstract class TelldusDeviceEvent extends TelldusEvent {
 				'}';
 	}
 
+	@Override
+	public Object getKey() {
+		return deviceId;
+	}
+
 	public int getDeviceId() {
 		return deviceId;
 	}
@@ -4,10 +4,105 @@ public abstract class TelldusEvent {
 
 	protected String type;
 
+	/**
+	 * Set while a lazy event is a view over the receive buffer.
+	 * See EventFactory.createEvent(EventFrame, boolean).
+	 */
+	private EventFrame frame;
+	private boolean expired;
+
 	public TelldusEvent(String type) {
 		this.type = type;
 	}
 
+	/**
+	 * Constructor for lazy events, which decode their fields from frame
+	 * when they are first read.
+	 */
+	protected TelldusEvent(String type, EventFrame frame) {
+		this(type);
+		this.frame = frame;
+	}
+
+	/**
+	 * Lazy events are only valid during the listener callback, since the
+	 * receive buffer they refer to is reused afterwards. Call detach() to
+	 * decode all fields, after which the event can be kept for as long as
+	 * needed. Does nothing for regular events.
+	 *
+	 * @return this
+	 */
+	public TelldusEvent detach() {
+		if(frame != null) {
+			decodeAll();
+			frame = null;
+		}
+		return this;
+	}
+
+	/**
+	 * @return true if this is a lazy event which still refers to the receive buffer.
+	 */
+	public boolean isLazy() {
+		return frame != null;
+	}
+
+	/**
+	 * Called when the receive buffer is about to be reused. Any fields
+	 * not read by now can no longer be decoded.
+	 */
+	void expire() {
+		if(frame != null) {
+			frame = null;
+			expired = true;
+		}
+	}
+
+	/**
+	 * Decode any fields not yet decoded. Lazy events must override this.
+	 */
+	protected void decodeAll() {
+	}
+
+	/**
+	 * Returns the frame to decode lazy fields from.
+	 */
+	protected EventFrame frame() {
+		if(frame == null) {
+			throw new IllegalStateException(expired ?
+					type +" read after the listener returned; use detach() to keep events" :
+					type +" has no frame");
+		}
+		return frame;
+	}
+
+	/**
+	 * @return the type of this event.
+	 */
+	public abstract EventType<?, ?> getEventType();
+
+	/**
+	 * Identifies what the event is about: the device id, the Sensor or the
+	 * controller id. Events with equal keys must be handled in order.
+	 *
+	 * @return key, or null if the event is not about anything in particular.
+	 */
+	public Object getKey() {
+		return null;
+	}
+
+	/**
+	 * Check whether this event makes an older, not yet delivered, event
+	 * pointless, such that the older one may be dropped when coalescing.
+	 * By default this holds for events of the same type with equal keys.
+	 */
+	public boolean supersedes(TelldusEvent older) {
+		Object key = getKey();
+		return key != null
+				&& getEventType() == older.getEventType()
+				&& key.equals(older.getKey());
+	}
+
 	public interface Listener {
 		/* Dummy base for all listeners */
 	}
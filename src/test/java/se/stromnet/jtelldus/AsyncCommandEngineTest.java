@@ -0,0 +1,147 @@
+package se.stromnet.jtelldus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AsyncCommandEngineTest {
+
+	private FakeTelldusd telldusd;
+
+	@Before
+	public void setUp() throws IOException {
+		telldusd = new FakeTelldusd(10);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		telldusd.close();
+	}
+
+	@Test
+	public void testMany() throws Exception {
+		AsyncCommandEngine engine = new AsyncCommandEngine(telldusd.address(), 5);
+
+		List<CompletableFuture<ByteBuffer>> futures = new ArrayList<CompletableFuture<ByteBuffer>>();
+		for(int i = 0; i < 50; i++) {
+			Message m = Message.direct("cmd");
+			m.addArgument(i);
+			futures.add(engine.submit(m));
+			m.release();
+		}
+
+		for(int i = 0; i < 50; i++) {
+			ByteBuffer bb = futures.get(i).get(10, TimeUnit.SECONDS);
+			bb.flip();
+			assertEquals(i, Message.takeInt(bb));
+		}
+
+		assertTrue(telldusd.maxActive.get() <= 5);
+		engine.close();
+	}
+
+	@Test
+	public void testSubmitDuringClose() throws Exception {
+		final AsyncCommandEngine engine = new AsyncCommandEngine(telldusd.address(), 1);
+		final List<CompletableFuture<ByteBuffer>> futures = new ArrayList<CompletableFuture<ByteBuffer>>();
+		Thread submitter = new Thread() {
+			public void run() {
+				Message m = Message.direct("cmd");
+				m.addArgument(1);
+				for(int i = 0; i < 2000; i++) {
+					CompletableFuture<ByteBuffer> f = engine.submit(m, 0);
+					synchronized(futures) {
+						futures.add(f);
+					}
+				}
+				m.release();
+			}
+		};
+		submitter.start();
+		Thread.sleep(5);
+		engine.close();
+		submitter.join();
+
+		// Every one completes, with a reply or failed by close()
+		synchronized(futures) {
+			for(CompletableFuture<ByteBuffer> f: futures) {
+				try {
+					f.get(5, TimeUnit.SECONDS);
+				} catch(ExecutionException ex) {
+					assertTrue(ex.getCause() instanceof IOException);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testInterface() throws Exception {
+		InetSocketAddress a = telldusd.address();
+		TelldusAsyncInterface td = new TelldusAsyncInterface(a.getHostName(), a.getPort());
+
+		// The fake telldusd replies with the device id
+		assertEquals(Integer.valueOf(7), td.tdTurnOn(7).get(10, TimeUnit.SECONDS));
+		assertEquals(Boolean.TRUE, td.tdRemoveDevice(0).get(10, TimeUnit.SECONDS));
+		td.close();
+	}
+
+	@Test
+	public void testConnectFailure() throws Exception {
+		// Find a port nobody listens on
+		ServerSocket s = new ServerSocket(0);
+		int port = s.getLocalPort();
+		s.close();
+
+		AsyncCommandEngine engine = new AsyncCommandEngine(new InetSocketAddress("localhost", port), 0);
+		Message m = Message.direct("cmd");
+		m.addArgument(1);
+		CompletableFuture<ByteBuffer> f = engine.submit(m);
+		m.release();
+
+		try {
+			f.get(10, TimeUnit.SECONDS);
+			fail("Should not connect");
+		} catch(ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof IOException);
+		}
+		engine.close();
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		FakeTelldusd slow = new FakeTelldusd(5000);
+		AsyncCommandEngine engine = new AsyncCommandEngine(slow.address(), 1);
+		Message m = Message.direct("cmd");
+		m.addArgument(1);
+		// The second one times out while waiting for the first
+		CompletableFuture<ByteBuffer> f1 = engine.submit(m, 100);
+		CompletableFuture<ByteBuffer> f2 = engine.submit(m, 50);
+		m.release();
+
+		for(CompletableFuture<?> f: Arrays.asList(f1, f2)) {
+			try {
+				f.get(2, TimeUnit.SECONDS);
+				fail("Should time out");
+			} catch(ExecutionException ex) {
+				assertEquals(Protocol.ErrorCode.ERROR_COMMUNICATING_SERVICE,
+						((CommandException) ex.getCause()).getErrorCode());
+			}
+		}
+		assertEquals(0, engine.getWaiting());
+		engine.close();
+		slow.close();
+	}
+}
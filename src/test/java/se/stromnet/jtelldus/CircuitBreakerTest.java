@@ -0,0 +1,104 @@
+package se.stromnet.jtelldus;
+
+import org.junit.Test;
+import se.stromnet.jtelldus.Protocol.ErrorCode;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+	@Test
+	public void testStates() throws InterruptedException {
+		CircuitBreaker b = new CircuitBreaker(2, new ReconnectPolicy(50, 50, 0));
+		final List<CircuitBreaker.State> changes = new ArrayList<CircuitBreaker.State>();
+		b.setListener(new CircuitBreaker.Listener() {
+			public void onStateChange(CircuitBreaker.State state, long retryIn) {
+				changes.add(state);
+			}
+		});
+
+		assertTrue(b.allow());
+		b.failure();
+		assertEquals(CircuitBreaker.State.CLOSED, b.getState());
+		assertTrue(b.allow());
+		b.failure();
+		assertEquals(CircuitBreaker.State.OPEN, b.getState());
+		assertFalse(b.allow());
+
+		Thread.sleep(100);
+		// One trial only
+		assertTrue(b.allow());
+		assertFalse(b.allow());
+		b.failure();
+		assertEquals(CircuitBreaker.State.OPEN, b.getState());
+
+		Thread.sleep(100);
+		assertTrue(b.allow());
+		b.success();
+		assertEquals(CircuitBreaker.State.CLOSED, b.getState());
+
+		assertEquals(5, changes.size());
+		assertEquals(CircuitBreaker.State.OPEN, changes.get(0));
+		assertEquals(CircuitBreaker.State.HALF_OPEN, changes.get(1));
+		assertEquals(CircuitBreaker.State.OPEN, changes.get(2));
+		assertEquals(CircuitBreaker.State.HALF_OPEN, changes.get(3));
+		assertEquals(CircuitBreaker.State.CLOSED, changes.get(4));
+	}
+
+	@Test
+	public void testReleaseTrial() throws InterruptedException {
+		CircuitBreaker b = new CircuitBreaker(1, new ReconnectPolicy(50, 50, 0));
+		assertTrue(b.allow());
+		b.failure();
+		assertEquals(CircuitBreaker.State.OPEN, b.getState());
+
+		Thread.sleep(100);
+		assertTrue(b.allow());
+		assertFalse(b.allow());
+
+		// Timed out; neither closes nor opens, but frees the trial
+		b.release();
+		assertEquals(CircuitBreaker.State.HALF_OPEN, b.getState());
+		assertTrue(b.allow());
+		assertFalse(b.allow());
+		b.success();
+		assertEquals(CircuitBreaker.State.CLOSED, b.getState());
+
+		// No effect when closed
+		b.release();
+		assertEquals(CircuitBreaker.State.CLOSED, b.getState());
+	}
+
+	@Test
+	public void testFailFast() throws Exception {
+		// Find a port nobody listens on
+		ServerSocket s = new ServerSocket(0);
+		int port = s.getLocalPort();
+		s.close();
+
+		CommandEngine engine = new CommandEngine(new SocketPool(new InetSocketAddress("localhost", port), 0, 0, 60000), 1);
+		engine.setCircuitBreaker(new CircuitBreaker(1, new ReconnectPolicy(60000, 60000, 0)));
+
+		for(int i = 0; i < 10; i++) {
+			Message m = Message.direct("cmd");
+			m.addArgument(i);
+			try {
+				engine.execute(m, 1000);
+				fail("Should not connect");
+			} catch(CommandException ex) {
+				assertEquals(ErrorCode.ERROR_CONNECTING_SERVICE, ex.getErrorCode());
+			} finally {
+				m.release();
+			}
+		}
+
+		assertEquals(CircuitBreaker.State.OPEN, engine.getCircuitBreaker().getState());
+		assertEquals(9, engine.getRejectedCount());
+		engine.close();
+	}
+}
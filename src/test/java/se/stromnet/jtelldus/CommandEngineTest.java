@@ -0,0 +1,199 @@
+package se.stromnet.jtelldus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.stromnet.jtelldus.Protocol.ErrorCode;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class CommandEngineTest {
+
+	private FakeTelldusd telldusd;
+
+	@Before
+	public void setUp() throws IOException {
+		telldusd = new FakeTelldusd(20);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		telldusd.close();
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		SocketPool pool = new SocketPool(telldusd.address(), 2, 0, 60000);
+		pool.start();
+		final CommandEngine engine = new CommandEngine(pool, 3);
+
+		final List<String> errors = new ArrayList<String>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < 12; i++) {
+			final int n = i;
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					Message m = Message.direct("cmd");
+					m.addArgument(n);
+					try {
+						ByteBuffer reply = engine.execute(m);
+						reply.flip();
+						int got = Message.takeInt(reply);
+						if(got != n) {
+							synchronized(errors) {
+								errors.add(n +" got "+ got);
+							}
+						}
+					} catch(IOException ex) {
+						synchronized(errors) {
+							errors.add(n +" failed: "+ ex);
+						}
+					} finally {
+						m.release();
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+
+		for(Thread t: threads)
+			t.join();
+
+		engine.close();
+
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(12, engine.getExecutedCount());
+		assertEquals(0, engine.getInFlight());
+		assertTrue(telldusd.maxActive.get() <= 3);
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		FakeTelldusd slow = new FakeTelldusd(5000);
+		CommandEngine engine = new CommandEngine(new SocketPool(slow.address(), 0, 0, 60000), 1);
+		engine.setTimeout(100);
+
+		Message m = Message.direct("cmd");
+		m.addArgument(1);
+		long start = System.currentTimeMillis();
+		try {
+			engine.execute(m);
+			fail("Should time out");
+		} catch(CommandException ex) {
+			assertEquals(ErrorCode.ERROR_COMMUNICATING_SERVICE, ex.getErrorCode());
+		} finally {
+			m.release();
+		}
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		assertEquals(1, engine.getTimedOutCount());
+		assertEquals(0, engine.getInFlight());
+
+		// The permit is released, and a per-command timeout overrides the default
+		m = Message.direct("cmd");
+		m.addArgument(2);
+		try {
+			engine.execute(m, 50);
+			fail("Should time out");
+		} catch(CommandException ex) {
+			assertEquals(ErrorCode.ERROR_COMMUNICATING_SERVICE, ex.getErrorCode());
+		} finally {
+			m.release();
+		}
+
+		engine.close();
+		slow.close();
+	}
+
+	private static int execute(CommandEngine engine, int value) throws IOException {
+		Message m = Message.direct("cmd");
+		m.addArgument(value);
+		try {
+			ByteBuffer reply = engine.execute(m);
+			reply.flip();
+			return Message.takeInt(reply);
+		} finally {
+			m.release();
+		}
+	}
+
+	@Test
+	public void testPipelineStopsAnswering() throws Exception {
+		FakeTelldusd stuck = new FakeTelldusd(0);
+		final CountDownLatch release = new CountDownLatch(1);
+		stuck.answer("cmd", 1, new FakeTelldusd.Handler() {
+			public String handle(List<Object> args) throws IOException {
+				int value = (Integer) args.get(0);
+				// Connection stays open, but nothing more is read from it
+				if(value < 0) {
+					try {
+						release.await();
+					} catch(InterruptedException ex) {
+					}
+				}
+				return FakeTelldusd.reply(value);
+			}
+		});
+		stuck.pipelined = true;
+
+		CommandEngine engine = new CommandEngine(new SocketPool(stuck.address(), 0, 0, 60000), 0);
+		engine.setTimeout(200);
+		PipelinedConnection pipeline = PipelinedConnection.open(stuck.address(), null);
+		assertNotNull(pipeline);
+		engine.setPipeline(pipeline);
+		assertEquals(7, execute(engine, 7));
+
+		for(int i = 0; i < CommandEngine.MAX_PIPELINE_TIMEOUTS; i++) {
+			assertTrue(engine.isPipelined());
+			try {
+				execute(engine, -1);
+				fail("Should time out");
+			} catch(CommandException ex) {
+				assertEquals(ErrorCode.ERROR_COMMUNICATING_SERVICE, ex.getErrorCode());
+			}
+		}
+		assertFalse(engine.isPipelined());
+		assertFalse(pipeline.isOpen());
+		assertEquals(CommandEngine.MAX_PIPELINE_TIMEOUTS, engine.getTimedOutCount());
+
+		// One connection per command from now on
+		int connections = stuck.connections.get();
+		assertEquals(8, execute(engine, 8));
+		assertEquals(connections + 1, stuck.connections.get());
+
+		release.countDown();
+		engine.close();
+		stuck.close();
+	}
+
+	@Test
+	public void testConnectFailure() throws Exception {
+		// Find a port nobody listens on
+		ServerSocket s = new ServerSocket(0);
+		int port = s.getLocalPort();
+		s.close();
+
+		CommandEngine engine = new CommandEngine(new SocketPool(new InetSocketAddress("localhost", port), 0, 0, 60000), 1);
+		Message m = Message.direct("cmd");
+		m.addArgument(1);
+		try {
+			engine.execute(m, 1000);
+			fail("Should not connect");
+		} catch(CommandException ex) {
+			assertEquals(ErrorCode.ERROR_CONNECTING_SERVICE, ex.getErrorCode());
+		} finally {
+			m.release();
+		}
+		engine.close();
+	}
+}
@@ -0,0 +1,117 @@
+package se.stromnet.jtelldus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.stromnet.jtelldus.event.TDControllerEvent;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ControllerCacheTest {
+	private static final String CONTROLLERS = "i2si1si1s5:Stick" + "i1s" + "i2si2s3:Duo" + "i0s";
+
+	private FakeTelldusd telldusd;
+	private ControllerCache cache;
+
+	@Before
+	public void setUp() throws IOException {
+		telldusd = new FakeTelldusd(0);
+		telldusd.answer("tdController", 0, FakeTelldusd.reply(CONTROLLERS));
+		telldusd.answer("tdControllerValue", 2, FakeTelldusd.reply("A501"));
+		cache = new ControllerCache(telldusd.requester(1));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		telldusd.close();
+	}
+
+	@Test
+	public void testLoadOnce() throws IOException {
+		assertEquals(2, cache.getControllers().size());
+		assertTrue(cache.isAvailable(1));
+		assertFalse(cache.isAvailable(2));
+		assertFalse(cache.isAvailable(3));
+		assertEquals("Duo", cache.getController(2).getName());
+		assertEquals("A501", cache.getValue(1, "serial"));
+		assertEquals("A501", cache.getValue(1, "serial"));
+		assertEquals(2, telldusd.calls.size());
+	}
+
+	@Test
+	public void testEvents() throws IOException {
+		cache.getControllers();
+		cache.getValue(2, "firmware");
+
+		// Controller 2 connected
+		cache.onTDControllerEvent(new TDControllerEvent(Message.fromString("i2si4si5s1:1")));
+		assertTrue(cache.isAvailable(2));
+
+		cache.onTDControllerEvent(new TDControllerEvent(Message.fromString("i2si2si6s2:13")));
+		assertEquals("13", cache.getValue(2, "firmware"));
+
+		cache.onTDControllerEvent(new TDControllerEvent(Message.fromString("i2si2si1s7:Kitchen")));
+		assertEquals("Kitchen", cache.getController(2).getName());
+		assertEquals(2, telldusd.calls.size());
+
+		cache.onTDControllerEvent(new TDControllerEvent(Message.fromString("i1si3si0s0:")));
+		assertNull(cache.getController(1));
+		assertEquals(1, cache.getControllers().size());
+		assertEquals(1, cache.getLoadCount());
+
+		// Added; the list is loaded again
+		cache.onTDControllerEvent(new TDControllerEvent(Message.fromString("i3si1si0s0:")));
+		assertEquals(2, cache.getControllers().size());
+		assertEquals(2, cache.getLoadCount());
+	}
+
+	@Test
+	public void testWriteThrough() throws IOException {
+		cache.getControllers();
+		cache.valueSet(1, "name", "Attic");
+		assertEquals("Attic", cache.getController(1).getName());
+		assertEquals("Attic", cache.getValue(1, "name"));
+
+		cache.removed(2);
+		assertNull(cache.getController(2));
+		assertEquals(1, telldusd.calls.size());
+	}
+
+	@Test
+	public void testEventDuringLoad() throws Exception {
+		final AtomicBoolean blocked = new AtomicBoolean();
+		telldusd.answer("tdController", 0, new FakeTelldusd.Handler() {
+			public String handle(List<Object> args) throws IOException {
+				if(telldusd.calls("tdController") > 1)
+					return FakeTelldusd.reply("i2si1si1s5:Stick" + "i1s" + "i3si2s3:Duo" + "i1s");
+
+				// Event reader must not wait for the load to finish
+				Thread reader = new Thread() {
+					public void run() {
+						cache.onTDControllerEvent(new TDControllerEvent(Message.fromString("i3si1si0s0:")));
+					}
+				};
+				reader.start();
+				try {
+					reader.join(5000);
+				} catch(InterruptedException ex) {
+					throw new IOException(ex);
+				}
+				blocked.set(reader.isAlive());
+				return FakeTelldusd.reply("i1si1si1s5:Stick" + "i1s");
+			}
+		});
+
+		// The list loaded while a controller was added is not used
+		assertEquals(2, cache.getControllers().size());
+		assertFalse(blocked.get());
+		assertEquals(2, cache.getLoadCount());
+		assertEquals(2, cache.getControllers().size());
+		assertEquals(2, telldusd.calls("tdController"));
+	}
+}
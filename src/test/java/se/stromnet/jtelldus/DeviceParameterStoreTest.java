@@ -0,0 +1,114 @@
+package se.stromnet.jtelldus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.stromnet.jtelldus.event.TDConnectionEvent;
+import se.stromnet.jtelldus.event.TDConnectionEvent.Channel;
+import se.stromnet.jtelldus.event.TDConnectionEvent.State;
+import se.stromnet.jtelldus.event.TDDeviceChangeEvent;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class DeviceParameterStoreTest {
+	/** Parameters as telldusd has them, by "id/name" */
+	private ConcurrentHashMap<String, String> daemon;
+	private FakeTelldusd telldusd;
+	private DeviceParameterStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		daemon = new ConcurrentHashMap<String, String>();
+		daemon.put("1/house", "A");
+		daemon.put("1/unit", "3");
+		daemon.put("2/house", "B");
+
+		telldusd = new FakeTelldusd(0);
+		telldusd.answer("tdGetNumberOfDevices", 0, FakeTelldusd.reply(2));
+		telldusd.answer("tdGetDeviceId", 1, new FakeTelldusd.Handler() {
+			public String handle(List<Object> args) {
+				return FakeTelldusd.reply((Integer) args.get(0) + 1);
+			}
+		});
+		telldusd.answer("tdGetDeviceParameter", 3, new FakeTelldusd.Handler() {
+			public String handle(List<Object> args) {
+				String value = daemon.get(args.get(0) +"/"+ args.get(1));
+				return FakeTelldusd.reply(value == null ? (String) args.get(2) : value);
+			}
+		});
+		store = new DeviceParameterStore(telldusd.requester(3));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		telldusd.close();
+	}
+
+	private int lookups() {
+		return telldusd.calls("tdGetDeviceParameter");
+	}
+
+	@Test
+	public void testPrefetch() throws IOException {
+		assertEquals(4, store.prefetch(new String[] {"house", "unit"}, 3, null));
+		assertEquals(4, lookups());
+
+		assertEquals("A", store.get(1, "house", "x"));
+		assertEquals("3", store.get(1, "unit", "x"));
+		assertEquals("B", store.get(2, "house", "x"));
+		// Absent, but known to be
+		assertEquals("1", store.get(2, "unit", "1"));
+		assertEquals(4, lookups());
+		assertEquals(4, store.getHitCount());
+	}
+
+	@Test
+	public void testNegativeEntry() throws IOException {
+		assertEquals("0", store.get(1, "fade", "0"));
+		assertEquals("false", store.get(1, "fade", "false"));
+		assertEquals(1, lookups());
+		assertTrue(store.contains(1, "fade"));
+	}
+
+	@Test
+	public void testPrefetchKeepsWriteThrough() throws IOException {
+		store.parameterSet(1, "house", "Z");
+		store.prefetch(new String[] {"house"}, 2, null);
+		assertEquals("Z", store.get(1, "house", ""));
+	}
+
+	@Test
+	public void testConnectAfterPrefetch() throws IOException {
+		store.prefetch(new String[] {"house"}, 2, null);
+
+		// First connect of the event socket keeps the prefetched values
+		store.onTDConnectionEvent(new TDConnectionEvent(Channel.EVENTS, State.UP, 0));
+		assertTrue(store.contains(1, "house"));
+		assertTrue(store.contains(2, "house"));
+
+		// Reconnect may have missed changes
+		store.onTDConnectionEvent(new TDConnectionEvent(Channel.EVENTS, State.DOWN, 1000));
+		assertTrue(store.contains(1, "house"));
+		store.onTDConnectionEvent(new TDConnectionEvent(Channel.EVENTS, State.UP, 0));
+		assertFalse(store.contains(1, "house"));
+		assertFalse(store.contains(2, "house"));
+	}
+
+	@Test
+	public void testWriteThroughAndInvalidate() throws IOException {
+		store.parameterSet(1, "code", "1010");
+		assertEquals("1010", store.get(1, "code", ""));
+		assertEquals(0, lookups());
+
+		// Device changed
+		store.onTDDeviceChangeEvent(new TDDeviceChangeEvent(Message.fromString("i1si2si2s")));
+		assertFalse(store.contains(1, "code"));
+		assertEquals("A", store.get(1, "house", ""));
+		assertEquals(1, lookups());
+	}
+}
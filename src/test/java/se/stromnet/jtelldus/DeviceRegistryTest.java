@@ -0,0 +1,201 @@
+package se.stromnet.jtelldus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.stromnet.jtelldus.Protocol.ChangeType;
+import se.stromnet.jtelldus.Protocol.DeviceType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+	/** Devices as telldusd has them: name, protocol, model */
+	private ConcurrentSkipListMap<Integer, String[]> daemon;
+	private FakeTelldusd telldusd;
+	private DeviceRegistry registry;
+
+	/**
+	 * Answers a device attribute from the daemon map.
+	 */
+	private FakeTelldusd.Handler attribute(final int index) {
+		return new FakeTelldusd.Handler() {
+			public String handle(List<Object> args) {
+				return FakeTelldusd.reply(daemon.get((Integer) args.get(0))[index]);
+			}
+		};
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		daemon = new ConcurrentSkipListMap<Integer, String[]>();
+		daemon.put(1, new String[] {"Lamp", "arctech", "selflearning-switch"});
+		daemon.put(4, new String[] {"Heater", "sartano", "codeswitch"});
+
+		telldusd = new FakeTelldusd(0);
+		telldusd.answer("tdGetNumberOfDevices", 0, new FakeTelldusd.Handler() {
+			public String handle(List<Object> args) {
+				return FakeTelldusd.reply(daemon.size());
+			}
+		});
+		telldusd.answer("tdGetDeviceId", 1, new FakeTelldusd.Handler() {
+			public String handle(List<Object> args) {
+				return FakeTelldusd.reply(new ArrayList<Integer>(daemon.keySet()).get((Integer) args.get(0)));
+			}
+		});
+		telldusd.answer("tdGetDeviceType", 1, FakeTelldusd.reply(DeviceType.TYPE_DEVICE.code()));
+		telldusd.answer("tdMethods", 2, new FakeTelldusd.Handler() {
+			public String handle(List<Object> args) {
+				return FakeTelldusd.reply(daemon.get((Integer) args.get(0))[1].equals("arctech") ? 3 : 1);
+			}
+		});
+		telldusd.answer("tdGetName", 1, attribute(0));
+		telldusd.answer("tdGetProtocol", 1, attribute(1));
+		telldusd.answer("tdGetModel", 1, attribute(2));
+
+		registry = new DeviceRegistry(telldusd.requester(1));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		telldusd.close();
+	}
+
+	@Test
+	public void testLoadOnce() throws IOException {
+		assertEquals(2, registry.getNumberOfDevices());
+		assertEquals(1, registry.getDeviceId(0));
+		assertEquals(4, registry.getDeviceId(1));
+		assertEquals(-1, registry.getDeviceId(2));
+		assertEquals("Heater", registry.getDevice(4).getName());
+		assertEquals(DeviceType.TYPE_DEVICE, registry.getDevice(4).getType());
+		assertNull(registry.getDevice(2));
+
+		int n = telldusd.calls.size();
+		assertEquals("Lamp", registry.getDevice(1).getName());
+		assertEquals(3, registry.getMethods(1, DeviceRegistry.ALL_METHODS));
+		assertEquals(n, telldusd.calls.size());
+		assertEquals(1, registry.getLoadCount());
+	}
+
+	@Test
+	public void testChanges() throws IOException {
+		registry.getDevices();
+
+		daemon.put(1, new String[] {"Ceiling", "arctech", "selflearning-switch"});
+		telldusd.calls.clear();
+		registry.changed(1, ChangeType.CHANGE_NAME);
+		assertEquals("Ceiling", registry.getDevice(1).getName());
+		assertEquals(1, telldusd.calls.size());
+
+		daemon.put(4, new String[] {"Heater", "arctech", "codeswitch"});
+		registry.changed(4, ChangeType.CHANGE_PROTOCOL);
+		assertEquals("arctech", registry.getDevice(4).getProtocol());
+		assertEquals(3, registry.getDevice(4).getMethods());
+
+		daemon.put(2, new String[] {"New", "arctech", "bell"});
+		registry.added(2);
+		assertEquals(3, registry.getNumberOfDevices());
+		assertEquals(2, registry.getDeviceId(1));
+		assertEquals("New", registry.getDevice(2).getName());
+
+		daemon.remove(1);
+		registry.removed(1);
+		assertEquals(2, registry.getNumberOfDevices());
+		assertEquals(2, registry.getDeviceId(0));
+		assertNull(registry.getDevice(1));
+
+		assertEquals(1, registry.getLoadCount());
+		assertEquals(4, registry.getUpdateCount());
+	}
+
+	@Test
+	public void testMethodsMask() throws IOException {
+		assertEquals(3, registry.getMethods(1, 3));
+		int n = telldusd.calls.size();
+		assertEquals(3, registry.getMethods(1, 3));
+		assertEquals(n, telldusd.calls.size());
+
+		// A new protocol may support other methods
+		registry.changed(1, ChangeType.CHANGE_PROTOCOL);
+		telldusd.calls.clear();
+		registry.getMethods(1, 3);
+		assertEquals(1, telldusd.calls.size());
+	}
+
+	@Test
+	public void testInvalidate() throws IOException {
+		registry.getDevices();
+		daemon.remove(4);
+		registry.invalidate();
+		assertFalse(registry.isLoaded());
+		assertEquals(1, registry.getNumberOfDevices());
+		assertEquals(2, registry.getLoadCount());
+	}
+
+	@Test
+	public void testParallelLoad() throws IOException {
+		for(int id = 10; id < 30; id++)
+			daemon.put(id, new String[] {"Device "+ id, "arctech", "selflearning-switch"});
+		FakeTelldusd slow = new FakeTelldusd(5);
+		try {
+			slow.answer("tdGetNumberOfDevices", 0, FakeTelldusd.reply(daemon.size()));
+			slow.answer("tdGetDeviceId", 1, new FakeTelldusd.Handler() {
+				public String handle(List<Object> args) {
+					return FakeTelldusd.reply(new ArrayList<Integer>(daemon.keySet()).get((Integer) args.get(0)));
+				}
+			});
+			slow.answer("tdGetDeviceType", 1, FakeTelldusd.reply(DeviceType.TYPE_DEVICE.code()));
+			slow.answer("tdMethods", 2, FakeTelldusd.reply(3));
+			slow.answer("tdGetName", 1, attribute(0));
+			slow.answer("tdGetProtocol", 1, attribute(1));
+			slow.answer("tdGetModel", 1, attribute(2));
+
+			DeviceRegistry r = new DeviceRegistry(slow.requester(0), 4, null);
+			assertEquals(22, r.getNumberOfDevices());
+			assertEquals("Device 29", r.getDevice(29).getName());
+			assertEquals(29, r.getDeviceId(21));
+			assertTrue(slow.maxActive.get() > 1);
+			assertTrue(slow.maxActive.get() <= 4);
+		} finally {
+			slow.close();
+		}
+	}
+
+	@Test
+	public void testEventDuringLoad() throws Exception {
+		final AtomicBoolean blocked = new AtomicBoolean();
+		telldusd.answer("tdGetNumberOfDevices", 0, new FakeTelldusd.Handler() {
+			public String handle(List<Object> args) throws IOException {
+				if(telldusd.calls("tdGetNumberOfDevices") == 1) {
+					// The event thread must not wait for the load to finish
+					Thread events = new Thread() {
+						public void run() {
+							registry.added(7);
+						}
+					};
+					events.start();
+					try {
+						events.join(5000);
+					} catch(InterruptedException ex) {
+						throw new IOException(ex);
+					}
+					blocked.set(events.isAlive());
+				}
+				return FakeTelldusd.reply(daemon.size());
+			}
+		});
+
+		assertEquals(2, registry.getNumberOfDevices());
+		assertFalse(blocked.get());
+		// Loaded again, since something changed meanwhile
+		assertEquals(2, registry.getLoadCount());
+		assertTrue(registry.isLoaded());
+	}
+}
@@ -0,0 +1,58 @@
+package se.stromnet.jtelldus;
+
+import org.junit.Test;
+
+import se.stromnet.jtelldus.Protocol.DeviceMethod;
+import se.stromnet.jtelldus.event.TDConnectionEvent;
+import se.stromnet.jtelldus.event.TDDeviceChangeEvent;
+import se.stromnet.jtelldus.event.TDDeviceEvent;
+
+import static org.junit.Assert.*;
+
+public class DeviceStateCacheTest {
+
+	@Test
+	public void testEvents() {
+		DeviceStateCache c = new DeviceStateCache(0);
+		c.onTDDeviceEvent(new TDDeviceEvent(Message.fromString("i3si16s3:128")));
+
+		DeviceStateCache.State s = c.get(3);
+		assertEquals(DeviceMethod.DIM, s.getMethod());
+		assertEquals("128", s.getValue());
+		assertNull(c.get(4));
+
+		// Device removed
+		c.onTDDeviceChangeEvent(new TDDeviceChangeEvent(Message.fromString("i3si3si0s")));
+		assertNull(c.get(3));
+
+		c.update(5, DeviceMethod.TURNOFF, null);
+		assertEquals("", c.get(5).getValue());
+		c.onTDConnectionEvent(new TDConnectionEvent(TDConnectionEvent.Channel.EVENTS, TDConnectionEvent.State.UP, 0));
+		assertEquals(0, c.size());
+	}
+
+	@Test
+	public void testSuppression() throws InterruptedException {
+		DeviceStateCache c = new DeviceStateCache(100);
+		assertFalse(c.isCurrent(1, DeviceMethod.TURNOFF, null));
+
+		c.update(1, DeviceMethod.TURNOFF, "");
+		assertTrue(c.isCurrent(1, DeviceMethod.TURNOFF, null));
+		assertFalse(c.isCurrent(1, DeviceMethod.TURNON, null));
+
+		c.update(1, DeviceMethod.DIM, "128");
+		assertTrue(c.isCurrent(1, DeviceMethod.DIM, "128"));
+		assertFalse(c.isCurrent(1, DeviceMethod.DIM, "64"));
+		assertEquals(2, c.getSuppressedCount());
+
+		Thread.sleep(150);
+		assertFalse(c.isCurrent(1, DeviceMethod.DIM, "128"));
+	}
+
+	@Test
+	public void testDisabled() {
+		DeviceStateCache c = new DeviceStateCache(0);
+		c.update(1, DeviceMethod.TURNON, "");
+		assertFalse(c.isCurrent(1, DeviceMethod.TURNON, null));
+	}
+}
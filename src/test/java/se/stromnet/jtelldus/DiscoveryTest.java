@@ -0,0 +1,121 @@
+package se.stromnet.jtelldus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.stromnet.jtelldus.Inventory.Phase;
+import se.stromnet.jtelldus.Protocol.SensorValueType;
+import se.stromnet.jtelldus.event.TDDeviceChangeEvent;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DiscoveryTest {
+	private FakeTelldusd telldusd;
+	private Discovery discovery;
+	// Fire a device change on the next n tdController calls
+	private final AtomicInteger changes = new AtomicInteger();
+
+	/**
+	 * Answers like a telldusd with devices 1 and 5, one sensor and one
+	 * controller. Slow enough for commands to overlap.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		telldusd = new FakeTelldusd(10);
+		telldusd.answer("tdGetNumberOfDevices", 0, FakeTelldusd.reply(2));
+		telldusd.answer("tdGetDeviceId", 1, new FakeTelldusd.Handler() {
+			public String handle(List<Object> args) {
+				return FakeTelldusd.reply((Integer) args.get(0) == 0 ? 1 : 5);
+			}
+		});
+		telldusd.answer("tdGetDeviceType", 1, FakeTelldusd.reply(1));
+		telldusd.answer("tdMethods", 2, FakeTelldusd.reply(3));
+		telldusd.answer("tdGetName", 1, new FakeTelldusd.Handler() {
+			public String handle(List<Object> args) {
+				return FakeTelldusd.reply("Device "+ args.get(0));
+			}
+		});
+		telldusd.answer("tdGetProtocol", 1, FakeTelldusd.reply("arctech"));
+		telldusd.answer("tdGetModel", 1, FakeTelldusd.reply("selflearning"));
+		telldusd.answer("tdSensor", 0,
+				FakeTelldusd.reply("i1s10:fineoffset19:temperaturehumidityi135si3s"));
+		// protocol, model, id, data type
+		telldusd.answer("tdSensorValue", 4, new FakeTelldusd.Handler() {
+			public String handle(List<Object> args) {
+				if((Integer) args.get(2) == 135 && (Integer) args.get(3) == SensorValueType.TEMPERATURE.code())
+					return FakeTelldusd.reply("i1s4:21.5i1000s");
+				return FakeTelldusd.reply("i2s2:40i1000s");
+			}
+		});
+		telldusd.answer("tdController", 0, new FakeTelldusd.Handler() {
+			public String handle(List<Object> args) {
+				if(changes.getAndDecrement() > 0)
+					discovery.onTDDeviceChangeEvent(new TDDeviceChangeEvent(Message.fromString("i5si2si1s")));
+				return FakeTelldusd.reply("i1si1si1s5:Sticki1s");
+			}
+		});
+		discovery = new Discovery(telldusd.requester(0));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		telldusd.close();
+	}
+
+	@Test
+	public void testSnapshot() throws IOException {
+		Inventory inv = discovery.run(4, null);
+
+		assertEquals(2, inv.getDevices().size());
+		assertEquals(5, inv.getDevices().get(1).getId());
+		assertEquals("Device 5", inv.getDevice(5).getName());
+		assertEquals(3, inv.getDevice(1).getMethods());
+
+		assertEquals(1, inv.getSensors().size());
+		Sensor s = inv.getSensors().get(0);
+		assertEquals(135, s.getId());
+		assertEquals(2, inv.getSensorValues().size());
+		assertEquals(21.5, inv.getSensorValue(s, SensorValueType.TEMPERATURE).getValue(), 0);
+		assertEquals(40, inv.getSensorValue(s, SensorValueType.HUMIDITY).getValue(), 0);
+
+		assertEquals(1, inv.getControllers().size());
+		assertEquals("Stick", inv.getControllers().get(0).getName());
+
+		assertTrue(inv.isConsistent());
+		assertEquals(1, inv.getAttempts());
+		assertTrue(inv.getPhaseTime(Phase.DEVICES) <= inv.getTotalTime());
+		// count, 2 ids, 2 * 5 attributes, sensors, 2 values, controllers
+		assertEquals(17, telldusd.calls.size());
+		// Over several connections at once
+		assertTrue(telldusd.maxActive.get() > 1);
+	}
+
+	@Test
+	public void testStartOver() throws IOException {
+		changes.set(1);
+		Inventory inv = discovery.run(2, null);
+		assertTrue(inv.isConsistent());
+		assertEquals(2, inv.getAttempts());
+
+		changes.set(Discovery.MAX_ATTEMPTS);
+		discovery = new Discovery(telldusd.requester(0));
+		inv = discovery.run(2, null);
+		assertFalse(inv.isConsistent());
+		assertEquals(Discovery.MAX_ATTEMPTS, inv.getAttempts());
+	}
+
+	@Test(expected = IOException.class)
+	public void testFailure() throws IOException {
+		telldusd.answer("tdSensor", 0, new FakeTelldusd.Handler() {
+			public String handle(List<Object> args) throws IOException {
+				throw new IOException("telldusd gone");
+			}
+		});
+		discovery.run(2, null);
+	}
+}
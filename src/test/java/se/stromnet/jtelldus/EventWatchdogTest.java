@@ -0,0 +1,136 @@
+package se.stromnet.jtelldus;
+
+import org.junit.Test;
+
+import se.stromnet.jtelldus.Protocol.DeviceMethod;
+import se.stromnet.jtelldus.event.TDDeviceEvent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EventWatchdogTest {
+
+	@Test
+	public void testStalled() throws Exception {
+		FakeTelldusd telldusd = new FakeTelldusd(0);
+		CommandEngine engine = new CommandEngine(new SocketPool(telldusd.address(), 0, 0, 60000), 1);
+		final CountDownLatch reconnected = new CountDownLatch(1);
+		EventWatchdog w = new EventWatchdog(100, engine, new Runnable() {
+			public void run() {
+				reconnected.countDown();
+			}
+		}, null);
+
+		assertEquals(EventWatchdog.Health.HEALTHY, w.getHealth());
+		w.start();
+		assertTrue(reconnected.await(5, TimeUnit.SECONDS));
+		assertEquals(EventWatchdog.Health.STALLED, w.getHealth());
+		assertEquals(1, w.getStallCount());
+
+		w.activity();
+		assertEquals(EventWatchdog.Health.HEALTHY, w.getHealth());
+		assertTrue(w.getQuietTime() < 100);
+
+		w.close();
+		engine.close();
+		telldusd.close();
+	}
+
+	@Test
+	public void testBlockedListener() throws Exception {
+		FakeTelldusd telldusd = new FakeTelldusd(0);
+		final ServerSocket events = new ServerSocket(0);
+		final AtomicInteger accepted = new AtomicInteger();
+		Thread server = new Thread() {
+			public void run() {
+				try {
+					while(true) {
+						Socket s = events.accept();
+						accepted.incrementAndGet();
+						Message m = new Message("TDDeviceEvent");
+						m.addArgument(1);
+						m.addArgument(DeviceMethod.TURNON.code());
+						m.addArgument("");
+						OutputStream out = s.getOutputStream();
+						out.write(m.serialize().array());
+						out.flush();
+					}
+				} catch(IOException ex) {
+					// Closed
+				}
+			}
+		};
+		server.setDaemon(true);
+		server.start();
+
+		final CountDownLatch received = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		TelldusClient client = new TelldusClient();
+		client.registerEventListener(new TDDeviceEvent.Listener() {
+			public void onTDDeviceEvent(TDDeviceEvent event) {
+				received.countDown();
+				try {
+					release.await();
+				} catch(InterruptedException ex) {
+				}
+			}
+		});
+		client.start(new TelldusConfig("localhost", telldusd.address().getPort(), events.getLocalPort())
+				.setEventWatchdogPeriod(100));
+
+		assertTrue(received.await(5, TimeUnit.SECONDS));
+		EventWatchdog w = client.getEventWatchdog();
+		assertTrue(w.isDispatching());
+
+		// The reader is stuck in the listener, not on a dead socket
+		Thread.sleep(1000);
+		assertEquals(0, w.getStallCount());
+		assertEquals(0, telldusd.calls("tdGetNumberOfDevices"));
+		assertEquals(1, accepted.get());
+		assertEquals(EventWatchdog.Health.HEALTHY, w.getHealth());
+
+		release.countDown();
+		long until = System.currentTimeMillis() + 5000;
+		while(w.isDispatching() && System.currentTimeMillis() < until)
+			Thread.sleep(10);
+		assertFalse(w.isDispatching());
+
+		client.close();
+		events.close();
+		telldusd.close();
+	}
+
+	@Test
+	public void testUnreachable() throws Exception {
+		// Find a port nobody listens on
+		ServerSocket s = new ServerSocket(0);
+		int port = s.getLocalPort();
+		s.close();
+
+		CommandEngine engine = new CommandEngine(new SocketPool(new InetSocketAddress("localhost", port), 0, 0, 60000), 1);
+		final AtomicInteger reconnects = new AtomicInteger();
+		EventWatchdog w = new EventWatchdog(50, engine, new Runnable() {
+			public void run() {
+				reconnects.incrementAndGet();
+			}
+		}, null);
+		w.start();
+
+		long until = System.currentTimeMillis() + 5000;
+		while(w.getHealth() != EventWatchdog.Health.UNREACHABLE && System.currentTimeMillis() < until)
+			Thread.sleep(10);
+
+		assertEquals(EventWatchdog.Health.UNREACHABLE, w.getHealth());
+		assertEquals(0, reconnects.get());
+		w.close();
+		engine.close();
+	}
+}
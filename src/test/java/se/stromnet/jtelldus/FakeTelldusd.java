@@ -0,0 +1,266 @@
+package se.stromnet.jtelldus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fake telldusd client socket for tests. Answers each message consisting
+ * of a function name and an int with the int, after a short delay.
+ * tdGetNumberOfDevices, without argument, is answered with 0. Other
+ * functions are answered as told by answer().
+ */
+class FakeTelldusd {
+	/**
+	 * Answers calls of one function.
+	 */
+	interface Handler {
+		/**
+		 * @param args The arguments, as Integer or String.
+		 * @return the reply as on the wire, see reply().
+		 * @throws IOException to close the connection without replying.
+		 */
+		String handle(List<Object> args) throws IOException;
+	}
+
+	private final ServerSocketChannel server;
+	private final long delay;
+	final AtomicInteger active = new AtomicInteger();
+	final AtomicInteger maxActive = new AtomicInteger();
+	final AtomicInteger handled = new AtomicInteger();
+	final AtomicInteger connections = new AtomicInteger();
+
+	/** Every function called, in order of arrival */
+	final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+
+	private final ConcurrentHashMap<String, Handler> handlers = new ConcurrentHashMap<String, Handler>();
+	private final ConcurrentHashMap<String, Integer> argCounts = new ConcurrentHashMap<String, Integer>();
+	private final List<CommandEngine> engines = new CopyOnWriteArrayList<CommandEngine>();
+
+	/** Keep serving messages on a connection, like forked telldusd versions */
+	volatile boolean pipelined;
+
+	FakeTelldusd(long delay) throws IOException {
+		this(delay, ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0), 1000));
+	}
+
+	/**
+	 * Listen on a UNIX socket at path, like the real telldusd.
+	 */
+	FakeTelldusd(long delay, Path path) throws IOException {
+		this(delay, ServerSocketChannel.open(StandardProtocolFamily.UNIX).bind(UnixDomainSocketAddress.of(path), 1000));
+	}
+
+	private FakeTelldusd(long delay, ServerSocketChannel server) {
+		this.delay = delay;
+		this.server = server;
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while(true) {
+						final SocketChannel s = server.accept();
+						Thread h = new Thread() {
+							@Override
+							public void run() {
+								handle(s);
+							}
+						};
+						h.setDaemon(true);
+						h.start();
+					}
+				} catch(IOException ex) {
+					// Closed
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	InetSocketAddress address() throws IOException {
+		return (InetSocketAddress) server.getLocalAddress();
+	}
+
+	SocketAddress localAddress() throws IOException {
+		return server.getLocalAddress();
+	}
+
+	void close() throws IOException {
+		for(CommandEngine e: engines)
+			e.close();
+		server.close();
+	}
+
+	/**
+	 * Answer calls of function, taking argCount arguments, with handler.
+	 */
+	void answer(String function, int argCount, Handler handler) {
+		argCounts.put(function, argCount);
+		handlers.put(function, handler);
+	}
+
+	/**
+	 * Answer every call of function with reply.
+	 */
+	void answer(String function, int argCount, final String reply) {
+		answer(function, argCount, new Handler() {
+			public String handle(List<Object> args) {
+				return reply;
+			}
+		});
+	}
+
+	static String reply(int value) {
+		return "i"+ value +"s";
+	}
+
+	static String reply(String value) {
+		try {
+			return value.getBytes("UTF-8").length +":"+ value;
+		} catch(IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * @return number of calls of function so far.
+	 */
+	int calls(String function) {
+		int n = 0;
+		synchronized(calls) {
+			for(String c: calls) {
+				if(c.equals(function))
+					n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return a Requester which, like TelldusClient, sends each command on
+	 *	a new connection to this telldusd, up to maxConcurrent at once.
+	 */
+	Requester requester(int maxConcurrent) throws IOException {
+		final CommandEngine engine = new CommandEngine(new SocketPool(address(), 0, 0, 60000), maxConcurrent);
+		engine.setTimeout(10000);
+		engines.add(engine);
+		return new Requester() {
+			public int requestInt(Message m) throws IOException {
+				try {
+					ByteBuffer bb = engine.execute(m);
+					bb.flip();
+					return Message.takeInt(bb);
+				} finally {
+					m.release();
+				}
+			}
+
+			public String requestString(Message m) throws IOException {
+				try {
+					ByteBuffer bb = engine.execute(m);
+					bb.flip();
+					return Message.takeString(bb);
+				} finally {
+					m.release();
+				}
+			}
+		};
+	}
+
+	private void handle(SocketChannel s) {
+		connections.incrementAndGet();
+		try {
+			InputStream in = Channels.newInputStream(s);
+			do {
+				List<Object> message = readMessage(in);
+				if(message == null)
+					return;
+
+				String function = (String) message.remove(0);
+				calls.add(function);
+				Handler handler = handlers.get(function);
+
+				int now = active.incrementAndGet();
+				synchronized(maxActive) {
+					if(now > maxActive.get())
+						maxActive.set(now);
+				}
+				Thread.sleep(delay);
+				String reply;
+				try {
+					if(handler != null)
+						reply = handler.handle(message);
+					else
+						reply = reply(message.isEmpty() ? 0 : (Integer) message.get(0));
+				} finally {
+					active.decrementAndGet();
+				}
+
+				ByteBuffer out = ByteBuffer.wrap(reply.getBytes("UTF-8"));
+				while(out.hasRemaining())
+					s.write(out);
+				handled.incrementAndGet();
+			} while(pipelined);
+		} catch(Exception ex) {
+		} finally {
+			try {
+				s.close();
+			} catch(IOException ex) {}
+		}
+	}
+
+	/**
+	 * @return the function name followed by its arguments, or null on EOF.
+	 */
+	private List<Object> readMessage(InputStream in) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(1024);
+		while(true) {
+			int b = in.read();
+			if(b < 0)
+				return null;
+			bb.put((byte) b);
+
+			// Parse everything so far from the start
+			ByteBuffer view = bb.duplicate();
+			view.flip();
+			MessageDecoder decoder = new MessageDecoder();
+			List<Object> message = new ArrayList<Object>();
+			int kind;
+			while((kind = decoder.next(view)) == MessageDecoder.INT || kind == MessageDecoder.STRING) {
+				if(kind == MessageDecoder.INT)
+					message.add(decoder.intValue());
+				else
+					message.add(decoder.stringValue());
+
+				if(message.size() == 1 + argCount((String) message.get(0)))
+					return message;
+			}
+		}
+	}
+
+	/**
+	 * @return arguments taken by function: as told by answer(), or else
+	 *	none for tdGetNumberOfDevices and one int for the rest.
+	 */
+	private int argCount(String function) {
+		Integer n = argCounts.get(function);
+		if(n != null)
+			return n;
+		return function.equals("tdGetNumberOfDevices") ? 0 : 1;
+	}
+}
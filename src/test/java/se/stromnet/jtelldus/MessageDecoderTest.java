@@ -0,0 +1,134 @@
+package se.stromnet.jtelldus;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class MessageDecoderTest {
+	MessageDecoder d;
+	ByteBuffer b;
+
+	@Before
+	public void setUp() {
+		d = new MessageDecoder();
+		b = ByteBuffer.allocate(1000);
+	}
+
+	private void append(String s) {
+		// Append to the data in b, keeping the read position
+		int pos = b.position();
+		b.position(b.limit());
+		b.limit(b.capacity());
+		b.put(s.getBytes(Charset.forName("UTF-8")));
+		b.flip();
+		b.position(pos);
+	}
+
+	@Test
+	public void testTokens() {
+		b.limit(0);
+		append("13:TDDeviceEventi1si-3s1:0");
+
+		assertEquals(MessageDecoder.STRING, d.next(b));
+		assertEquals("TDDeviceEvent", d.stringValue());
+		assertTrue(d.stringEquals("TDDeviceEvent".getBytes()));
+		assertFalse(d.stringEquals("TDSensorEvent".getBytes()));
+
+		assertEquals(MessageDecoder.INT, d.next(b));
+		assertEquals(1, d.intValue());
+
+		assertEquals(MessageDecoder.INT, d.next(b));
+		assertEquals(-3, d.intValue());
+
+		assertEquals(MessageDecoder.STRING, d.next(b));
+		assertEquals("0", d.charView().toString());
+
+		assertEquals(MessageDecoder.NEED_MORE, d.next(b));
+		assertFalse(d.isPartial());
+	}
+
+	@Test
+	public void testPartial() {
+		b.limit(0);
+		append("1");
+		assertEquals(MessageDecoder.NEED_MORE, d.next(b));
+		assertTrue(d.isPartial());
+
+		append("3:TDDevice");
+		assertEquals(MessageDecoder.NEED_MORE, d.next(b));
+
+		append("Eventi12");
+		assertEquals(MessageDecoder.STRING, d.next(b));
+		assertEquals("TDDeviceEvent", d.stringValue());
+
+		assertEquals(MessageDecoder.NEED_MORE, d.next(b));
+		assertTrue(d.isPartial());
+
+		append("34s");
+		assertEquals(MessageDecoder.INT, d.next(b));
+		assertEquals(1234, d.intValue());
+		assertFalse(b.hasRemaining());
+	}
+
+	@Test
+	public void testViews() {
+		b.limit(0);
+		append("3:abc6:\u00e5\u00e4\u00f6");
+
+		assertEquals(MessageDecoder.STRING, d.next(b));
+		ByteBuffer view = d.byteView();
+		assertEquals(3, view.remaining());
+		assertEquals('a', view.get());
+
+		assertEquals(MessageDecoder.STRING, d.next(b));
+		// Same instance is reused
+		assertSame(view, d.byteView());
+		assertEquals(6, d.stringLength());
+		assertEquals("\u00e5\u00e4\u00f6", d.charView().toString());
+	}
+
+	@Test
+	public void testDirectBuffer() {
+		b = ByteBuffer.allocateDirect(100);
+		b.put("5:abcde".getBytes());
+		b.flip();
+
+		assertEquals(MessageDecoder.STRING, d.next(b));
+		assertEquals("abcde", d.stringValue());
+	}
+
+	@Test
+	public void testErrors() {
+		b.limit(0);
+		append("abcd");
+		assertEquals(MessageDecoder.ERROR, d.next(b));
+
+		b.clear();
+		b.limit(0);
+		append("i12xs");
+		assertEquals(MessageDecoder.ERROR, d.next(b));
+
+		b.clear();
+		b.limit(0);
+		append("is");
+		assertEquals(MessageDecoder.ERROR, d.next(b));
+
+		b.clear();
+		b.limit(0);
+		append("i99999999999s");
+		assertEquals(MessageDecoder.ERROR, d.next(b));
+
+		// Decoder is usable after errors
+		b.clear();
+		b.limit(0);
+		append("i2147483647si-2147483648s");
+		assertEquals(MessageDecoder.INT, d.next(b));
+		assertEquals(Integer.MAX_VALUE, d.intValue());
+		assertEquals(MessageDecoder.INT, d.next(b));
+		assertEquals(Integer.MIN_VALUE, d.intValue());
+	}
+}
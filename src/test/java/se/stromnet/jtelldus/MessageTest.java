@@ -178,4 +178,45 @@ public class MessageTest {
 		assertEquals("0", m.takeString());
 	}
 
+	@Test
+	public void testDirect() {
+		Message ref = new Message("tdSetName");
+		ref.addArgument(12);
+		ref.addArgument(-3);
+		ref.addArgument(Integer.MIN_VALUE);
+		ref.addArgument("Lamp \u00e5\u00e4\u00f6");
+		ref.addArgument("");
+
+		m = Message.direct("tdSetName");
+		m.addArgument(12);
+		m.addArgument(-3);
+		m.addArgument(Integer.MIN_VALUE);
+		m.addArgument("Lamp \u00e5\u00e4\u00f6");
+		m.addArgument("");
+
+		assertEquals(ref.serialize(), m.serialize());
+		assertTrue(m.serialize().isDirect());
+
+		// Should be possible to serialize several times
+		assertEquals(ref.serialize(), m.serialize());
+
+		m.release();
+	}
+
+	@Test
+	public void testDirectLarge() {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < 500; i++)
+			sb.append("\u00e5bc");
+
+		Message ref = new Message("tdSendRawCommand");
+		ref.addArgument(sb.toString());
+
+		m = Message.direct("tdSendRawCommand");
+		m.addArgument(sb.toString());
+
+		assertEquals(ref.serialize(), m.serialize());
+		m.release();
+	}
+
 }
@@ -0,0 +1,105 @@
+package se.stromnet.jtelldus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PipelinedConnectionTest {
+
+	private FakeTelldusd telldusd;
+
+	@Before
+	public void setUp() throws IOException {
+		telldusd = new FakeTelldusd(5);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		telldusd.close();
+	}
+
+	private static int execute(PipelinedConnection c, int value) throws IOException {
+		Message m = Message.direct("cmd");
+		m.addArgument(value);
+		try {
+			ByteBuffer reply = c.execute(m);
+			reply.flip();
+			return Message.takeInt(reply);
+		} finally {
+			m.release();
+		}
+	}
+
+	@Test
+	public void testUnsupported() throws IOException {
+		assertNull(PipelinedConnection.open(telldusd.address(), null));
+	}
+
+	@Test
+	public void testPipelined() throws Exception {
+		telldusd.pipelined = true;
+		final PipelinedConnection c = PipelinedConnection.open(telldusd.address(), null);
+		assertNotNull(c);
+
+		final List<String> errors = new ArrayList<String>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < 20; i++) {
+			final int n = i;
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						int got = execute(c, n);
+						if(got != n) {
+							synchronized(errors) {
+								errors.add(n +" got "+ got);
+							}
+						}
+					} catch(IOException ex) {
+						synchronized(errors) {
+							errors.add(n +" failed: "+ ex);
+						}
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+
+		for(Thread t: threads)
+			t.join();
+
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(1, telldusd.connections.get());
+		c.close();
+	}
+
+	@Test
+	public void testFallback() throws Exception {
+		telldusd.pipelined = true;
+		PipelinedConnection c = PipelinedConnection.open(telldusd.address(), null);
+		assertNotNull(c);
+
+		CommandEngine engine = new CommandEngine(new SocketPool(telldusd.address(), 0, 0, 60000), 2);
+		engine.setPipeline(c);
+		assertTrue(engine.isPipelined());
+
+		// Connection lost; the engine continues with one connection per command
+		c.close();
+		Message m = Message.direct("cmd");
+		m.addArgument(7);
+		ByteBuffer reply = engine.execute(m);
+		m.release();
+		reply.flip();
+		assertEquals(7, Message.takeInt(reply));
+		assertFalse(engine.isPipelined());
+		engine.close();
+	}
+}
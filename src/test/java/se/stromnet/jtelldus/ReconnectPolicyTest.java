@@ -0,0 +1,33 @@
+package se.stromnet.jtelldus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReconnectPolicyTest {
+
+	@Test
+	public void testBackoff() {
+		ReconnectPolicy p = new ReconnectPolicy(100, 1000, 0);
+		assertEquals(0, p.delay(1));
+		assertEquals(100, p.delay(2));
+		assertEquals(200, p.delay(3));
+		assertEquals(400, p.delay(4));
+		assertEquals(800, p.delay(5));
+		assertEquals(1000, p.delay(6));
+		assertEquals(1000, p.delay(1000));
+	}
+
+	@Test
+	public void testJitter() {
+		ReconnectPolicy p = new ReconnectPolicy(100, 1000, 0.5);
+		boolean varied = false;
+		long first = p.delay(4);
+		for(int i = 0; i < 100; i++) {
+			long d = p.delay(4);
+			assertTrue(d >= 200 && d <= 400);
+			varied |= d != first;
+		}
+		assertTrue(varied);
+	}
+}
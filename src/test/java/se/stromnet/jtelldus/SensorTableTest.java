@@ -0,0 +1,83 @@
+package se.stromnet.jtelldus;
+
+import org.junit.Test;
+
+import se.stromnet.jtelldus.Protocol.SensorValueType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SensorTableTest {
+
+	@Test
+	public void testUpdate() {
+		SensorTable t = new SensorTable();
+		Sensor s = new Sensor("fineoffset", "temperaturehumidity", 135);
+
+		assertNull(t.get(s, SensorValueType.TEMPERATURE));
+		assertNotNull(t.update(s, new SensorValue(SensorValueType.TEMPERATURE, "21.5", 1000)));
+		assertNotNull(t.update(s, new SensorValue(SensorValueType.HUMIDITY, "40", 1000)));
+
+		SensorReading r = t.get("fineoffset", "temperaturehumidity", 135, SensorValueType.TEMPERATURE);
+		assertEquals(21.5, r.getValue(), 0);
+		assertEquals(1000, r.getTimestamp());
+		assertEquals(1, r.getSequence());
+		assertEquals(40, t.get(s, SensorValueType.HUMIDITY).getValue(), 0);
+		assertNull(t.get("fineoffset", "temperaturehumidity", 136, SensorValueType.TEMPERATURE.code()));
+		assertNull(t.get("oregon", "temperaturehumidity", 135, SensorValueType.TEMPERATURE.code()));
+
+		// Repeated and older readings are ignored
+		assertNull(t.update(s, new SensorValue(SensorValueType.TEMPERATURE, "21.5", 1000)));
+		assertNull(t.update(s, new SensorValue(SensorValueType.TEMPERATURE, "20.0", 999)));
+		assertEquals(2, t.getSequence());
+
+		t.update(s, new SensorValue(SensorValueType.TEMPERATURE, "22.0", 1010));
+		r = t.get(s, SensorValueType.TEMPERATURE);
+		assertEquals(22.0, r.getValue(), 0);
+		assertEquals(3, r.getSequence());
+		assertEquals(2, t.size());
+
+		SensorValue v = new SensorValue();
+		r.copyTo(v);
+		assertEquals("22.0", v.getValue());
+		assertEquals(SensorValueType.TEMPERATURE, v.getDataType());
+	}
+
+	@Test
+	public void testListener() {
+		SensorTable t = new SensorTable();
+		final List<SensorReading> seen = new ArrayList<SensorReading>();
+		t.addListener(new SensorTable.Listener() {
+			public void onSensorChange(SensorReading previous, SensorReading current) {
+				seen.add(previous);
+				seen.add(current);
+			}
+		});
+
+		Sensor s = new Sensor("mandolyn", "temperature", 11);
+		t.update(s, new SensorValue(SensorValueType.TEMPERATURE, "5", 1));
+		t.update(s, new SensorValue(SensorValueType.TEMPERATURE, "5", 1));
+		t.update(s, new SensorValue(SensorValueType.TEMPERATURE, "6", 2));
+
+		assertEquals(4, seen.size());
+		assertNull(seen.get(0));
+		assertSame(seen.get(1), seen.get(2));
+		assertEquals(6, seen.get(3).getValue(), 0);
+	}
+
+	@Test
+	public void testWindDirection() {
+		SensorTable t = new SensorTable();
+		Sensor s = new Sensor("oregon", "1984", 2);
+		t.update(s, new SensorValue(SensorValueType.WINDDIRECTION, "4", 1));
+
+		SensorReading r = t.get(s, SensorValueType.WINDDIRECTION);
+		assertEquals(4, r.getValue(), 0);
+
+		SensorValue v = new SensorValue();
+		r.copyTo(v);
+		assertEquals("E", v.getValue());
+	}
+}
@@ -0,0 +1,143 @@
+package se.stromnet.jtelldus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SocketPoolTest {
+
+	private ServerSocket server;
+	private final List<Socket> accepted = new ArrayList<Socket>();
+
+	@Before
+	public void setUp() throws IOException {
+		server = new ServerSocket(0);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while(true) {
+						Socket s = server.accept();
+						synchronized(accepted) {
+							accepted.add(s);
+						}
+					}
+				} catch(IOException ex) {
+					// Closed
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+		synchronized(accepted) {
+			for(Socket s: accepted)
+				s.close();
+		}
+	}
+
+	private InetSocketAddress address() {
+		return new InetSocketAddress("localhost", server.getLocalPort());
+	}
+
+	private static void awaitIdle(SocketPool pool, int n) throws InterruptedException {
+		long until = System.currentTimeMillis() + 5000;
+		while(pool.getIdleCount() < n && System.currentTimeMillis() < until)
+			Thread.sleep(10);
+		assertEquals(n, pool.getIdleCount());
+	}
+
+	@Test
+	public void testNoPool() throws IOException {
+		SocketPool pool = new SocketPool(address(), 0, 0, 60000);
+		pool.start();
+
+		TelldusSocket s = pool.acquire();
+		assertTrue(s.isConnected());
+		s.disconnect();
+
+		assertEquals(0, pool.getHits());
+		assertEquals(1, pool.getMisses());
+		assertEquals(0, pool.getIdleCount());
+		pool.close();
+	}
+
+	@Test
+	public void testRefill() throws Exception {
+		SocketPool pool = new SocketPool(address(), 2, 0, 60000);
+		pool.start();
+		awaitIdle(pool, 2);
+
+		TelldusSocket a = pool.acquire();
+		TelldusSocket b = pool.acquire();
+		assertTrue(a.isConnected());
+		assertTrue(b != a);
+		assertEquals(2, pool.getHits());
+		a.disconnect();
+		b.disconnect();
+
+		// Replaced in the background
+		awaitIdle(pool, 2);
+
+		pool.close();
+		assertEquals(0, pool.getIdleCount());
+	}
+
+	@Test
+	public void testEvict() throws Exception {
+		SocketPool pool = new SocketPool(address(), 1, 0, 50);
+		pool.start();
+		awaitIdle(pool, 1);
+		Thread.sleep(100);
+
+		// The pooled one is too old
+		TelldusSocket s = pool.acquire();
+		assertTrue(s.isConnected());
+		s.disconnect();
+		assertEquals(1, pool.getEvictions());
+		assertEquals(1, pool.getMisses());
+		pool.close();
+	}
+
+	@Test
+	public void testEvictClosedByPeer() throws Exception {
+		SocketPool pool = new SocketPool(address(), 1, 0, 60000);
+		pool.start();
+		awaitIdle(pool, 1);
+
+		// As if telldusd restarted; the server may not have accepted it yet
+		long until = System.currentTimeMillis() + 5000;
+		while(System.currentTimeMillis() < until) {
+			synchronized(accepted) {
+				if(accepted.size() == 1)
+					break;
+			}
+			Thread.sleep(10);
+		}
+		synchronized(accepted) {
+			for(Socket s: accepted)
+				s.close();
+		}
+		Thread.sleep(50);
+
+		TelldusSocket s = pool.acquire();
+		assertTrue(s.isConnected());
+		assertFalse(s.isPeerClosed());
+		s.disconnect();
+		assertEquals(1, pool.getEvictions());
+		pool.close();
+	}
+}
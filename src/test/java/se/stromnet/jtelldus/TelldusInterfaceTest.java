@@ -0,0 +1,95 @@
+package se.stromnet.jtelldus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.stromnet.jtelldus.Protocol.DeviceMethod;
+import se.stromnet.jtelldus.Protocol.ErrorCode;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import static org.junit.Assert.*;
+
+public class TelldusInterfaceTest {
+	private FakeTelldusd telldusd;
+	private TelldusConfig config;
+	private TelldusInterface td;
+
+	@Before
+	public void setUp() throws IOException {
+		telldusd = new FakeTelldusd(0);
+		telldusd.answer("tdTurnOn", 1, FakeTelldusd.reply(ErrorCode.SUCCESS.code()));
+		telldusd.answer("tdTurnOff", 1, FakeTelldusd.reply(ErrorCode.ERROR_NOT_FOUND.code()));
+		telldusd.answer("tdDim", 2, FakeTelldusd.reply(ErrorCode.SUCCESS.code()));
+		telldusd.answer("tdLastSentValue", 1, FakeTelldusd.reply("77"));
+
+		// Nobody listens for events; the event reader just keeps retrying
+		ServerSocket s = new ServerSocket(0);
+		int eventPort = s.getLocalPort();
+		s.close();
+		config = new TelldusConfig("localhost", telldusd.address().getPort(), eventPort)
+				.setDeviceStateCache(true);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if(td != null)
+			td.close();
+		telldusd.close();
+	}
+
+	@Test
+	public void testSuppression() throws IOException {
+		td = new TelldusInterface(config.setCommandSuppressionTtl(60000));
+
+		assertEquals(ErrorCode.SUCCESS.code(), td.tdTurnOn(1));
+		assertEquals(ErrorCode.SUCCESS.code(), td.tdTurnOn(1));
+		assertEquals(1, telldusd.calls("tdTurnOn"));
+		assertEquals(1, td.getDeviceStateCache().getSuppressedCount());
+
+		assertEquals(ErrorCode.SUCCESS.code(), td.tdDim(1, 128));
+		assertEquals(ErrorCode.SUCCESS.code(), td.tdDim(1, 128));
+		assertEquals(1, telldusd.calls("tdDim"));
+		// Another level is sent
+		assertEquals(ErrorCode.SUCCESS.code(), td.tdDim(1, 64));
+		assertEquals(2, telldusd.calls("tdDim"));
+		assertEquals(DeviceMethod.DIM, td.getDeviceStateCache().get(1).getMethod());
+	}
+
+	@Test
+	public void testFailedNotRecorded() throws IOException {
+		td = new TelldusInterface(config.setCommandSuppressionTtl(60000));
+
+		assertEquals(ErrorCode.ERROR_NOT_FOUND.code(), td.tdTurnOff(2));
+		assertNull(td.getDeviceStateCache().get(2));
+		assertEquals(ErrorCode.ERROR_NOT_FOUND.code(), td.tdTurnOff(2));
+		assertEquals(2, telldusd.calls("tdTurnOff"));
+		assertEquals(0, td.getDeviceStateCache().getSuppressedCount());
+	}
+
+	@Test
+	public void testNoSuppressionWithoutTtl() throws IOException {
+		td = new TelldusInterface(config);
+
+		td.tdTurnOn(1);
+		td.tdTurnOn(1);
+		assertEquals(2, telldusd.calls("tdTurnOn"));
+		assertEquals(DeviceMethod.TURNON, td.getDeviceStateCache().get(1).getMethod());
+	}
+
+	@Test
+	public void testLastSentValue() throws IOException {
+		td = new TelldusInterface(config);
+
+		assertEquals("77", td.tdLastSentValue(3));
+		assertEquals(1, telldusd.calls("tdLastSentValue"));
+		assertEquals(0, telldusd.calls("tdLearn"));
+
+		// Known from the command sent
+		td.tdDim(1, 128);
+		assertEquals("128", td.tdLastSentValue(1));
+		assertEquals(1, telldusd.calls("tdLastSentValue"));
+	}
+}
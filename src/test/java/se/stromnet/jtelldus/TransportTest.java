@@ -0,0 +1,97 @@
+package se.stromnet.jtelldus;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class TransportTest {
+
+	@Test
+	public void testForUri() {
+		Transport t = Transport.forUri("unix:///tmp/TelldusClient");
+		assertEquals(UnixDomainSocketAddress.of("/tmp/TelldusClient"), t.getAddress());
+		assertEquals("unix:///tmp/TelldusClient", t.toString());
+
+		t = Transport.forUri("tcp://localhost:9998");
+		InetSocketAddress a = (InetSocketAddress) t.getAddress();
+		assertEquals("localhost", a.getHostString());
+		assertEquals(9998, a.getPort());
+		assertEquals("tcp://localhost:9998", t.toString());
+	}
+
+	@Test
+	public void testOtherAddress() {
+		SocketAddress sa = new SocketAddress() {
+			@Override
+			public String toString() {
+				return "other";
+			}
+		};
+		assertEquals("other", Transport.forAddress(sa).toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownScheme() {
+		Transport.forUri("udp://localhost:9998");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMissingPort() {
+		Transport.forUri("tcp://localhost");
+	}
+
+	@Test
+	public void testUnixSocket() throws Exception {
+		Path dir = Files.createTempDirectory("jtelldus");
+		Path path = dir.resolve("TelldusClient");
+		FakeTelldusd telldusd = new FakeTelldusd(0, path);
+		try {
+			TelldusConfig config = new TelldusConfig("unix://"+ path, "unix://"+ dir.resolve("TelldusEvents"));
+			SocketPool pool = new SocketPool(config.getClientTransport().getAddress(), 1, 0, 60000);
+			pool.start();
+			CommandEngine engine = new CommandEngine(pool, 2);
+			try {
+				assertEquals(42, execute(engine, 42));
+				assertEquals(-1, execute(engine, -1));
+			} finally {
+				engine.close();
+			}
+
+			AsyncCommandEngine async = new AsyncCommandEngine(config.getClientTransport().getAddress(), 2);
+			try {
+				Message m = Message.direct("cmd");
+				m.addArgument(7);
+				ByteBuffer reply = async.submit(m).get();
+				m.release();
+				reply.flip();
+				assertEquals(7, Message.takeInt(reply));
+			} finally {
+				async.close();
+			}
+		} finally {
+			telldusd.close();
+			Files.deleteIfExists(path);
+			Files.delete(dir);
+		}
+	}
+
+	private static int execute(CommandEngine engine, int value) throws IOException {
+		Message m = Message.direct("cmd");
+		m.addArgument(value);
+		try {
+			ByteBuffer reply = engine.execute(m);
+			reply.flip();
+			return Message.takeInt(reply);
+		} finally {
+			m.release();
+		}
+	}
+}
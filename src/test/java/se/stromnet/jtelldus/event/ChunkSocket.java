@@ -0,0 +1,40 @@
+package se.stromnet.jtelldus.event;
+
+import se.stromnet.jtelldus.TelldusSocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * Socket returning pre-defined chunks, one per read.
+ */
+class ChunkSocket extends TelldusSocket {
+	LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+
+	ChunkSocket() throws IOException {
+		super("localhost", 0);
+	}
+
+	void add(String data) {
+		chunks.add(data.getBytes());
+	}
+
+	@Override
+	public int read(ByteBuffer bb) {
+		if(chunks.isEmpty())
+			return -1;
+
+		byte[] chunk = chunks.peek();
+		int len = Math.min(chunk.length, bb.remaining());
+		bb.put(chunk, 0, len);
+		if(len == chunk.length) {
+			chunks.poll();
+		} else {
+			byte[] rest = new byte[chunk.length - len];
+			System.arraycopy(chunk, len, rest, 0, rest.length);
+			chunks.set(0, rest);
+		}
+		return len;
+	}
+}
@@ -8,6 +8,11 @@ import se.stromnet.jtelldus.Protocol.ChangeType;
 import se.stromnet.jtelldus.Protocol.DeviceMethod;
 import se.stromnet.jtelldus.Protocol.SensorValueType;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.junit.Assert.*;
 
 /**
@@ -145,6 +150,54 @@ public class EventDispatcherTest {
 	}
 
 
+	@Test
+	public void testConcurrentRegistration() throws InterruptedException {
+		final TDDeviceEvent de = createTDDeviceEvent();
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		Thread dispatcher = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while(running.get())
+						ed.dispatchEvent(de);
+				}catch(Throwable t) {
+					failure.set(t);
+				}
+			}
+		};
+		dispatcher.start();
+
+		final CountDownLatch delivered = new CountDownLatch(1);
+		TDDeviceEventListener keep = new TDDeviceEventListener() {
+			@Override
+			public void onTDDeviceEvent(TDDeviceEvent event) {
+				super.onTDDeviceEvent(event);
+				delivered.countDown();
+			}
+		};
+		ed.addEventListener(keep);
+		for(int i = 0; i < 10000; i++) {
+			TDDeviceEventListener l = new TDDeviceEventListener();
+			ed.addEventListener(l);
+			ed.removeEventListener(l);
+		}
+
+		// The dispatcher thread may not have run since keep was added
+		assertTrue(delivered.await(5, TimeUnit.SECONDS));
+		running.set(false);
+		dispatcher.join();
+
+		assertNull(failure.get());
+		assertNotNull(keep.event);
+		assertTrue(ed.hasListeners(TDDeviceEvent.TYPE));
+		assertFalse(ed.hasListeners(TDSensorEvent.TYPE));
+
+		ed.removeEventListener(keep);
+		assertFalse(ed.hasListeners(TDDeviceEvent.class));
+	}
+
 
 	/* Dummy listeners */
 
@@ -158,7 +211,7 @@ public class EventDispatcherTest {
 		}
 	}
 	private static class TDDeviceEventListener implements TDDeviceEvent.Listener {
-		public TDDeviceEvent event;
+		public volatile TDDeviceEvent event;
 		public void onTDDeviceEvent(TDDeviceEvent event) {
 			this.event = event;
 		}
@@ -144,4 +144,22 @@ public class EventFactoryTest {
 		assertEquals("", e.getNewValue());
 	}
 
+	@Test
+	public void testTypes() {
+		assertSame(TDSensorEvent.TYPE, EventFactory.forName("TDSensorEvent"));
+		assertNull(EventFactory.forName("TDUnknownEvent"));
+
+		// Indexes are unique
+		EventType<?, ?>[] types = EventFactory.types();
+		for(int i = 0; i < types.length; i++) {
+			for(int j = i + 1; j < types.length; j++)
+				assertTrue(types[i].getIndex() != types[j].getIndex());
+		}
+
+		Message msg = new Message();
+		msg.addArgument("TDUnknownEvent");
+		msg.addArgument(1);
+		assertNull(EventFactory.createEvent(new Message(msg.serialize())));
+	}
+
 }
@@ -0,0 +1,116 @@
+package se.stromnet.jtelldus.event;
+
+import org.junit.Test;
+import se.stromnet.jtelldus.Message;
+import se.stromnet.jtelldus.Protocol.DeviceMethod;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+import static se.stromnet.jtelldus.event.EventStreamTest.deviceEvent;
+import static se.stromnet.jtelldus.event.EventStreamTest.sensorEvent;
+
+public class EventFilterTest {
+
+	private static String rawEvent(String data, int controllerId) {
+		Message m = new Message("TDRawDeviceEvent");
+		m.addArgument(data);
+		m.addArgument(controllerId);
+		return new String(m.serialize().array());
+	}
+
+	/**
+	 * Run all data through filter, returning number of accepted events.
+	 */
+	private int accepted(EventFilter filter, String data) throws IOException {
+		ChunkSocket socket = new ChunkSocket();
+		socket.add(data);
+
+		EventStream stream = new EventStream(2000);
+		stream.readFrom(socket);
+		int count = 0;
+		while(stream.nextFrame()) {
+			if(filter.accept(stream.frame()))
+				count++;
+		}
+		return count;
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		EventFilter f = new EventFilter();
+		assertEquals(3, accepted(f, sensorEvent(1, "1") + deviceEvent(2, DeviceMethod.TURNON) + rawEvent("class:sensor;", 1)));
+		assertEquals(0, f.getDroppedCount());
+	}
+
+	@Test
+	public void testSensors() throws IOException {
+		EventFilter f = new EventFilter().allowSensorIds(1, 3);
+		assertEquals(2, accepted(f, sensorEvent(1, "1") + sensorEvent(2, "1") + sensorEvent(3, "1")));
+		assertEquals(1, f.getDroppedCount());
+
+		f = new EventFilter().denySensorIds(Integer.MIN_VALUE, 2);
+		assertEquals(1, accepted(f, sensorEvent(1, "1") + sensorEvent(2, "1") + sensorEvent(Integer.MIN_VALUE, "1")));
+
+		// sensorEvent() uses protocol fineoffset
+		f = new EventFilter().denyProtocols("fineoffset");
+		assertEquals(1, accepted(f, sensorEvent(1, "1") + deviceEvent(2, DeviceMethod.TURNON)));
+
+		f = new EventFilter().allowProtocols("mandolyn", "fineoffset").allowModels("temperature");
+		assertEquals(0, accepted(f, sensorEvent(1, "1")));
+
+		f = new EventFilter().allowModels("temperaturehumidity");
+		assertEquals(1, accepted(f, sensorEvent(1, "1")));
+	}
+
+	@Test
+	public void testRaw() throws IOException {
+		String raw1 = rawEvent("class:sensor;protocol:mandolyn;id:11;model:temperaturehumidity;temp:19.5;", 1);
+		String raw2 = rawEvent("class:command;protocol:arctech;model:selflearning;house:1234;unit:1;", 2);
+
+		assertEquals(1, accepted(new EventFilter().denyProtocols("mandolyn"), raw1 + raw2));
+		assertEquals(1, accepted(new EventFilter().allowModels("selflearning"), raw1 + raw2));
+		assertEquals(1, accepted(new EventFilter().denyControllerIds(1), raw1 + raw2));
+		assertEquals(0, accepted(new EventFilter().allowControllerIds(3), raw1 + raw2));
+	}
+
+	@Test
+	public void testRawSensorIds() throws IOException {
+		String raw1 = rawEvent("class:sensor;protocol:mandolyn;id:11;model:temperaturehumidity;temp:19.5;", 1);
+		String raw2 = rawEvent("class:sensor;protocol:fineoffset;id:12;model:temperature;temp:4.2;", 1);
+		String raw3 = rawEvent("class:command;protocol:arctech;model:selflearning;house:1234;unit:1;", 2);
+		String raw4 = rawEvent("class:sensor;protocol:oregon;model:0xEA4C;id:abc;temp:1.0;", 1);
+
+		// Raw data without a numeric id is not checked
+		assertEquals(3, accepted(new EventFilter().allowSensorIds(11), raw1 + raw2 + raw3 + raw4));
+		assertEquals(3, accepted(new EventFilter().denySensorIds(11), raw1 + raw2 + raw3 + raw4));
+
+		EventFilter f = new EventFilter().denySensorIds(11, 12);
+		assertEquals(0, accepted(f, raw1 + raw2));
+		assertEquals(2, f.getDroppedCount());
+
+		// Key must match all of it
+		String raw5 = rawEvent("class:sensor;protocol:x;model:y;uid:11;", 1);
+		assertEquals(1, accepted(new EventFilter().denySensorIds(11), raw5));
+	}
+
+	@Test
+	public void testDevices() throws IOException {
+		EventFilter f = new EventFilter().allowDeviceIds(2);
+		assertEquals(1, accepted(f, deviceEvent(1, DeviceMethod.TURNON) + deviceEvent(2, DeviceMethod.TURNON) + deviceEvent(3, DeviceMethod.TURNON)));
+	}
+
+	@Test
+	public void testIntSet() {
+		EventFilter.IntSet s = new EventFilter.IntSet();
+		assertTrue(s.isEmpty());
+		assertFalse(s.contains(0));
+
+		for(int i = 0; i < 1000; i += 3)
+			s.add(i);
+
+		for(int i = 0; i < 1000; i++)
+			assertEquals(i % 3 == 0, s.contains(i));
+		assertFalse(s.contains(Integer.MIN_VALUE));
+	}
+}
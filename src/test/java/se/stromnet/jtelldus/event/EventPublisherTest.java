@@ -0,0 +1,175 @@
+package se.stromnet.jtelldus.event;
+
+import org.junit.Test;
+import se.stromnet.jtelldus.Message;
+import se.stromnet.jtelldus.Protocol.DeviceMethod;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EventPublisherTest {
+
+	private static TDDeviceEvent deviceEvent(int id) {
+		Message msg = new Message();
+		msg.addArgument(id);
+		msg.addArgument(DeviceMethod.TURNON.code());
+		msg.addArgument("");
+		return new TDDeviceEvent(new Message(msg.serialize()));
+	}
+
+	private static class Collector<T> implements Flow.Subscriber<T> {
+		final List<T> items = new ArrayList<T>();
+		final CountDownLatch subscribed = new CountDownLatch(1);
+		volatile Flow.Subscription subscription;
+		final CountDownLatch done;
+
+		Collector(int expected) {
+			done = new CountDownLatch(expected);
+		}
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscribed.countDown();
+		}
+
+		public void onNext(T item) {
+			synchronized(items) {
+				items.add(item);
+			}
+			done.countDown();
+		}
+
+		public void onError(Throwable throwable) {
+		}
+
+		public void onComplete() {
+		}
+	}
+
+	@Test
+	public void testTyped() throws InterruptedException {
+		EventDispatcher ed = new EventDispatcher();
+		Collector<TDDeviceEvent> c = new Collector<TDDeviceEvent>(2);
+		EventPublisher<TDDeviceEvent> p = ed.getPublisher(TDDeviceEvent.TYPE);
+		p.subscribe(c);
+		assertSame(p, ed.getPublisher(TDDeviceEvent.TYPE));
+
+		assertTrue(c.subscribed.await(5, TimeUnit.SECONDS));
+		c.subscription.request(Long.MAX_VALUE);
+
+		assertTrue(ed.hasListeners(TDDeviceEvent.TYPE));
+		assertFalse(ed.hasListeners(TDSensorEvent.TYPE));
+
+		ed.dispatchEvent(deviceEvent(1));
+		ed.dispatchEvent(deviceEvent(2));
+
+		assertTrue(c.done.await(5, TimeUnit.SECONDS));
+		assertEquals(1, c.items.get(0).getDeviceId());
+		assertEquals(2, c.items.get(1).getDeviceId());
+
+		ed.close();
+		assertTrue(p.isClosed());
+	}
+
+	@Test
+	public void testBackpressure() throws InterruptedException {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		final EventPublisher<TelldusEvent> p = new EventPublisher<TelldusEvent>(null, executor, 1);
+		Collector<TelldusEvent> c = new Collector<TelldusEvent>(10);
+		p.subscribe(c);
+		assertTrue(c.subscribed.await(5, TimeUnit.SECONDS));
+
+		final CountDownLatch published = new CountDownLatch(1);
+		new Thread() {
+			@Override
+			public void run() {
+				for(int i = 0; i < 10; i++)
+					p.offer(deviceEvent(i));
+				published.countDown();
+			}
+		}.start();
+
+		// Nothing requested, so the publishing thread must wait
+		assertFalse(published.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(0, c.items.size());
+
+		c.subscription.request(Long.MAX_VALUE);
+		assertTrue(published.await(5, TimeUnit.SECONDS));
+		assertTrue(c.done.await(5, TimeUnit.SECONDS));
+		assertEquals(9, ((TDDeviceEvent) c.items.get(9)).getDeviceId());
+
+		p.close();
+		executor.shutdown();
+	}
+
+	@Test
+	public void testSaturatedSubscriber() throws InterruptedException {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		final EventPublisher<TelldusEvent> p = new EventPublisher<TelldusEvent>(null, executor, 1);
+		Collector<TelldusEvent> fast = new Collector<TelldusEvent>(10);
+		Collector<TelldusEvent> slow = new Collector<TelldusEvent>(1);
+		p.subscribe(fast);
+		p.subscribe(slow);
+		assertTrue(fast.subscribed.await(5, TimeUnit.SECONDS));
+		assertTrue(slow.subscribed.await(5, TimeUnit.SECONDS));
+		fast.subscription.request(Long.MAX_VALUE);
+
+		final CountDownLatch published = new CountDownLatch(1);
+		new Thread() {
+			@Override
+			public void run() {
+				for(int i = 0; i < 10; i++)
+					p.offer(deviceEvent(i));
+				published.countDown();
+			}
+		}.start();
+
+		// The slow subscriber does not hold back the fast one
+		assertTrue(published.await(5, TimeUnit.SECONDS));
+		assertTrue(fast.done.await(5, TimeUnit.SECONDS));
+		for(int i = 0; i < 10; i++)
+			assertEquals(i, ((TDDeviceEvent) fast.items.get(i)).getDeviceId());
+
+		// Its buffer holds the first event, the rest were skipped
+		assertEquals(9, p.getDroppedCount());
+		slow.subscription.request(Long.MAX_VALUE);
+		assertTrue(slow.done.await(5, TimeUnit.SECONDS));
+		assertEquals(0, ((TDDeviceEvent) slow.items.get(0)).getDeviceId());
+
+		p.close();
+		executor.shutdown();
+	}
+
+	@Test
+	public void testThreadFactory() throws InterruptedException {
+		final AtomicInteger created = new AtomicInteger();
+		EventDispatcher ed = new EventDispatcher();
+		ed.setThreadFactory(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				created.incrementAndGet();
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		Collector<TelldusEvent> c = new Collector<TelldusEvent>(1);
+		ed.getPublisher().subscribe(c);
+		assertTrue(c.subscribed.await(5, TimeUnit.SECONDS));
+		c.subscription.request(1);
+		ed.dispatchEvent(deviceEvent(1));
+		assertTrue(c.done.await(5, TimeUnit.SECONDS));
+		assertTrue(created.get() > 0);
+
+		ed.close();
+	}
+}
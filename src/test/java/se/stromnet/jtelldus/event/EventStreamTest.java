@@ -0,0 +1,157 @@
+package se.stromnet.jtelldus.event;
+
+import org.junit.Test;
+import se.stromnet.jtelldus.Message;
+import se.stromnet.jtelldus.Protocol.DeviceMethod;
+import se.stromnet.jtelldus.Protocol.SensorValueType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EventStreamTest {
+
+	static String deviceEvent(int id, DeviceMethod method) {
+		Message m = new Message("TDDeviceEvent");
+		m.addArgument(id);
+		m.addArgument(method.code());
+		m.addArgument("");
+		return new String(m.serialize().array());
+	}
+
+	static String sensorEvent(int id, String value) {
+		Message m = new Message("TDSensorEvent");
+		m.addArgument("fineoffset");
+		m.addArgument("temperaturehumidity");
+		m.addArgument(id);
+		m.addArgument(SensorValueType.TEMPERATURE.code());
+		m.addArgument(value);
+		m.addArgument(1234);
+		return new String(m.serialize().array());
+	}
+
+	/**
+	 * Read everything from socket, returning all events
+	 */
+	private List<TelldusEvent> drain(EventStream stream, ChunkSocket socket) throws IOException {
+		List<TelldusEvent> events = new ArrayList<TelldusEvent>();
+		while(stream.readFrom(socket) >= 0) {
+			while(stream.nextFrame())
+				events.add(EventFactory.createEvent(stream.frame()));
+		}
+		return events;
+	}
+
+	@Test
+	public void testBatch() throws IOException {
+		ChunkSocket socket = new ChunkSocket();
+		socket.add(deviceEvent(1, DeviceMethod.TURNON) + sensorEvent(2, "21.5") + deviceEvent(3, DeviceMethod.TURNOFF));
+
+		EventStream stream = new EventStream(2000);
+		assertEquals(socket.chunks.peek().length, stream.readFrom(socket));
+
+		// All three from one read
+		assertTrue(stream.nextFrame());
+		assertEquals(1, ((TDDeviceEvent) EventFactory.createEvent(stream.frame())).getDeviceId());
+		assertTrue(stream.nextFrame());
+		assertEquals("21.5", ((TDSensorEvent) EventFactory.createEvent(stream.frame())).getSensorValue().getValue());
+		assertTrue(stream.nextFrame());
+		assertEquals(3, ((TDDeviceEvent) EventFactory.createEvent(stream.frame())).getDeviceId());
+		assertFalse(stream.nextFrame());
+	}
+
+	@Test
+	public void testPartial() throws IOException {
+		ChunkSocket socket = new ChunkSocket();
+		String all = deviceEvent(1, DeviceMethod.TURNON) + sensorEvent(2, "21.5") + deviceEvent(3, DeviceMethod.TURNOFF);
+
+		// Feed it one byte at a time
+		for(char c: all.toCharArray())
+			socket.add(String.valueOf(c));
+
+		List<TelldusEvent> events = drain(new EventStream(2000), socket);
+		assertEquals(3, events.size());
+		assertEquals(2, ((TDSensorEvent) events.get(1)).getSensor().getId());
+		assertEquals(DeviceMethod.TURNOFF, ((TDDeviceEvent) events.get(2)).getMethod());
+	}
+
+	@Test
+	public void testGrow() throws IOException {
+		ChunkSocket socket = new ChunkSocket();
+		StringBuilder data = new StringBuilder();
+		for(int i = 0; i < 100; i++)
+			data.append("0123456789");
+
+		socket.add(deviceEvent(1, DeviceMethod.TURNON) + sensorEvent(2, data.toString()) + deviceEvent(3, DeviceMethod.TURNOFF));
+
+		List<TelldusEvent> events = drain(new EventStream(16), socket);
+		assertEquals(3, events.size());
+		assertEquals(data.toString(), ((TDSensorEvent) events.get(1)).getSensorValue().getValue());
+	}
+
+	@Test
+	public void testResync() throws IOException {
+		ChunkSocket socket = new ChunkSocket();
+		socket.add(deviceEvent(1, DeviceMethod.TURNON)
+				+ "garbage:TD12"
+				+ "13:TDDeviceEvent5:wrong"
+				+ "99:TDSomethingElse"
+				+ deviceEvent(2, DeviceMethod.TURNON));
+		socket.add(sensorEvent(3, "1"));
+
+		EventStream stream = new EventStream(2000);
+		List<TelldusEvent> events = drain(stream, socket);
+		assertEquals(3, events.size());
+		assertEquals(1, ((TDDeviceEvent) events.get(0)).getDeviceId());
+		assertEquals(2, ((TDDeviceEvent) events.get(1)).getDeviceId());
+		assertEquals(3, ((TDSensorEvent) events.get(2)).getSensor().getId());
+		assertTrue(stream.getSkippedBytes() > 0);
+	}
+
+	@Test
+	public void testUnknownType() throws IOException {
+		ChunkSocket socket = new ChunkSocket();
+		socket.add("14:TDUnknownEventi1s" + deviceEvent(2, DeviceMethod.TURNON));
+
+		List<TelldusEvent> events = drain(new EventStream(2000), socket);
+		assertEquals(1, events.size());
+		assertEquals(2, ((TDDeviceEvent) events.get(0)).getDeviceId());
+	}
+
+	@Test
+	public void testLazy() throws IOException {
+		ChunkSocket socket = new ChunkSocket();
+		socket.add(sensorEvent(2, "21.5") + deviceEvent(3, DeviceMethod.TURNOFF));
+
+		EventStream stream = new EventStream(2000);
+		stream.readFrom(socket);
+
+		assertTrue(stream.nextFrame());
+		assertEquals(TDSensorEvent.class, EventFactory.eventClass(stream.frame()));
+		TDSensorEvent se = (TDSensorEvent) EventFactory.createEvent(stream.frame(), true);
+		assertTrue(se.isLazy());
+		assertEquals("fineoffset", se.getSensor().getProtocol());
+		assertEquals(2, se.getSensor().getId());
+
+		// Keep this one around
+		se.detach();
+		assertFalse(se.isLazy());
+
+		assertTrue(stream.nextFrame());
+		TDDeviceEvent de = (TDDeviceEvent) EventFactory.createEvent(stream.frame(), true);
+		assertEquals(3, de.getDeviceId());
+		de.expire();
+
+		// Ints are always available, other fields are gone
+		assertEquals(3, de.getDeviceId());
+		try {
+			de.getStateValue();
+			fail("Expired event should not be readable");
+		} catch(IllegalStateException ex) {}
+
+		assertEquals("21.5", se.getSensorValue().getValue());
+		assertEquals(1234, se.getSensorValue().getTimestamp());
+	}
+}
@@ -0,0 +1,226 @@
+package se.stromnet.jtelldus.event;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.stromnet.jtelldus.Message;
+import se.stromnet.jtelldus.Protocol.DeviceMethod;
+import se.stromnet.jtelldus.Protocol.SensorValueType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ListenerQueueTest {
+
+	private EventDispatcher ed;
+
+	@Before
+	public void setUp() {
+		ed = new EventDispatcher();
+	}
+
+	@After
+	public void tearDown() {
+		ed.close();
+	}
+
+	private static TDDeviceEvent deviceEvent(int id, String value) {
+		Message msg = new Message();
+		msg.addArgument(id);
+		msg.addArgument(DeviceMethod.DIM.code());
+		msg.addArgument(value);
+		return new TDDeviceEvent(new Message(msg.serialize()));
+	}
+
+	private static TDSensorEvent sensorEvent(int id, SensorValueType type, String value) {
+		Message msg = new Message();
+		msg.addArgument("fineoffset");
+		msg.addArgument("temperaturehumidity");
+		msg.addArgument(id);
+		msg.addArgument(type.code());
+		msg.addArgument(value);
+		msg.addArgument(1234);
+		return new TDSensorEvent(new Message(msg.serialize()));
+	}
+
+	/**
+	 * Listener which blocks until released, recording what it got
+	 */
+	private static class SlowListener implements TDDeviceEvent.Listener, TDSensorEvent.Listener {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<TelldusEvent> events = new ArrayList<TelldusEvent>();
+
+		private void got(TelldusEvent event) {
+			started.countDown();
+			try {
+				release.await();
+			} catch(InterruptedException ex) {}
+			synchronized(events) {
+				events.add(event);
+				events.notifyAll();
+			}
+		}
+
+		public void onTDDeviceEvent(TDDeviceEvent event) {
+			got(event);
+		}
+
+		public void onTDSensorEvent(TDSensorEvent event) {
+			got(event);
+		}
+
+		List<TelldusEvent> await(int n) throws InterruptedException {
+			synchronized(events) {
+				long until = System.currentTimeMillis() + 5000;
+				while(events.size() < n && System.currentTimeMillis() < until)
+					events.wait(100);
+				return new ArrayList<TelldusEvent>(events);
+			}
+		}
+	}
+
+	@Test
+	public void testDropNewest() throws InterruptedException {
+		SlowListener l = new SlowListener();
+		ListenerQueue q = ed.addEventListener(l, 2, OverflowPolicy.DROP_NEWEST);
+
+		// First one is taken by the listener, which then blocks
+		ed.dispatchEvent(deviceEvent(1, "a"));
+		assertTrue(l.started.await(5, TimeUnit.SECONDS));
+
+		// Dispatching never blocks
+		for(int i = 2; i <= 5; i++)
+			ed.dispatchEvent(deviceEvent(i, "a"));
+
+		assertEquals(2, q.getQueueDepth());
+		assertEquals(2, q.getDroppedCount());
+
+		l.release.countDown();
+		List<TelldusEvent> events = l.await(3);
+		assertEquals(3, events.size());
+		assertEquals(1, ((TDDeviceEvent) events.get(0)).getDeviceId());
+		assertEquals(2, ((TDDeviceEvent) events.get(1)).getDeviceId());
+		assertEquals(3, ((TDDeviceEvent) events.get(2)).getDeviceId());
+	}
+
+	@Test
+	public void testDropOldest() throws InterruptedException {
+		SlowListener l = new SlowListener();
+		ListenerQueue q = ed.addEventListener(l, 2, OverflowPolicy.DROP_OLDEST);
+
+		ed.dispatchEvent(deviceEvent(1, "a"));
+		assertTrue(l.started.await(5, TimeUnit.SECONDS));
+		for(int i = 2; i <= 5; i++)
+			ed.dispatchEvent(deviceEvent(i, "a"));
+
+		assertEquals(2, q.getDroppedCount());
+
+		l.release.countDown();
+		List<TelldusEvent> events = l.await(3);
+		assertEquals(3, events.size());
+		assertEquals(4, ((TDDeviceEvent) events.get(1)).getDeviceId());
+		assertEquals(5, ((TDDeviceEvent) events.get(2)).getDeviceId());
+	}
+
+	@Test
+	public void testCoalesce() throws InterruptedException {
+		SlowListener l = new SlowListener();
+		ListenerQueue q = ed.addEventListener(l, 10, OverflowPolicy.COALESCE);
+
+		ed.dispatchEvent(deviceEvent(1, "a"));
+		assertTrue(l.started.await(5, TimeUnit.SECONDS));
+
+		ed.dispatchEvent(sensorEvent(7, SensorValueType.TEMPERATURE, "20.0"));
+		ed.dispatchEvent(sensorEvent(7, SensorValueType.HUMIDITY, "40"));
+		ed.dispatchEvent(deviceEvent(2, "b"));
+		ed.dispatchEvent(sensorEvent(7, SensorValueType.TEMPERATURE, "20.5"));
+		ed.dispatchEvent(deviceEvent(2, "c"));
+
+		assertEquals(3, q.getQueueDepth());
+		assertEquals(2, q.getCoalescedCount());
+		assertEquals(0, q.getDroppedCount());
+
+		l.release.countDown();
+		List<TelldusEvent> events = l.await(4);
+		assertEquals(4, events.size());
+		assertEquals("20.5", ((TDSensorEvent) events.get(1)).getSensorValue().getValue());
+		assertEquals("40", ((TDSensorEvent) events.get(2)).getSensorValue().getValue());
+		assertEquals("c", ((TDDeviceEvent) events.get(3)).getStateValue());
+	}
+
+	@Test
+	public void testBlock() throws InterruptedException {
+		SlowListener l = new SlowListener();
+		final ListenerQueue q = ed.addEventListener(l, 1, OverflowPolicy.BLOCK);
+
+		ed.dispatchEvent(deviceEvent(1, "a"));
+		assertTrue(l.started.await(5, TimeUnit.SECONDS));
+		ed.dispatchEvent(deviceEvent(2, "a"));
+
+		final CountDownLatch dispatched = new CountDownLatch(1);
+		new Thread() {
+			@Override
+			public void run() {
+				ed.dispatchEvent(deviceEvent(3, "a"));
+				dispatched.countDown();
+			}
+		}.start();
+
+		// Queue is full, so the third waits
+		assertFalse(dispatched.await(200, TimeUnit.MILLISECONDS));
+
+		l.release.countDown();
+		assertTrue(dispatched.await(5, TimeUnit.SECONDS));
+		assertEquals(3, l.await(3).size());
+		assertEquals(0, q.getDroppedCount());
+	}
+
+	@Test
+	public void testRemove() throws InterruptedException {
+		SlowListener l = new SlowListener();
+		l.release.countDown();
+		ed.addEventListener(l, 10, OverflowPolicy.DROP_NEWEST);
+		assertEquals(1, ed.getListenerQueues().size());
+		assertTrue(ed.hasListeners(TDSensorEvent.TYPE));
+
+		ed.removeEventListener(l);
+		assertEquals(0, ed.getListenerQueues().size());
+		assertFalse(ed.hasListeners(TDDeviceEvent.TYPE));
+	}
+
+	@Test
+	public void testThreadFactory() throws InterruptedException {
+		final List<Thread> created = new ArrayList<Thread>();
+		ed.setThreadFactory(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				created.add(t);
+				return t;
+			}
+		});
+
+		final AtomicReference<Thread> deliveredOn = new AtomicReference<Thread>();
+		SlowListener l = new SlowListener() {
+			@Override
+			public void onTDDeviceEvent(TDDeviceEvent event) {
+				deliveredOn.set(Thread.currentThread());
+				super.onTDDeviceEvent(event);
+			}
+		};
+		l.release.countDown();
+		ed.addEventListener(l, 10, OverflowPolicy.BLOCK);
+		assertEquals(1, created.size());
+
+		ed.dispatchEvent(deviceEvent(1, "1"));
+		assertEquals(1, l.await(1).size());
+		assertSame(created.get(0), deliveredOn.get());
+	}
+}
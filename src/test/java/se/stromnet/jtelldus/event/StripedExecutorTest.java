@@ -0,0 +1,105 @@
+package se.stromnet.jtelldus.event;
+
+import org.junit.Test;
+import se.stromnet.jtelldus.Message;
+import se.stromnet.jtelldus.Protocol.DeviceMethod;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StripedExecutorTest {
+
+	@Test
+	public void testStripe() {
+		StripedExecutor ex = new StripedExecutor(4, 10);
+		try {
+			assertEquals(0, ex.stripe(null));
+			for(int i = 0; i < 100; i++) {
+				int s = ex.stripe(i);
+				assertTrue(s >= 0 && s < 4);
+				assertEquals(s, ex.stripe(Integer.valueOf(i)));
+			}
+		} finally {
+			ex.shutdown();
+		}
+	}
+
+	@Test
+	public void testParallel() throws InterruptedException {
+		StripedExecutor ex = new StripedExecutor(2, 10);
+		try {
+			// Find two keys on different stripes
+			int other = 1;
+			while(ex.stripe(other) == ex.stripe(0))
+				other++;
+
+			// Block the first stripe; the other must still run
+			final CountDownLatch release = new CountDownLatch(1);
+			final CountDownLatch ran = new CountDownLatch(1);
+			ex.execute(0, new Runnable() {
+				public void run() {
+					try {
+						release.await();
+					} catch(InterruptedException e) {}
+				}
+			});
+			ex.execute(other, new Runnable() {
+				public void run() {
+					ran.countDown();
+				}
+			});
+
+			assertTrue(ran.await(5, TimeUnit.SECONDS));
+			release.countDown();
+		} finally {
+			ex.shutdown();
+		}
+	}
+
+	@Test
+	public void testDispatchOrder() throws InterruptedException {
+		EventDispatcher ed = new EventDispatcher();
+		ed.setStripedDispatch(4, 100);
+
+		final int devices = 8, events = 200;
+		final CountDownLatch done = new CountDownLatch(devices * events);
+		final Map<Integer, List<String>> got = new HashMap<Integer, List<String>>();
+		ed.addEventListener(new TDDeviceEvent.Listener() {
+			public void onTDDeviceEvent(TDDeviceEvent event) {
+				synchronized(got) {
+					List<String> l = got.get(event.getDeviceId());
+					if(l == null)
+						got.put(event.getDeviceId(), l = new ArrayList<String>());
+					l.add(event.getStateValue());
+				}
+				done.countDown();
+			}
+		});
+
+		for(int i = 0; i < events; i++) {
+			for(int d = 0; d < devices; d++) {
+				Message msg = new Message();
+				msg.addArgument(d);
+				msg.addArgument(DeviceMethod.DIM.code());
+				msg.addArgument(String.valueOf(i));
+				ed.dispatchEvent(new TDDeviceEvent(new Message(msg.serialize())));
+			}
+		}
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		ed.close();
+
+		for(int d = 0; d < devices; d++) {
+			List<String> l = got.get(d);
+			assertEquals(events, l.size());
+			for(int i = 0; i < events; i++)
+				assertEquals(String.valueOf(i), l.get(i));
+		}
+	}
+}